@@ -0,0 +1,71 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ *     Entry point of benchmarks.jar. Takes the usual JMH options and, unless other profilers are asked for,
+ *     runs with the gc profiler so every result shows the allocation rate (gc.alloc.rate.norm is the bytes
+ *     allocated per operation) next to the throughput.
+ * </p>
+ * e.g.
+ * <pre>
+ *     java -jar target/benchmarks.jar
+ *     java -jar target/benchmarks.jar ResponseConversion -p records=200
+ *     java -jar target/benchmarks.jar -l
+ * </pre>
+ * Created on 17/10/26.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, IOException{
+        CommandLineOptions commandLine;
+        try {
+            commandLine = new CommandLineOptions(args);
+        }catch (CommandLineOptionException ex){
+            System.err.println("Error parsing command line: " + ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if(commandLine.getProfilers().isEmpty()) options.addProfiler(GCProfiler.class);
+        Runner runner = new Runner(options.build());
+        if(commandLine.shouldHelp()){
+            commandLine.showHelp();
+        }else if(commandLine.shouldList()){
+            runner.list();
+        }else{
+            runner.run();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * <p>
+ *     Payloads shaped like the ones a SugarCRM v4_1 instance sends and receives for the Accounts module:
+ *     the same field names, value lengths and repetition (status, type, assigned user...) as a real export.
+ *     Every payload is built from a fixed seed so runs compare like for like.
+ * </p>
+ * Created on 17/10/26.
+ */
+public final class Fixtures {
+
+    public static final String MODULE = "Accounts";
+    public static final String SESSION = "k1m3o5ngd0v4sd7pb8c2q6r9u1";
+
+    private static final String[] FIELDS = {"id", "name", "date_entered", "date_modified", "modified_user_id",
+            "created_by", "description", "deleted", "assigned_user_id", "account_type", "industry",
+            "annual_revenue", "phone_office", "phone_fax", "website", "employees", "email1",
+            "billing_address_street", "billing_address_city", "billing_address_state",
+            "billing_address_postalcode", "billing_address_country"};
+
+    private static final String[] TYPES = {"Customer", "Prospect", "Partner", "Reseller", "Competitor"};
+    private static final String[] INDUSTRIES = {"Banking", "Energy", "Retail", "Technology", "Telecommunications",
+            "Transportation", "Healthcare", "Education"};
+    private static final String[] CITIES = {"Lagos", "Abuja", "Ibadan", "Port Harcourt", "Kano", "Enugu"};
+    private static final String[] USERS = {"1", "seed_sally_id", "seed_max_id", "seed_will_id", "seed_chris_id"};
+
+    private Fixtures(){
+    }
+
+    /**
+     * @param records {int} the number of accounts
+     * @return {String} a get_entry_list (or get_entries) response holding the accounts
+     */
+    public static String entryListResponse(int records){
+        return response(records, true);
+    }
+
+    /**
+     * @return {String} a get_entry response, the first account of {@link #entryListResponse(int)}
+     */
+    public static String entryResponse(){
+        return response(1, false);
+    }
+
+    /**
+     * @param records {int} the number of accounts
+     * @return {HashMap[]} the accounts as set_entries inserts
+     */
+    public static HashMap<String, String>[] accounts(int records){
+        Random random = new Random(records);
+        HashMap<String, String>[] accounts = newInserts(records);
+        for(int i = 0; i < records; i++) accounts[i] = account(i, random);
+        return accounts;
+    }
+
+    /**
+     * setRecords takes the records as an array, and a generic array can only be made unchecked
+     */
+    @SuppressWarnings("unchecked")
+    private static HashMap<String, String>[] newInserts(int size){
+        return (HashMap<String, String>[]) new HashMap<?, ?>[size];
+    }
+
+    /**
+     * @param records {int} the number of ids
+     * @return {String} a Json array of account ids, as handed to getMultipleRecords
+     */
+    public static String ids(int records){
+        StringBuilder ids = new StringBuilder("[");
+        for(int i = 0; i < records; i++){
+            if(i > 0) ids.append(',');
+            ids.append('"').append(id(i)).append('"');
+        }
+        return ids.append(']').toString();
+    }
+
+    public static String selectFields(){
+        return "[\"id\",\"name\",\"account_type\",\"industry\",\"phone_office\",\"email1\",\"billing_address_city\"," +
+                "\"date_modified\",\"assigned_user_id\"]";
+    }
+
+    /**
+     * The post data of {@link PRequest.PRequest#buildParams}: what SugarAPI sent before the form encoder
+     * @param records {int} the number of accounts in the rest_data
+     */
+    public static HashMap<String, String> postData(int records){
+        HashMap<String, String> postData = new HashMap<>();
+        postData.put("method", "set_entries");
+        postData.put("input_type", "JSON");
+        postData.put("response_type", "JSON");
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)){
+            writer.beginObject();
+            writer.name("session").value(SESSION);
+            writer.name("module_name").value(MODULE);
+            writer.name("name_value_list").beginArray();
+            for(HashMap<String, String> account : accounts(records)){
+                writer.beginArray();
+                for(String field : FIELDS){
+                    writer.beginObject().name("name").value(field).name("value").value(account.get(field)).endObject();
+                }
+                writer.endArray();
+            }
+            writer.endArray();
+            writer.endObject();
+        }catch (IOException ex){
+            throw new UncheckedIOException(ex);
+        }
+        postData.put("rest_data", out.toString());
+        return postData;
+    }
+
+    private static String response(int records, boolean list){
+        StringWriter out = new StringWriter(records * 1500 + 128);
+        try (JsonWriter writer = new JsonWriter(out)){
+            writer.beginObject();
+            if(list){
+                writer.name("result_count").value(records);
+                writer.name("total_count").value(String.valueOf(records * 10));
+                writer.name("next_offset").value(records);
+            }
+            writer.name("entry_list").beginArray();
+            Random random = new Random(records);
+            for(int i = 0; i < records; i++){
+                HashMap<String, String> account = account(i, random);
+                writer.beginObject();
+                writer.name("id").value(account.get("id"));
+                writer.name("module_name").value(MODULE);
+                writer.name("name_value_list").beginObject();
+                for(String field : FIELDS){
+                    writer.name(field).beginObject();
+                    writer.name("name").value(field);
+                    writer.name("value").value(account.get(field));
+                    writer.endObject();
+                }
+                writer.endObject();
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.name("relationship_list").beginArray().endArray();
+            writer.endObject();
+        }catch (IOException ex){
+            throw new UncheckedIOException(ex);
+        }
+        return out.toString();
+    }
+
+    private static HashMap<String, String> account(int i, Random random){
+        HashMap<String, String> account = new HashMap<>();
+        String city = CITIES[random.nextInt(CITIES.length)];
+        account.put("id", id(i));
+        account.put("name", "Account " + i + " " + INDUSTRIES[i % INDUSTRIES.length] + " Ltd");
+        account.put("date_entered", date(random));
+        account.put("date_modified", date(random));
+        account.put("modified_user_id", USERS[random.nextInt(USERS.length)]);
+        account.put("created_by", "1");
+        account.put("description", random.nextInt(3)==0 ? "" : "Key account since " + (2005 + random.nextInt(12)) +
+                ", renewal \"pending\" & review due in Q" + (1 + random.nextInt(4)) + " - contact the account manager " +
+                "before any change to billing.");
+        account.put("deleted", "0");
+        account.put("assigned_user_id", USERS[random.nextInt(USERS.length)]);
+        account.put("account_type", TYPES[random.nextInt(TYPES.length)]);
+        account.put("industry", INDUSTRIES[random.nextInt(INDUSTRIES.length)]);
+        account.put("annual_revenue", random.nextInt(4)==0 ? "" : String.valueOf(100000 + random.nextInt(9000000)));
+        account.put("phone_office", "+234 " + (700 + random.nextInt(200)) + " " + (1000000 + random.nextInt(8999999)));
+        account.put("phone_fax", "");
+        account.put("website", "http://www.account" + i + ".example.com");
+        account.put("employees", String.valueOf(10 + random.nextInt(5000)));
+        account.put("email1", "info@account" + i + ".example.com");
+        account.put("billing_address_street", (1 + random.nextInt(200)) + " Marina Road");
+        account.put("billing_address_city", city);
+        account.put("billing_address_state", city + " State");
+        account.put("billing_address_postalcode", String.valueOf(100000 + random.nextInt(900000)));
+        account.put("billing_address_country", "Nigeria");
+        return account;
+    }
+
+    private static String id(int i){
+        return String.format("%08x-4c1e-11e6-9d3a-%012x", 0x5a0e0000 + i, 0x0242ac120000L + i);
+    }
+
+    private static String date(Random random){
+        return String.format("20%02d-%02d-%02d %02d:%02d:%02d", 10 + random.nextInt(7), 1 + random.nextInt(12),
+                1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60));
+    }
+}
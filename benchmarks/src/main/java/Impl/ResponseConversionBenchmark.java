@@ -0,0 +1,64 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     {@link SugarResponse#getJsonObjectResponse(ConversionType)} on a fresh response, as a caller does once per
+ *     request: the body is parsed and converted every invocation since a response memoizes its conversions.
+ *     SINGLE only takes a single record, it always converts a get_entry answer whatever the records parameter.
+ * </p>
+ * Created on 17/10/26.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseConversionBenchmark {
+
+    @Param({"1", "20", "200"})
+    public int records;
+
+    @Param({"DEFAULT", "SINGLE", "LIST", "COLUMNAR"})
+    public ConversionType conversion;
+
+    private String body;
+
+    @Setup
+    public void setUp(){
+        body = conversion==ConversionType.SINGLE ? Fixtures.entryResponse() : Fixtures.entryListResponse(records);
+    }
+
+    @Benchmark
+    public Object getJsonObjectResponse(){
+        SugarResponse response = new SugarResponse();
+        response.onSuccessful(body);
+        return response.getJsonObjectResponse(conversion);
+    }
+}
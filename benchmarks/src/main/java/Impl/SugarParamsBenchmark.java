@@ -0,0 +1,104 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Encoding of the request body for every method type: the rest_data Json written through the
+ *     {@link PRequest.FormEncoder}, as {@link SugarAPI} does before each post.
+ *     records is the number of ids (get_entries), max_results (get_entry_list) or inserts (set_entries).
+ * </p>
+ * Created on 17/10/26.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SugarParamsBenchmark {
+
+    @Param({"1", "20", "200"})
+    public int records;
+
+    private SugarAPI api;
+    private HashMap<String, String> getEntry;
+    private HashMap<String, String> getEntries;
+    private HashMap<String, String> getEntryList;
+    private HashMap<String, String> setEntry;
+    private HashMap<String, String>[] setEntries;
+    private final HashMap<String, String> none = new HashMap<>();
+
+    @Setup
+    public void setUp(){
+        api = (SugarAPI) SugarAPI.getSugarAPIInstance("http://localhost/service/v4_1/rest.php");
+        getEntry = new HashMap<>();
+        getEntry.put("id", "5a0e0000-4c1e-11e6-9d3a-0242ac120000");
+        getEntry.put("fields", Fixtures.selectFields());
+        getEntries = new HashMap<>();
+        getEntries.put("ids", Fixtures.ids(records));
+        getEntries.put("fields", Fixtures.selectFields());
+        getEntryList = new HashMap<>();
+        getEntryList.put("query", "accounts.account_type = 'Customer' AND accounts.deleted = 0");
+        getEntryList.put("order_by", "accounts.date_modified DESC");
+        getEntryList.put("fields", Fixtures.selectFields());
+        getEntryList.put("max", String.valueOf(records));
+        setEntry = Fixtures.accounts(1)[0];
+        setEntries = Fixtures.accounts(records);
+    }
+
+    @Benchmark
+    public Object getEntry(){
+        return api.buildSugarData("get_entry",
+                api.buildSugarParams(SugarAPI.GET_ENTRY, Fixtures.MODULE, getEntry, null), Fixtures.SESSION);
+    }
+
+    @Benchmark
+    public Object getEntries(){
+        return api.buildSugarData("get_entries",
+                api.buildSugarParams(SugarAPI.GET_ENTRIES, Fixtures.MODULE, getEntries, null), Fixtures.SESSION);
+    }
+
+    @Benchmark
+    public Object getEntryList(){
+        return api.buildSugarData("get_entry_list",
+                api.buildSugarParams(SugarAPI.GET_ENTRY_LIST, Fixtures.MODULE, getEntryList, null), Fixtures.SESSION);
+    }
+
+    @Benchmark
+    public Object setEntry(){
+        return api.buildSugarData("set_entry",
+                api.buildSugarParams(SugarAPI.SET_ENTRY, Fixtures.MODULE, setEntry, null), Fixtures.SESSION);
+    }
+
+    @Benchmark
+    public Object setEntries(){
+        return api.buildSugarData("set_entries",
+                api.buildSugarParams(SugarAPI.SET_ENTRIES, Fixtures.MODULE, none, setEntries), Fixtures.SESSION);
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package PRequest;
+
+import Impl.Fixtures;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     {@link PRequest#buildParams(HashMap)}, the URLEncoder based body of the HashMap post methods,
+ *     next to the {@link FormEncoder} writing the same fields.
+ * </p>
+ * Created on 17/10/26.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildParamsBenchmark {
+
+    @Param({"1", "20", "200"})
+    public int records;
+
+    private HashMap<String, String> postData;
+
+    @Setup
+    public void setUp(){
+        postData = Fixtures.postData(records);
+    }
+
+    @Benchmark
+    public String buildParams(){
+        return PRequest.buildParams(postData);
+    }
+
+    @Benchmark
+    public FormEncoder formEncoder(){
+        FormEncoder form = new FormEncoder();
+        for(Map.Entry<String, String> entry : postData.entrySet()) form.field(entry.getKey(), entry.getValue());
+        return form;
+    }
+}
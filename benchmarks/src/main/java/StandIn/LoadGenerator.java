@@ -0,0 +1,315 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package StandIn;
+
+import Impl.ConversionType;
+import Impl.SugarAPI;
+import Impl.SugarResponse;
+import Interfaces.SugarRequestInterface;
+import PRequest.HttpTransport;
+import PRequest.LatencyHistogram;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *     Drives a {@link SugarAPI} at a fixed concurrency against the {@link StandInServer} (or a real sugar) and
+ *     reports the throughput and the latency percentiles of every method, so transport changes can be compared
+ *     end to end. Every worker sends its next request as soon as the previous one is answered (closed loop),
+ *     picking the method from a weighted mix.
+ * </p>
+ * <p>
+ *     Options are given as name=value, with these defaults:
+ *     <pre>
+ *     url=                  empty to start a StandInServer, otherwise the rest endpoint to load
+ *     username=admin password=(md5 of "admin")
+ *     module=Accounts records=10000     the module to load, and its size on the stand-in
+ *     concurrency=32 warmup=5 duration=30    workers, and seconds of warmup and of measurement
+ *     mix=get_entry:60,get_entry_list:20,get_entries:10,set_entry:8,set_entries:2
+ *     page=20 batch=10                  max_results of get_entry_list, records per get_entries/set_entries
+ *     latency=20 jitter=10 threads=16 errorRate=0 errorStatus=503   the stand-in server, latency in ms
+ *     compression=false bandwidth=0     the stand-in gzips responses, bandwidth in bytes per second, 0 unlimited
+ *     </pre>
+ * </p>
+ * e.g.
+ * <pre>
+ *     java -cp target/benchmarks.jar StandIn.LoadGenerator concurrency=64 latency=50 errorRate=0.01
+ * </pre>
+ * A response counts as an error when the callback got onFailed or when sugar answered an error object
+ * ({name:"", number:0, description:""}).
+ * Created on 17/10/26.
+ */
+public class LoadGenerator {
+
+    private static final String[] METHODS = {"get_entry", "get_entry_list", "get_entries", "set_entry", "set_entries"};
+    private static final String DEFAULT_MIX = "get_entry:60,get_entry_list:20,get_entries:10,set_entry:8,set_entries:2";
+
+    private final SugarRequestInterface api;
+    private final String module;
+    private final int page;
+    private final int batch;
+    private final String[] methods;
+    private final int[] weights;
+    private final List<String> ids = new ArrayList<>();
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final Map<String, LongAdder> errors = new HashMap<>();
+    private final LatencyHistogram overall = new LatencyHistogram();
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    /**
+     * @param api {SugarRequestInterface} the api to drive, logged in or holding a SessionManager
+     * @param module {String} the module to read and write
+     * @param mix {String} method:weight pairs, e.g get_entry:60,set_entry:40
+     * @param page {int} the max_results of a get_entry_list
+     * @param batch {int} the number of records of a get_entries or set_entries
+     */
+    public LoadGenerator(SugarRequestInterface api, String module, String mix, int page, int batch){
+        this.api = api;
+        this.module = module;
+        this.page = page;
+        this.batch = batch;
+        List<String> names = new ArrayList<>();
+        List<Integer> shares = new ArrayList<>();
+        for(String pair : mix.split(",")){
+            String[] parts = pair.trim().split(":");
+            if(!Arrays.asList(METHODS).contains(parts[0]))
+                throw new IllegalArgumentException("Unknown method " + parts[0] + ", expected one of " +
+                        Arrays.toString(METHODS));
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            if(weight <= 0) continue;
+            names.add(parts[0]);
+            shares.add(weight);
+        }
+        if(names.isEmpty()) throw new IllegalArgumentException("The mix has no method");
+        methods = names.toArray(new String[0]);
+        weights = new int[methods.length];
+        for(int i = 0; i < methods.length; i++){
+            weights[i] = shares.get(i) + (i > 0 ? weights[i - 1] : 0);
+            latencies.put(methods[i], new LatencyHistogram());
+            errors.put(methods[i], new LongAdder());
+        }
+    }
+
+    /**
+     * Reads up to 1000 ids of the module for the get_entry, get_entries and set_entry requests to use
+     */
+    public void loadIds() throws IOException{
+        HashMap<String, String> data = new HashMap<>();
+        data.put("fields", "[\"id\"]");
+        data.put("max", "1000");
+        Result result = new Result();
+        api.getRecords(module, data, result);
+        Object converted = result.failure==null ? result.getJsonObjectResponse(ConversionType.LIST) : null;
+        if(!(converted instanceof JsonArray)) throw new IOException("Could not read the ids of " + module + ": " +
+                (result.failure!=null ? result.failure : result.call()));
+        for(JsonElement record : (JsonArray) converted) ids.add(record.getAsJsonObject().get("id").getAsString());
+        if(ids.isEmpty()) throw new IOException(module + " has no records");
+    }
+
+    /**
+     * Runs the workers, records nothing during the warmup
+     */
+    public void run(int concurrency, long warmup, long duration, TimeUnit unit) throws InterruptedException{
+        List<Thread> workers = new ArrayList<>();
+        for(int i = 0; i < concurrency; i++){
+            Thread worker = new Thread(this::work, "load-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        unit.sleep(warmup);
+        measuring = true;
+        long start = System.nanoTime();
+        unit.sleep(duration);
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        running = false;
+        for(Thread worker : workers) worker.join(TimeUnit.SECONDS.toMillis(30));
+        report(concurrency, elapsed);
+    }
+
+    private void work(){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while(running){
+            int pick = random.nextInt(weights[weights.length - 1]);
+            int index = 0;
+            while(pick >= weights[index]) index++;
+            String method = methods[index];
+            long start = System.nanoTime();
+            boolean ok;
+            try {
+                ok = send(method, random);
+            }catch (RuntimeException ex){
+                ok = false;
+            }
+            long nanos = System.nanoTime() - start;
+            if(!measuring) continue;
+            latencies.get(method).record(nanos);
+            overall.record(nanos);
+            if(!ok) errors.get(method).increment();
+        }
+    }
+
+    private boolean send(String method, ThreadLocalRandom random){
+        Result result = new Result();
+        HashMap<String, String> data = new HashMap<>();
+        switch (method){
+            case "get_entry":
+                data.put("id", randomId(random));
+                api.getRecord(module, data, result);
+                break;
+            case "get_entry_list":
+                data.put("offset", String.valueOf(random.nextInt(Math.max(1, ids.size()))));
+                data.put("max", String.valueOf(page));
+                api.getRecords(module, data, result);
+                break;
+            case "get_entries":
+                StringBuilder list = new StringBuilder("[");
+                for(int i = 0; i < batch; i++){
+                    list.append(i > 0 ? "," : "").append('"').append(randomId(random)).append('"');
+                }
+                data.put("ids", list.append(']').toString());
+                api.getMultipleRecords(module, data, result);
+                break;
+            case "set_entry":
+                data.put("id", randomId(random));
+                data.put("description", "Updated by the load generator at " + System.currentTimeMillis());
+                api.setRecord(module, data, result);
+                break;
+            default:
+                HashMap<String, String>[] inserts = newInserts(batch);
+                for(int i = 0; i < batch; i++){
+                    inserts[i] = new HashMap<>();
+                    inserts[i].put("name", "Load test " + random.nextInt(1000000));
+                    inserts[i].put("description", "Created by the load generator");
+                }
+                api.setRecords(module, data, inserts, result);
+                break;
+        }
+        return result.failure==null && result.call()!=null && !isError(result.call());
+    }
+
+    /**
+     * setRecords takes the records as an array, and a generic array can only be made unchecked
+     */
+    @SuppressWarnings("unchecked")
+    private static HashMap<String, String>[] newInserts(int size){
+        return (HashMap<String, String>[]) new HashMap<?, ?>[size];
+    }
+
+    private String randomId(ThreadLocalRandom random){
+        return ids.get(random.nextInt(ids.size()));
+    }
+
+    /**
+     * Sugar answers errors with {name:"", number:0, description:""}, records never start with a name
+     */
+    private static boolean isError(String body){
+        return body.startsWith("{\"name\"") || body.startsWith("<");
+    }
+
+    private void report(int concurrency, long elapsedNanos){
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%n%d workers, %.1f s measured, %.1f requests/s%n%n", concurrency, seconds,
+                overall.getCount() / seconds);
+        System.out.printf("%-15s %9s %9s %8s %9s %9s %9s %9s %9s%n", "method", "requests", "req/s", "errors",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for(Map.Entry<String, LatencyHistogram> entry : latencies.entrySet())
+            row(entry.getKey(), entry.getValue(), errors.get(entry.getKey()).sum(), seconds);
+        long failed = 0;
+        for(LongAdder count : errors.values()) failed += count.sum();
+        row("all", overall, failed, seconds);
+    }
+
+    private static void row(String name, LatencyHistogram histogram, long failed, double seconds){
+        System.out.printf("%-15s %9d %9.1f %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, histogram.getCount(),
+                histogram.getCount() / seconds, failed, histogram.getPercentileMillis(0.5),
+                histogram.getPercentileMillis(0.9), histogram.getPercentileMillis(0.99),
+                histogram.getPercentileMillis(0.999), histogram.getMaxMillis());
+    }
+
+    public static void main(String[] args) throws Exception{
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args){
+            int equals = arg.indexOf('=');
+            if(equals < 0) throw new IllegalArgumentException("Expected name=value, got " + arg);
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        String module = options.getOrDefault("module", "Accounts");
+        String url = options.getOrDefault("url", "");
+        StandInServer server = null;
+        if(url.isEmpty()){
+            server = new StandInServer(0, intOption(options, "threads", 16))
+                    .addModule(module, intOption(options, "records", 10000))
+                    .setLatency(intOption(options, "latency", 20), intOption(options, "jitter", 10),
+                            TimeUnit.MILLISECONDS)
+                    .setErrorRate(Double.parseDouble(options.getOrDefault("errorRate", "0")),
+                            intOption(options, "errorStatus", 503))
+                    .setCompression(Boolean.parseBoolean(options.getOrDefault("compression", "false")))
+                    .setBandwidth(Long.parseLong(options.getOrDefault("bandwidth", "0")))
+                    .start();
+            url = server.getUrl();
+        }
+        try {
+            SugarRequestInterface api = SugarAPI.getSugarAPIInstance(url, options.getOrDefault("username", "admin"),
+                    options.getOrDefault("password", "21232f297a57a5a743894a0e4a801fc3"));
+            LoadGenerator generator = new LoadGenerator(api, module,
+                    options.getOrDefault("mix", DEFAULT_MIX),
+                    intOption(options, "page", 20), intOption(options, "batch", 10));
+            generator.loadIds();
+            generator.run(intOption(options, "concurrency", 32), intOption(options, "warmup", 5),
+                    intOption(options, "duration", 30), TimeUnit.SECONDS);
+            HttpTransport transport = HttpTransport.getDefault();
+            System.out.printf("%nlimits: reads=%d writes=%d, shed: reads=%d writes=%d%n",
+                    transport.getReadLimiter().getLimit(), transport.getWriteLimiter().getLimit(),
+                    transport.getReadLimiter().getShed(), transport.getWriteLimiter().getShed());
+        }finally {
+            if(server!=null) server.stop();
+        }
+        System.exit(0);
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue){
+        String value = options.get(name);
+        return value==null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Keeps the failure of a request, the body stays on the response
+     */
+    private static class Result extends SugarResponse {
+        volatile String failure;
+
+        @Override
+        public void onFailed(String errorMessage) {
+            failure = errorMessage;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package StandIn;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ *     The where clauses and order_by the {@link StandInServer} understands: conditions of the form
+ *     <b>[table.]field op 'value'</b>, op being =, !=, &lt;&gt;, &gt;, &gt;=, &lt; or &lt;=, combined with AND, OR
+ *     and parentheses. Values are compared as strings, which orders sugar's dates correctly.
+ *     Anything else is taken as true, so an unsupported clause widens the result instead of failing the request.
+ * </p>
+ * Created on 17/10/26.
+ */
+class Query {
+
+    private static final Pattern CONDITION =
+            Pattern.compile("(?:\\w+\\.)?(\\w+)\\s*(=|!=|<>|>=|<=|>|<)\\s*'((?:[^']|'')*)'");
+    private static final Pattern KEYWORD = Pattern.compile("(?i)(AND|OR)(?=[\\s(])");
+    private static final Pattern UNKNOWN = Pattern.compile("(?i).+?(?=\\s+(?:AND|OR)[\\s(]|\\)|$)");
+
+    private final String text;
+    private int position;
+
+    private Query(String text){
+        this.text = text;
+    }
+
+    /**
+     * @param query {String} the query of a get_entry_list, null or empty for every record
+     * @return {Predicate} true for the records the query matches
+     */
+    static Predicate<Map<String, String>> parse(String query){
+        if(query==null || query.trim().isEmpty()) return record -> true;
+        Query parser = new Query(query);
+        Predicate<Map<String, String>> predicate = parser.or();
+        return parser.atEnd() ? predicate : record -> true;
+    }
+
+    /**
+     * @param orderBy {String} e.g "accounts.date_modified DESC, accounts.id"
+     * @return {Comparator} the order, null when orderBy is empty
+     */
+    static Comparator<Map<String, String>> order(String orderBy){
+        if(orderBy==null || orderBy.trim().isEmpty()) return null;
+        Comparator<Map<String, String>> order = null;
+        for(String key : orderBy.split(",")){
+            String[] parts = key.trim().split("\\s+");
+            if(parts[0].isEmpty()) continue;
+            String field = parts[0].substring(parts[0].indexOf('.') + 1);
+            Comparator<Map<String, String>> next = Comparator.comparing(record -> record.get(field),
+                    Comparator.nullsFirst(Comparator.<String>naturalOrder()));
+            if(parts.length > 1 && parts[1].equalsIgnoreCase("DESC")) next = next.reversed();
+            order = order==null ? next : order.thenComparing(next);
+        }
+        return order;
+    }
+
+    private Predicate<Map<String, String>> or(){
+        Predicate<Map<String, String>> predicate = and();
+        while(keyword("OR")) predicate = predicate.or(and());
+        return predicate;
+    }
+
+    private Predicate<Map<String, String>> and(){
+        Predicate<Map<String, String>> predicate = factor();
+        while(keyword("AND")) predicate = predicate.and(factor());
+        return predicate;
+    }
+
+    private Predicate<Map<String, String>> factor(){
+        skipSpaces();
+        if(position < text.length() && text.charAt(position)=='('){
+            position++;
+            Predicate<Map<String, String>> inner = or();
+            skipSpaces();
+            if(position < text.length() && text.charAt(position)==')') position++;
+            return inner;
+        }
+        Matcher condition = CONDITION.matcher(text).region(position, text.length());
+        if(condition.lookingAt()){
+            position = condition.end();
+            return condition(condition.group(1), condition.group(2), condition.group(3).replace("''", "'"));
+        }
+        Matcher unknown = UNKNOWN.matcher(text).region(position, text.length());
+        position = unknown.lookingAt() ? unknown.end() : text.length();
+        return record -> true;
+    }
+
+    private static Predicate<Map<String, String>> condition(String field, String operator, String value){
+        return record -> {
+            String actual = record.get(field);
+            int compared = actual==null ? -1 : actual.compareTo(value);
+            switch (operator){
+                case "=": return compared==0;
+                case "!=": case "<>": return compared!=0;
+                case ">": return compared > 0;
+                case ">=": return compared >= 0;
+                case "<": return compared < 0;
+                default: return compared <= 0;
+            }
+        };
+    }
+
+    private boolean keyword(String keyword){
+        skipSpaces();
+        Matcher matcher = KEYWORD.matcher(text).region(position, text.length());
+        if(!matcher.lookingAt() || !matcher.group(1).equalsIgnoreCase(keyword)) return false;
+        position = matcher.end();
+        return true;
+    }
+
+    private boolean atEnd(){
+        skipSpaces();
+        return position >= text.length();
+    }
+
+    private void skipSpaces(){
+        while(position < text.length() && Character.isWhitespace(text.charAt(position))) position++;
+    }
+}
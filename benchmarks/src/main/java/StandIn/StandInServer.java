@@ -0,0 +1,628 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package StandIn;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ *     An in-process stand-in for a SugarCRM v4_1 REST endpoint. It reads the same form encoded
+ *     method/input_type/response_type/rest_data body {@link PRequest.PRequest#post} sends and answers
+ *     login, get_entry, get_entries, get_entry_list, set_entry and set_entries the way sugar does,
+ *     over synthetic records held in memory.
+ * </p>
+ * <p>
+ *     Queries support what an integration usually sends, see {@link Query}: field comparisons combined with
+ *     AND, OR and parentheses, and an order_by of one or more fields with an optional ASC/DESC.
+ * </p>
+ * <p>
+ *     Latency and failures can be injected: every request waits the configured latency plus a random jitter,
+ *     and a share of the requests (or the next n) is answered with an HTTP error instead.
+ *     {@link #expireSessions()} makes every session invalid, as a sugar restart or session timeout does.
+ *     {@link #setBandwidth(long)} stands in for a slow link and {@link #setCompression(boolean)} for a server
+ *     that compresses its answers.
+ * </p>
+ * e.g.
+ * <pre>
+ *     StandInServer server = new StandInServer(0, 16).addModule("Accounts", 10000)
+ *             .setLatency(20, 10, TimeUnit.MILLISECONDS).setErrorRate(0.01, 503).start();
+ *     SugarRequestInterface api = SugarAPI.getSugarAPIInstance(server.getUrl(), "admin", md5Password);
+ *     ...
+ *     server.stop();
+ * </pre>
+ * Created on 17/10/26.
+ */
+public class StandInServer {
+
+    private static final String PATH = "/service/v4_1/rest.php";
+
+    static {
+        //the jdk server sends the headers and the body in separate segments, without TCP_NODELAY
+        //every answer waits out the client's delayed ack (~40ms) and that would swamp what is measured
+        if(System.getProperty("sun.net.httpserver.nodelay")==null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Module> modules = new ConcurrentHashMap<>();
+    private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+    private final AtomicInteger failNext = new AtomicInteger();
+    private volatile int failNextStatus = 503;
+    private volatile long latencyNanos;
+    private volatile long jitterNanos;
+    private volatile double errorRate;
+    private volatile int errorStatus = 503;
+    private volatile boolean compression;
+    private volatile long bytesPerSecond;
+
+    /**
+     * @param port {int} the port to listen on, 0 for any free port
+     * @param threads {int} the number of requests answered at the same time, like the php workers of a sugar host
+     */
+    public StandInServer(int port, int threads) throws IOException{
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "sugar-stand-in");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    /**
+     * Fills a module with synthetic records, see {@link #record(String, int, Random)} for the fields
+     * @param moduleName {String} e.g Accounts
+     * @param records {int} the number of records
+     * @return {StandInServer} this server
+     */
+    public StandInServer addModule(String moduleName, int records){
+        Module module = modules.computeIfAbsent(moduleName, Module::new);
+        Random random = new Random(moduleName.hashCode());
+        for(int i = 0; i < records; i++) module.put(record(moduleName, i, random));
+        return this;
+    }
+
+    /**
+     * @param latency {long} the time every request takes before it is answered
+     * @param jitter {long} a random extra time, up to this much
+     * @param unit {TimeUnit} the unit of latency and jitter
+     * @return {StandInServer} this server
+     */
+    public StandInServer setLatency(long latency, long jitter, TimeUnit unit){
+        this.latencyNanos = unit.toNanos(latency);
+        this.jitterNanos = unit.toNanos(jitter);
+        return this;
+    }
+
+    /**
+     * @param errorRate {double} the share of requests answered with an error, 0 to 1
+     * @param status {int} the HTTP status of the error, e.g 500, 502 or 503
+     * @return {StandInServer} this server
+     */
+    public StandInServer setErrorRate(double errorRate, int status){
+        this.errorRate = errorRate;
+        this.errorStatus = status;
+        return this;
+    }
+
+    /**
+     * @param compression {boolean} true to gzip (or deflate) the answers of clients that accept it, as apache's
+     *                    mod_deflate or php's zlib.output_compression do
+     * @return {StandInServer} this server
+     */
+    public StandInServer setCompression(boolean compression){
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Holds every answer back as long as sending it over a link this fast would take, on top of the latency
+     * @param bytesPerSecond {long} the speed of the link, 0 for no limit
+     * @return {StandInServer} this server
+     */
+    public StandInServer setBandwidth(long bytesPerSecond){
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Answers the next requests with an error, whatever the error rate
+     */
+    public StandInServer failNext(int count, int status){
+        this.failNextStatus = status;
+        failNext.set(count);
+        return this;
+    }
+
+    /**
+     * Drops every session, the next request of each client gets "Invalid Session ID"
+     */
+    public void expireSessions(){
+        sessions.clear();
+    }
+
+    public StandInServer start(){
+        server.start();
+        return this;
+    }
+
+    public void stop(){
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return {String} the rest endpoint to hand to {@link Impl.SugarAPI#getSugarAPIInstance(String)}
+     */
+    public String getUrl(){
+        return "http://localhost:" + server.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * @return {long} the number of requests received for the method, failed ones included
+     */
+    public long getRequestCount(String method){
+        AtomicLong count = requests.get(method);
+        return count==null ? 0 : count.get();
+    }
+
+    /**
+     * @return {int} the number of records of the module, deleted ones included
+     */
+    public int getRecordCount(String moduleName){
+        Module module = modules.get(moduleName);
+        return module==null ? 0 : module.size();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException{
+        try {
+            InputStream request = exchange.getRequestBody();
+            if("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")))
+                request = new GZIPInputStream(request);
+            Map<String, String> form = parseForm(request.readAllBytes());
+            String method = form.getOrDefault("method", "");
+            requests.computeIfAbsent(method, m -> new AtomicLong()).incrementAndGet();
+            pause();
+            int status = failure();
+            if(status!=0){
+                byte[] page = ("<html><body><h1>" + status + "</h1></body></html>").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/html");
+                exchange.sendResponseHeaders(status, page.length);
+                exchange.getResponseBody().write(page);
+                return;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+            String encoding = compression ?
+                    encodingFor(exchange.getRequestHeaders().getFirst("Accept-Encoding")) : null;
+            OutputStream encoded = "gzip".equals(encoding) ? new GZIPOutputStream(body, 8192) :
+                    "deflate".equals(encoding) ? new DeflaterOutputStream(body) : body;
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(encoded, StandardCharsets.UTF_8));
+            answer(method, parseRestData(form.get("rest_data")), writer);
+            writer.close();
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            if(encoding!=null) exchange.getResponseHeaders().set("Content-Encoding", encoding);
+            transfer(body.size());
+            exchange.sendResponseHeaders(200, body.size());
+            OutputStream out = exchange.getResponseBody();
+            body.writeTo(out);
+        }catch (RuntimeException ex){
+            byte[] page = String.valueOf(ex).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(500, page.length);
+            exchange.getResponseBody().write(page);
+        }finally {
+            exchange.close();
+        }
+    }
+
+    private static String encodingFor(String acceptEncoding){
+        if(acceptEncoding==null) return null;
+        String accepted = acceptEncoding.toLowerCase(Locale.ROOT);
+        if(accepted.contains("gzip")) return "gzip";
+        return accepted.contains("deflate") ? "deflate" : null;
+    }
+
+    private void transfer(long bytes){
+        long speed = bytesPerSecond;
+        if(speed <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(bytes * 1000000000L / speed);
+        }catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void pause(){
+        long nanos = latencyNanos + (jitterNanos > 0 ? ThreadLocalRandom.current().nextLong(jitterNanos + 1) : 0);
+        if(nanos <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int failure(){
+        if(failNext.getAndUpdate(n -> Math.max(0, n - 1)) > 0) return failNextStatus;
+        double rate = errorRate;
+        if(rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) return errorStatus;
+        return 0;
+    }
+
+    private void answer(String method, JsonObject restData, JsonWriter writer) throws IOException{
+        if(method.equals("login")){
+            login(writer);
+            return;
+        }
+        JsonElement session = restData.get("session");
+        if(session==null || !session.isJsonPrimitive() || !sessions.contains(session.getAsString())){
+            error(writer, "Invalid Session ID", 11, "The session ID is invalid");
+            return;
+        }
+        Module module = modules.get(string(restData, "module_name", ""));
+        if(module==null){
+            error(writer, "Module Does Not Exist", 20, "This module is not available on this server");
+            return;
+        }
+        switch (method){
+            case "get_entry": getEntry(module, restData, writer); break;
+            case "get_entries": getEntries(module, restData, writer); break;
+            case "get_entry_list": getEntryList(module, restData, writer); break;
+            case "set_entry": setEntry(module, restData, writer); break;
+            case "set_entries": setEntries(module, restData, writer); break;
+            default: error(writer, "Invalid Call", 10, "The method " + method + " is not supported"); break;
+        }
+    }
+
+    private void login(JsonWriter writer) throws IOException{
+        String session = UUID.randomUUID().toString().replace("-", "").substring(0, 26);
+        sessions.add(session);
+        writer.beginObject();
+        writer.name("id").value(session);
+        writer.name("module_name").value("Users");
+        writer.name("name_value_list").beginObject();
+        nameValue(writer, "user_id", "1");
+        nameValue(writer, "user_name", "admin");
+        nameValue(writer, "user_language", "en_us");
+        writer.endObject();
+        writer.endObject();
+    }
+
+    private void getEntry(Module module, JsonObject restData, JsonWriter writer) throws IOException{
+        String id = string(restData, "id", "");
+        Set<String> fields = selectFields(restData);
+        writer.beginObject();
+        writer.name("entry_list").beginArray();
+        entry(writer, module, id, module.get(id), fields);
+        writer.endArray();
+        writer.name("relationship_list").beginArray().endArray();
+        writer.endObject();
+    }
+
+    private void getEntries(Module module, JsonObject restData, JsonWriter writer) throws IOException{
+        Set<String> fields = selectFields(restData);
+        writer.beginObject();
+        writer.name("entry_list").beginArray();
+        JsonElement ids = restData.get("ids");
+        if(ids!=null && ids.isJsonArray()){
+            for(JsonElement id : ids.getAsJsonArray())
+                entry(writer, module, id.getAsString(), module.get(id.getAsString()), fields);
+        }
+        writer.endArray();
+        writer.name("relationship_list").beginArray().endArray();
+        writer.endObject();
+    }
+
+    private void getEntryList(Module module, JsonObject restData, JsonWriter writer) throws IOException{
+        int offset = (int) number(restData, "offset", 0);
+        int max = (int) number(restData, "max_results", 20);
+        if(max <= 0) max = 20;
+        boolean deleted = number(restData, "deleted", 0)==1;
+        List<Map<String, String>> page = new ArrayList<>();
+        int total = module.select(string(restData, "query", ""), deleted, string(restData, "order_by", ""),
+                offset, max, page);
+        Set<String> fields = selectFields(restData);
+        writer.beginObject();
+        writer.name("result_count").value(page.size());
+        writer.name("total_count").value(String.valueOf(total));
+        writer.name("next_offset").value(offset + page.size());
+        writer.name("entry_list").beginArray();
+        for(Map<String, String> record : page) row(writer, module, record, fields);
+        writer.endArray();
+        writer.name("relationship_list").beginArray().endArray();
+        writer.endObject();
+    }
+
+    private void setEntry(Module module, JsonObject restData, JsonWriter writer) throws IOException{
+        Map<String, String> record = module.save(nameValues(restData.get("name_value_list")));
+        writer.beginObject();
+        writer.name("id").value(record.get("id"));
+        writer.name("entry_list").beginObject();
+        for(Map.Entry<String, String> field : record.entrySet()) nameValue(writer, field.getKey(), field.getValue());
+        writer.endObject();
+        writer.endObject();
+    }
+
+    private void setEntries(Module module, JsonObject restData, JsonWriter writer) throws IOException{
+        writer.beginObject();
+        writer.name("ids").beginArray();
+        JsonElement lists = restData.get("name_value_list");
+        if(lists!=null && lists.isJsonArray()){
+            for(JsonElement list : lists.getAsJsonArray()) writer.value(module.save(nameValues(list)).get("id"));
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    /**
+     * Writes a record the way sugar does, or the warning sugar answers for an unknown or deleted id
+     */
+    private static void entry(JsonWriter writer, Module module, String id, Map<String, String> record,
+                              Set<String> fields) throws IOException{
+        if(record!=null && !"1".equals(record.get("deleted"))){
+            row(writer, module, record, fields);
+            return;
+        }
+        writer.beginObject();
+        writer.name("id").value(id);
+        writer.name("module_name").value(module.name);
+        writer.name("name_value_list").beginObject();
+        nameValue(writer, "warning", "Access to this object is denied since it has been deleted or does not exist");
+        nameValue(writer, "deleted", "1");
+        writer.endObject();
+        writer.endObject();
+    }
+
+    /**
+     * Writes the fields of a record as they are, get_entry_list hands deleted records over this way too
+     */
+    private static void row(JsonWriter writer, Module module, Map<String, String> record, Set<String> fields)
+            throws IOException{
+        writer.beginObject();
+        writer.name("id").value(record.get("id"));
+        writer.name("module_name").value(module.name);
+        writer.name("name_value_list").beginObject();
+        for(Map.Entry<String, String> field : record.entrySet())
+            if(fields==null || fields.contains(field.getKey())) nameValue(writer, field.getKey(), field.getValue());
+        writer.endObject();
+        writer.endObject();
+    }
+
+    private static void nameValue(JsonWriter writer, String name, String value) throws IOException{
+        writer.name(name).beginObject();
+        writer.name("name").value(name);
+        writer.name("value").value(value==null ? "" : value);
+        writer.endObject();
+    }
+
+    private static void error(JsonWriter writer, String name, int number, String description) throws IOException{
+        writer.beginObject();
+        writer.name("name").value(name);
+        writer.name("number").value(number);
+        writer.name("description").value(description);
+        writer.endObject();
+    }
+
+    /**
+     * set_entry takes [{name:"", value:""}, ...] or {field:{name:"", value:""}, ...}
+     */
+    private static Map<String, String> nameValues(JsonElement list){
+        Map<String, String> values = new LinkedHashMap<>();
+        if(list==null) return values;
+        Iterable<JsonElement> pairs = list.isJsonArray() ? list.getAsJsonArray() :
+                list.isJsonObject() ? valuesOf(list.getAsJsonObject()) : Collections.<JsonElement>emptyList();
+        for(JsonElement pair : pairs){
+            if(!pair.isJsonObject()) continue;
+            JsonObject object = pair.getAsJsonObject();
+            JsonElement name = object.get("name");
+            JsonElement value = object.get("value");
+            if(name==null || name.isJsonNull()) continue;
+            values.put(name.getAsString(), value==null || value.isJsonNull() ? null : value.getAsString());
+        }
+        return values;
+    }
+
+    private static List<JsonElement> valuesOf(JsonObject object){
+        List<JsonElement> values = new ArrayList<>();
+        for(Map.Entry<String, JsonElement> entry : object.entrySet()) values.add(entry.getValue());
+        return values;
+    }
+
+    /**
+     * @return {Set} the select_fields, null for every field
+     */
+    private static Set<String> selectFields(JsonObject restData){
+        JsonElement fields = restData.get("select_fields");
+        if(fields==null || !fields.isJsonArray() || fields.getAsJsonArray().size()==0) return null;
+        Set<String> names = new HashSet<>();
+        names.add("id");
+        for(JsonElement field : fields.getAsJsonArray()) names.add(field.getAsString());
+        return names;
+    }
+
+    private static String string(JsonObject restData, String name, String defaultValue){
+        JsonElement value = restData.get(name);
+        return value==null || value.isJsonNull() || !value.isJsonPrimitive() ? defaultValue : value.getAsString();
+    }
+
+    private static long number(JsonObject restData, String name, long defaultValue){
+        String value = string(restData, name, null);
+        if(value==null) return defaultValue;
+        if(value.equals("true")) return 1;
+        if(value.equals("false")) return 0;
+        try {
+            return Long.parseLong(value.trim());
+        }catch (NumberFormatException ex){
+            return defaultValue;
+        }
+    }
+
+    private static JsonObject parseRestData(String restData){
+        if(restData==null || restData.isEmpty()) return new JsonObject();
+        JsonElement parsed = new JsonParser().parse(restData);
+        return parsed.isJsonObject() ? parsed.getAsJsonObject() : new JsonObject();
+    }
+
+    private static Map<String, String> parseForm(byte[] body) throws IOException{
+        Map<String, String> form = new HashMap<>();
+        String encoded = new String(body, StandardCharsets.US_ASCII);
+        if(encoded.isEmpty()) return form;
+        for(String pair : encoded.split("&")){
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            form.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return form;
+    }
+
+    private static String now(){
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+
+    /**
+     * The synthetic records: the fields most modules share plus a few Accounts ones, with the value
+     * lengths and repetition of a real export. date_modified spreads over 2015 and 2016.
+     */
+    private static Map<String, String> record(String moduleName, int i, Random random){
+        Map<String, String> record = new LinkedHashMap<>();
+        record.put("id", String.format("%08x-%04x-11e6-9d3a-%012x", i, moduleName.hashCode() & 0xffff,
+                0x0242ac120000L + i));
+        record.put("name", moduleName + " " + i);
+        String entered = String.format("2015-%02d-%02d %02d:%02d:%02d", 1 + random.nextInt(12),
+                1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60));
+        record.put("date_entered", entered);
+        record.put("date_modified", entered.replace("2015-", random.nextBoolean() ? "2015-" : "2016-"));
+        record.put("modified_user_id", "1");
+        record.put("created_by", "1");
+        record.put("description", random.nextInt(3)==0 ? "" : "Synthetic record " + i + " of " + moduleName +
+                ", created for load testing.");
+        record.put("deleted", "0");
+        record.put("assigned_user_id", "seed_user_" + random.nextInt(8));
+        record.put("account_type", random.nextBoolean() ? "Customer" : "Prospect");
+        record.put("industry", new String[]{"Banking", "Energy", "Retail", "Technology"}[random.nextInt(4)]);
+        record.put("phone_office", "+234 " + (700 + random.nextInt(200)) + " " + (1000000 + random.nextInt(8999999)));
+        record.put("email1", "contact" + i + "@example.com");
+        record.put("billing_address_city", new String[]{"Lagos", "Abuja", "Kano", "Enugu"}[random.nextInt(4)]);
+        return record;
+    }
+
+    /**
+     * The records of one module in insertion order, which is the order get_entry_list returns without order_by
+     */
+    private static class Module {
+        final String name;
+        private final Map<String, Map<String, String>> byId = new HashMap<>();
+        private final List<Map<String, String>> ordered = new ArrayList<>();
+
+        Module(String name){
+            this.name = name;
+        }
+
+        synchronized int size(){
+            return ordered.size();
+        }
+
+        synchronized Map<String, String> get(String id){
+            Map<String, String> record = byId.get(id);
+            return record==null ? null : new LinkedHashMap<>(record);
+        }
+
+        synchronized void put(Map<String, String> record){
+            byId.put(record.get("id"), record);
+            ordered.add(record);
+        }
+
+        /**
+         * Inserts a record or updates the fields given, as set_entry does
+         * @return {Map} a copy of the saved record
+         */
+        synchronized Map<String, String> save(Map<String, String> values){
+            String id = values.get("id");
+            Map<String, String> record = id==null || id.isEmpty() ? null : byId.get(id);
+            String now = now();
+            if(record==null){
+                record = new LinkedHashMap<>();
+                record.put("id", id==null || id.isEmpty() ? UUID.randomUUID().toString() : id);
+                record.put("date_entered", now);
+                record.put("deleted", "0");
+                put(record);
+            }
+            for(Map.Entry<String, String> value : values.entrySet())
+                if(!value.getKey().equals("id")) record.put(value.getKey(), value.getValue());
+            record.put("date_modified", now);
+            return new LinkedHashMap<>(record);
+        }
+
+        /**
+         * Copies one page of the matching records into page. Like sugar's list query, deleted picks either the
+         * live records or only the deleted ones, never both
+         * @return {int} the number of matching records
+         */
+        synchronized int select(String query, boolean deleted, String orderBy, int offset, int max,
+                                List<Map<String, String>> page){
+            Predicate<Map<String, String>> where = Query.parse(query);
+            List<Map<String, String>> matching = new ArrayList<>();
+            for(Map<String, String> record : ordered){
+                if("1".equals(record.get("deleted"))!=deleted) continue;
+                if(where.test(record)) matching.add(record);
+            }
+            Comparator<Map<String, String>> order = Query.order(orderBy);
+            if(order!=null) matching.sort(order);
+            for(int i = Math.max(0, offset); i < Math.min(matching.size(), offset + max); i++)
+                page.add(new LinkedHashMap<>(matching.get(i)));
+            return matching.size();
+        }
+    }
+}
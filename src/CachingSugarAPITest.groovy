@@ -0,0 +1,94 @@
+import Impl.CachingSugarAPI
+import Impl.RecordCache
+import Impl.SugarAPI
+import Impl.SugarResponse
+import Interfaces.SugarRequestInterface
+import com.google.gson.JsonParser
+import com.sun.net.httpserver.HttpServer
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Reads through the cache from a local server that answers every record with the session that asked for it,
+ * so a response served to the wrong session shows.
+ * Created on 17/10/26.
+ */
+class CachingSugarAPITest extends GroovyTestCase {
+
+    HttpServer server
+    AtomicInteger calls = new AtomicInteger()
+    SugarRequestInterface api
+
+    void setUp() {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+        server.createContext("/service/v4_1/rest.php") { exchange ->
+            calls.incrementAndGet()
+            def form = exchange.requestBody.getText("UTF-8").split("&").collectEntries {
+                def pair = it.split("=", 2)
+                [(URLDecoder.decode(pair[0], "UTF-8")): URLDecoder.decode(pair[1], "UTF-8")]
+            }
+            def restData = new JsonParser().parse(form["rest_data"]).asJsonObject
+            String session = restData.get("session").isJsonNull() ? "nobody" : restData.get("session").asString
+            def ids = restData.has("ids") ? restData.getAsJsonArray("ids")*.asString : [restData.get("id").asString]
+            def entries = ids.collect {
+                "{\"id\":\"$it\",\"module_name\":\"Accounts\",\"name_value_list\":" +
+                        "{\"name\":{\"name\":\"name\",\"value\":\"seen by $session\"}}}"
+            }
+            byte[] body = "{\"entry_list\":[${entries.join(",")}],\"relationship_list\":[]}".getBytes("UTF-8")
+            exchange.sendResponseHeaders(200, body.length)
+            exchange.responseBody.write(body)
+            exchange.close()
+        }
+        server.start()
+        api = SugarAPI.getSugarAPIInstance("http://localhost:${server.address.port}/service/v4_1/rest.php")
+    }
+
+    void tearDown() {
+        server.stop(0)
+    }
+
+    private static String names(SugarRequestInterface caching, Map<String, String> data) {
+        def callback = new SugarResponse()
+        if (data.ids) caching.getMultipleRecords("Accounts", data as HashMap, callback)
+        else caching.getRecord("Accounts", data as HashMap, callback)
+        callback.jsonResponseData.getAsJsonArray("entry_list").collect {
+            it.asJsonObject.getAsJsonObject("name_value_list").getAsJsonObject("name").get("value").asString
+        }.join(",")
+    }
+
+    void testSwitchingTheDelegatesSessionNeverServesThePreviousUser() {
+        def caching = new CachingSugarAPI(api, new RecordCache(100, 0, TimeUnit.SECONDS))
+        caching.setSessionID("alice")
+        assertEquals("seen by alice", names(caching, [id: "1"]))
+        assertEquals("seen by alice", names(caching, [id: "1"]))
+        assertEquals(1, calls.get())
+
+        caching.setSessionID("bob")
+        assertEquals("seen by bob", names(caching, [id: "1"]))
+        assertEquals(2, calls.get())
+        assertEquals("seen by bob,seen by bob", names(caching, [ids: '["1","2"]']))
+        assertEquals(3, calls.get())
+
+        assertEquals("seen by alice", names(caching, [id: "1", session: "alice"]))
+        assertEquals("seen by alice,seen by alice", names(caching, [ids: '["1","2"]', session: "alice"]))
+        assertEquals(4, calls.get())
+    }
+
+    void testNoSessionYetBypassesTheCache() {
+        def caching = new CachingSugarAPI(api, new RecordCache(100, 0, TimeUnit.SECONDS))
+        names(caching, [id: "1"])
+        names(caching, [id: "1"])
+        assertEquals(2, calls.get())
+        assertEquals(0, caching.cache.size())
+    }
+
+    void testSharedCacheServesEverySession() {
+        def caching = new CachingSugarAPI(api, new RecordCache(100, 0, TimeUnit.SECONDS), true)
+        caching.setSessionID("alice")
+        assertEquals("seen by alice", names(caching, [id: "1"]))
+        caching.setSessionID("bob")
+        assertEquals("seen by alice", names(caching, [id: "1"]))
+        assertEquals(1, calls.get())
+    }
+}
@@ -0,0 +1,121 @@
+import Impl.DeltaSync
+import Impl.EntryListPage
+import Impl.ForwardingSugarAPI
+import Interfaces.ChangeHandler
+import Interfaces.RecordHandler
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Syncs from a fake get_entry_list that filters on deleted the way sugar's list query does: deleted=0 returns
+ * the live records only and deleted=1 the deleted ones only.
+ * Created on 17/10/26.
+ */
+class DeltaSyncTest extends GroovyTestCase {
+
+    Path directory
+    List<Map<String, String>> table = []
+    Map<String, Map<String, String>> copy = [:]
+    List<String> requestedDeleted = []
+    DeltaSync sync
+
+    void setUp() {
+        directory = Files.createTempDirectory("sync")
+        def api = new ForwardingSugarAPI(null) {
+            @Override
+            EntryListPage streamRecords(String moduleName, HashMap<String, String> data, RecordHandler handler) {
+                list(data, handler)
+            }
+        }
+        sync = new DeltaSync(api, directory).setPageSize(2)
+    }
+
+    void tearDown() {
+        directory.toFile().deleteDir()
+    }
+
+    private EntryListPage list(HashMap<String, String> data, RecordHandler handler) {
+        requestedDeleted << data.deleted
+        def position = data.query =~ /date_modified > '([^']*)' OR \(accounts\.date_modified = '[^']*' AND accounts\.id > '([^']*)'\)/
+        String watermark = position.find() ? position.group(1) : null
+        String lastId = watermark == null ? null : position.group(2)
+        def matching = table.findAll { it.deleted == data.deleted }
+                .findAll { watermark == null || it.date_modified > watermark ||
+                        (it.date_modified == watermark && it.id > lastId) }
+                .sort { a, b -> a.date_modified <=> b.date_modified ?: a.id <=> b.id }
+        matching.take(data.max as int).each { handler.onRecord(new LinkedHashMap<>(it)) }
+        EntryListPage page = new EntryListPage()
+        page.totalCount = matching.size()
+        page
+    }
+
+    private void write(String id, String modified, String deleted, String name) {
+        table.removeAll { it.id == id }
+        table << [id: id, date_modified: modified, deleted: deleted, name: name]
+    }
+
+    private DeltaSync.Result syncAccounts() {
+        sync.sync("Accounts", new HashMap<String, String>(), new ChangeHandler() {
+            @Override
+            void onChanged(Map<String, String> record) {
+                copy[record.id] = record
+            }
+
+            @Override
+            void onDeleted(String id, Map<String, String> record) {
+                copy.remove(id)
+            }
+
+            @Override
+            void onFailed(String errorMessage) {
+                fail(errorMessage)
+            }
+        })
+    }
+
+    void testChangesAndDeletionsComeFromTheirOwnPass() {
+        write("a", "2016-01-01 00:00:00", "0", "A")
+        write("b", "2016-01-01 00:00:00", "0", "B")
+        write("c", "2016-01-02 00:00:00", "0", "C")
+        write("d", "2016-01-03 00:00:00", "1", "D")
+        DeltaSync.Result first = syncAccounts()
+        assertTrue(first.complete)
+        assertEquals(3L, first.changed)
+        assertEquals(1L, first.deleted)
+        assertEquals(["a", "b", "c"] as Set, copy.keySet())
+        assertEquals(["0", "1"] as Set, requestedDeleted as Set)
+
+        //changes made after the newest tombstone must still be read
+        write("a", "2016-01-04 00:00:00", "0", "A2")
+        write("e", "2016-01-04 00:00:00", "0", "E")
+        write("b", "2016-01-05 00:00:00", "1", "B")
+        DeltaSync.Result second = syncAccounts()
+        assertTrue(second.complete)
+        assertEquals(2L, second.changed)
+        assertEquals(1L, second.deleted)
+        assertEquals(["a", "c", "e"] as Set, copy.keySet())
+        assertEquals("A2", copy.a.name)
+        assertEquals("2016-01-04 00:00:00", second.checkpoint.watermark)
+        assertEquals("e", second.checkpoint.lastId)
+        assertEquals("2016-01-05 00:00:00", second.deletionCheckpoint.watermark)
+
+        DeltaSync.Result third = syncAccounts()
+        assertEquals(0L, third.changed)
+        assertEquals(0L, third.deleted)
+    }
+
+    void testResetDropsBothCheckpoints() {
+        write("a", "2016-01-01 00:00:00", "0", "A")
+        write("b", "2016-01-02 00:00:00", "1", "B")
+        syncAccounts()
+        assertNotNull(sync.getCheckpoint("Accounts"))
+        assertNotNull(sync.getDeletionCheckpoint("Accounts"))
+        sync.resetCheckpoint("Accounts")
+        assertNull(sync.getCheckpoint("Accounts"))
+        assertNull(sync.getDeletionCheckpoint("Accounts"))
+        copy.clear()
+        assertEquals(1L, syncAccounts().changed)
+        assertEquals(["a"] as Set, copy.keySet())
+    }
+}
@@ -0,0 +1,151 @@
+import Impl.SugarAPI
+import PRequest.FormEncoder
+import PRequest.PRequest
+import com.google.gson.JsonArray
+import com.google.gson.JsonObject
+import com.google.gson.JsonPrimitive
+
+/**
+ * The form body SugarAPI streams into a FormEncoder must be byte for byte what URLEncoder and the old
+ * HashMap based PRequest.buildParams produce for the same rest_data Json.
+ * Created on 17/10/26.
+ */
+class FormEncoderTest extends GroovyTestCase {
+
+    static final List<String> VALUES = ["plain", "with space", "star*", "tilde~", "back\\slash", "a&b=c+d%e",
+            "quote\"s and 'single'", "caf\u00e9", "\u4e2d\u6587", "emoji \ud83d\ude00", "dot.dash-under_score",
+            "new\nline\ttab", "", "/?#[]@!\$(),;:"]
+
+    SugarAPI api = SugarAPI.getSugarAPIInstance("http://localhost/service/v4_1/rest.php") as SugarAPI
+
+    void testFieldMatchesUrlEncoder() {
+        VALUES.each { value ->
+            String encoded = new FormEncoder().field("k", value).toString()
+            assertEquals(value, "k=" + URLEncoder.encode(value, "UTF-8"), encoded)
+        }
+    }
+
+    void testValueWriterMatchesUrlEncoderWhenWrittenCharByChar() {
+        VALUES.each { value ->
+            FormEncoder encoder = new FormEncoder(16)
+            Writer writer = encoder.valueWriter("k")
+            value.each { writer.write(it as String) }//surrogate pairs arrive split in two writes
+            assertEquals(value, "k=" + URLEncoder.encode(value, "UTF-8"), encoder.toString())
+            assertEquals(value, encoder.toString(), new String(encoder.toByteArray(), "US-ASCII"))
+        }
+    }
+
+    void testLoginMatchesBuildParams() {
+        JsonObject auth = new JsonObject()
+        auth.addProperty("user_name", "admin \u00e9*~")
+        auth.addProperty("password", "p\\ss word")
+        JsonObject restData = new JsonObject()
+        restData.add("user_auth", auth)
+        assertSameBody("login", restData, api.buildSugarData("login",
+                api.buildLoginParams("admin \u00e9*~", "p\\ss word"), null))
+    }
+
+    void testGetEntryMatchesBuildParams() {
+        VALUES.each { value ->
+            HashMap<String, String> data = [id: value, fields: '["id","name"]'] as HashMap
+            JsonObject restData = header("sess" + value)
+            restData.addProperty("id", value)
+            restData.add("select_fields", array("id", "name"))
+            assertSameBody("get_entry", restData, build("get_entry", SugarAPI.GET_ENTRY, data, null, "sess" + value))
+        }
+    }
+
+    void testGetEntriesMatchesBuildParams() {
+        VALUES.each { value ->
+            JsonArray ids = array(value, "2")
+            HashMap<String, String> data = [ids: ids.toString(), fields: '["id","name"]'] as HashMap
+            JsonObject restData = header("s1")
+            restData.add("ids", ids)
+            restData.add("select_fields", array("id", "name"))
+            restData.addProperty("link_name_to_fields_array", "")
+            restData.addProperty("track_view", "false")
+            assertSameBody("get_entries", restData, build("get_entries", SugarAPI.GET_ENTRIES, data, null, "s1"))
+        }
+    }
+
+    void testGetEntryListMatchesBuildParams() {
+        VALUES.each { value ->
+            HashMap<String, String> data = [query: "accounts.name like '" + value + "%'", order_by: value,
+                    offset: "20", fields: '["id","name"]', extras: '[{"name":"contacts","value":["id"]}]',
+                    max: "5", deleted: "0", favorites: "false"] as HashMap
+            JsonObject link = new JsonObject()
+            link.addProperty("name", "contacts")
+            link.add("value", array("id"))
+            JsonArray links = new JsonArray()
+            links.add(link)
+            JsonObject restData = header("s1")
+            restData.addProperty("query", data.query)
+            restData.addProperty("order_by", value)
+            restData.addProperty("offset", "20")
+            restData.add("select_fields", array("id", "name"))
+            restData.add("link_name_to_fields_array", links)
+            restData.addProperty("max_results", "5")
+            restData.addProperty("deleted", "0")
+            restData.addProperty("favorites", "false")
+            assertSameBody("get_entry_list", restData,
+                    build("get_entry_list", SugarAPI.GET_ENTRY_LIST, data, null, "s1"))
+        }
+    }
+
+    void testSetEntryMatchesBuildParams() {
+        VALUES.each { value ->
+            HashMap<String, String> data = [id: "1", name: value, description: value + "!"] as HashMap
+            JsonObject restData = header("s1")
+            restData.add("name_value_list", nameValueList(data))
+            assertSameBody("set_entry", restData, build("set_entry", SugarAPI.SET_ENTRY, data, null, "s1"))
+        }
+    }
+
+    void testSetEntriesMatchesBuildParams() {
+        HashMap<String, String>[] inserts = VALUES.collect { [name: it, industry: it + "*"] as HashMap } as HashMap[]
+        JsonArray lists = new JsonArray()
+        inserts.each { lists.add(nameValueList(it)) }
+        JsonObject restData = header("s1")
+        restData.add("name_value_list", lists)
+        assertSameBody("set_entries", restData,
+                build("set_entries", SugarAPI.SET_ENTRIES, [session: "s1"] as HashMap, inserts, "s1"))
+    }
+
+    private FormEncoder build(String method, int type, HashMap<String, String> data, HashMap<String, String>[] inserts,
+                              String session) {
+        api.buildSugarData(method, api.buildSugarParams(type, "Accounts", data, inserts), session)
+    }
+
+    /**
+     * The body the HashMap based post data of the old SugarAPI was encoded to
+     */
+    private static void assertSameBody(String method, JsonObject restData, FormEncoder encoded) {
+        HashMap<String, String> post = [method: method, input_type: "JSON", response_type: "JSON",
+                rest_data: restData.toString()] as HashMap
+        assertEquals(PRequest.buildParams(post), encoded.toString())
+    }
+
+    private static JsonObject header(String session) {
+        JsonObject restData = new JsonObject()
+        restData.addProperty("session", session)
+        restData.addProperty("module_name", "Accounts")
+        restData
+    }
+
+    private static JsonArray array(String... values) {
+        JsonArray array = new JsonArray()
+        values.each { array.add(new JsonPrimitive(it)) }
+        array
+    }
+
+    private static JsonArray nameValueList(Map<String, String> fields) {
+        JsonArray list = new JsonArray()
+        fields.each { name, value ->
+            JsonObject field = new JsonObject()
+            field.addProperty("name", name)
+            field.addProperty("value", value)
+            list.add(field)
+        }
+        list
+    }
+}
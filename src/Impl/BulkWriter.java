@@ -0,0 +1,241 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.SugarRequestInterface;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ *     Writes any number of records through set_entries without holding them all in memory.
+ *     Records are pulled from the caller's iterator into batches bounded by a record count and an approximate
+ *     body size, and up to <b>maxInFlight</b> batches are sent at the same time. When every slot is taken the
+ *     writer stops pulling from the iterator until a batch completes, so a fast producer is held back instead
+ *     of the batches piling up on the heap.
+ * </p>
+ * <p>
+ *     The {@link Result} maps sugar's ids back to the position of each record in the input, failed records are
+ *     listed with the reason their batch failed.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class BulkWriter {
+
+    //"name" and "value" keys, quotes, braces and their url encoding around every field
+    private static final int FIELD_OVERHEAD = 40;
+
+    private final SugarRequestInterface api;
+    private final int maxBatchRecords;
+    private final int maxBatchBytes;
+    private final int maxInFlight;
+
+    /**
+     * @param api {SugarRequestInterface} the api used to send set_entries
+     * @param maxBatchRecords {int} the most records sent in one set_entries call
+     * @param maxBatchBytes {int} the approximate largest encoded body of one call
+     * @param maxInFlight {int} the number of batches sent at the same time
+     */
+    public BulkWriter(@NotNull SugarRequestInterface api, int maxBatchRecords, int maxBatchBytes, int maxInFlight){
+        if(maxBatchRecords < 1 || maxBatchBytes < 1 || maxInFlight < 1)
+            throw new IllegalArgumentException("Batch limits and maxInFlight must be at least 1");
+        this.api = api;
+        this.maxBatchRecords = maxBatchRecords;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public Result write(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                        @NotNull Stream<? extends Map<String, String>> records) throws InterruptedException {
+        return write(moduleName, data, records.iterator());
+    }
+
+    /**
+     * Writes every record the iterator yields and waits for the last batch to complete
+     * @param moduleName {String} The name of the module to write to
+     * @param data {HashMap} the post data shared by every batch, e.g the <b>session</b>
+     * @param records {Iterator} the records, a record holding an <b>id</b> updates that record
+     * @return {Result} the ids and failures by input position
+     * @throws InterruptedException when the calling thread is interrupted while waiting for a free slot
+     */
+    public Result write(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                        @NotNull Iterator<? extends Map<String, String>> records) throws InterruptedException {
+        Result result = new Result();
+        Semaphore slots = new Semaphore(maxInFlight);
+        List<HashMap<String, String>> batch = new ArrayList<>();
+        int batchBytes = 0;
+        int index = 0;
+        int batchStart = 0;
+        while (records.hasNext()){
+            Map<String, String> record = records.next();
+            int size = estimateSize(record);
+            if(!batch.isEmpty() && (batch.size() >= maxBatchRecords || batchBytes + size > maxBatchBytes)){
+                send(moduleName, data, batch, batchStart, slots, result);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+                batchStart = index;
+            }
+            batch.add(record instanceof HashMap ? (HashMap<String, String>) record : new HashMap<>(record));
+            batchBytes += size;
+            index++;
+        }
+        if(!batch.isEmpty()) send(moduleName, data, batch, batchStart, slots, result);
+        slots.acquire(maxInFlight);//every batch has completed once all the slots are back
+        slots.release(maxInFlight);
+        result.total = index;
+        return result;
+    }
+
+    private void send(String moduleName, HashMap<String, String> data, List<HashMap<String, String>> batch,
+                      int start, Semaphore slots, Result result) throws InterruptedException {
+        slots.acquire();
+        HashMap<String, String>[] inserts = toArray(batch);
+        String[] body = new String[1];
+        SugarResponse response = new SugarResponse(){
+            @Override
+            public void onSuccessful(String responseData) {
+                body[0] = responseData;
+            }
+        };
+        try {
+            api.setRecordsAsync(moduleName, data, inserts, response).whenComplete((r, error) -> {
+                try {
+                    if(error!=null) result.failBatch(start, inserts.length,
+                            String.valueOf(error.getCause()!=null ? error.getCause() : error));
+                    else collect(body[0], start, inserts.length, result);
+                }finally {
+                    slots.release();
+                }
+            });
+        }catch (RuntimeException ex){
+            result.failBatch(start, inserts.length, ex.toString());
+            slots.release();
+        }
+    }
+
+    /**
+     * setRecords takes the records as an array, and a generic array can only be made unchecked
+     */
+    @SuppressWarnings("unchecked")
+    private static HashMap<String, String>[] toArray(List<HashMap<String, String>> batch){
+        return batch.toArray((HashMap<String, String>[]) new HashMap<?, ?>[0]);
+    }
+
+    /**
+     * set_entries answers {ids:[...]} in the order the records were sent
+     */
+    private static void collect(String body, int start, int count, Result result){
+        JsonObject responseObject;
+        try {
+            responseObject = new JsonParser().parse(body).getAsJsonObject();
+        }catch (RuntimeException ex){
+            result.failBatch(start, count, "Invalid Json Response : " + body);
+            return;
+        }
+        if(!responseObject.has("ids") || !responseObject.get("ids").isJsonArray()){
+            String error = responseObject.has("name") ? responseObject.get("name").getAsString() : body;
+            if(responseObject.has("description")) error += ": " + responseObject.get("description").getAsString();
+            result.failBatch(start, count, error);
+            return;
+        }
+        JsonArray ids = responseObject.getAsJsonArray("ids");
+        for(int i = 0; i < count; i++){
+            JsonElement id = i < ids.size() ? ids.get(i) : null;
+            if(id==null || id.isJsonNull() || id.getAsString().isEmpty() || id.getAsString().equals("-1"))
+                result.fail(start + i, "Sugar returned no id for the record");
+            else result.succeed(start + i, id.getAsString());
+        }
+    }
+
+    private static int estimateSize(Map<String, String> record){
+        int size = 0;
+        for(Map.Entry<String, String> field : record.entrySet()){
+            size += FIELD_OVERHEAD + field.getKey().length();
+            if(field.getValue()!=null) size += field.getValue().length();
+        }
+        return size;
+    }
+
+    /**
+     * The ids sugar gave the records and the records that failed, both by input position
+     */
+    public static class Result {
+        private final Map<Integer, String> ids = new TreeMap<>();
+        private final Map<Integer, String> failures = new TreeMap<>();
+        private int total;
+
+        synchronized void succeed(int index, String id){
+            ids.put(index, id);
+        }
+
+        synchronized void fail(int index, String reason){
+            failures.put(index, reason);
+        }
+
+        synchronized void failBatch(int start, int count, String reason){
+            for(int i = start; i < start + count; i++) failures.put(i, reason);
+        }
+
+        /**
+         * @param index {int} the position of the record in the input
+         * @return {String} the id sugar created or updated, null when the record failed
+         */
+        public synchronized String getId(int index){
+            return ids.get(index);
+        }
+
+        /**
+         * @return {Map} position to id of every record that was written
+         */
+        public synchronized Map<Integer, String> getIds() {
+            return new TreeMap<>(ids);
+        }
+
+        /**
+         * @return {Map} position to reason of every record that failed
+         */
+        public synchronized Map<Integer, String> getFailures() {
+            return new TreeMap<>(failures);
+        }
+
+        public synchronized boolean hasFailures(){
+            return !failures.isEmpty();
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return total + " records, " + ids.size() + " written, " + failures.size() + " failed";
+        }
+    }
+}
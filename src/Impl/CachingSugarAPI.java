@@ -0,0 +1,292 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.SugarRequestInterface;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * <p>
+ *     Read-through cache in front of a {@link SugarRequestInterface}.
+ *     getRecord (get_entry) and getMultipleRecords (get_entries) are answered from the {@link RecordCache} when
+ *     they can be, get_entries only asks sugar for the ids that aren't cached. Only live records are cached,
+ *     errors and deleted/unknown ids always go to sugar.
+ * </p>
+ * <p>
+ *     setRecord and setRecords drop the cached versions of the records they write, before the write is sent and
+ *     again once it has completed. Writes made by other clients are only picked up once the entry expires, so
+ *     pick the time to live accordingly.
+ * </p>
+ * <p>
+ *     Sugar only answers with what the session's user may see, so by default responses are cached per
+ *     <b>session</b> (the one in the post data, or the delegate's current one when the call is made) and never
+ *     served to another session. Reads made before the delegate has a session go straight to sugar.
+ *     Sharing the cache across sessions is only safe when every session belongs to the same user, e.g a service
+ *     account, and has to be asked for through <b>shareAcrossSessions</b>.
+ * </p>
+ * e.g.
+ * <pre>
+ *     SugarRequestInterface api = new CachingSugarAPI(SugarAPI.getSugarAPIInstance(url),
+ *             new RecordCache(10000, 5, TimeUnit.MINUTES));
+ * </pre>
+ * Created on 17/10/26.
+ */
+public class CachingSugarAPI extends ForwardingSugarAPI {
+
+    private final RecordCache cache;
+    private final boolean shareAcrossSessions;
+
+    public CachingSugarAPI(@NotNull SugarRequestInterface delegate, @NotNull RecordCache cache){
+        this(delegate, cache, false);
+    }
+
+    /**
+     * @param shareAcrossSessions {boolean} true to serve a response cached for one session to every other session,
+     *                            only when all of them see the same records
+     */
+    public CachingSugarAPI(@NotNull SugarRequestInterface delegate, @NotNull RecordCache cache,
+                           boolean shareAcrossSessions){
+        super(delegate);
+        this.cache = cache;
+        this.shareAcrossSessions = shareAcrossSessions;
+    }
+
+    public RecordCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public void getRecord(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                          @NotNull SugarResponse callback) {
+        await(getRecordAsync(moduleName, data, callback));
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> getRecordAsync(@NotNull String moduleName,
+                                                           @NotNull HashMap<String, String> data,
+                                                           @NotNull SugarResponse callback) {
+        String id = data.get("id");
+        if(id==null) return delegate.getRecordAsync(moduleName, data, callback);
+        String session = scope(data);
+        if(session==null) return delegate.getRecordAsync(moduleName, data, callback);
+        String fields = data.get("fields");
+        String cached = cache.get(moduleName, id, fields, session);
+        if(cached!=null){
+            callback.onSuccessful(cached);
+            return CompletableFuture.completedFuture(callback);
+        }
+        long generation = cache.generation();
+        Capture capture = new Capture(callback);
+        HashMap<String, String> pinned = new HashMap<>(data);
+        pin(pinned, session);
+        return delegate.getRecordAsync(moduleName, pinned, capture).thenApply(r -> {
+            store(moduleName, fields, session, capture.body, generation);
+            callback.onSuccessful(capture.body);
+            return callback;
+        });
+    }
+
+    @Override
+    public void getMultipleRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                   @NotNull SugarResponse callback) {
+        await(getMultipleRecordsAsync(moduleName, data, callback));
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> getMultipleRecordsAsync(@NotNull String moduleName,
+                                                                    @NotNull HashMap<String, String> data,
+                                                                    @NotNull SugarResponse callback) {
+        List<String> ids = parseIds(data.get("ids"));
+        String session = scope(data);
+        if(ids==null || data.containsKey("extras") || session==null)
+            return delegate.getMultipleRecordsAsync(moduleName, data, callback);
+        String fields = data.get("fields");
+        Map<String, String> found = new HashMap<>();
+        JsonArray missing = new JsonArray();
+        for(String id : ids){
+            String cached = cache.get(moduleName, id, fields, session);
+            if(cached!=null) found.put(id, cached);
+            else missing.add(new JsonPrimitive(id));
+        }
+        if(missing.size()==0){
+            callback.onSuccessful(join(ids, found));
+            return CompletableFuture.completedFuture(callback);
+        }
+        HashMap<String, String> missingData = new HashMap<>(data);
+        missingData.put("ids", missing.toString());
+        pin(missingData, session);
+        long generation = cache.generation();
+        Capture capture = new Capture(callback);
+        return delegate.getMultipleRecordsAsync(moduleName, missingData, capture).thenApply(r -> {
+            Map<String, String> fetched = store(moduleName, fields, session, capture.body, generation);
+            if(fetched==null || found.isEmpty()){//an error, or nothing came from the cache: hand sugar's body over
+                callback.onSuccessful(capture.body);
+            }else{
+                found.putAll(fetched);
+                callback.onSuccessful(join(ids, found));
+            }
+            return callback;
+        });
+    }
+
+    @Override
+    public void setRecord(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                          @NotNull SugarResponse callback) {
+        await(setRecordAsync(moduleName, data, callback));
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> setRecordAsync(@NotNull String moduleName,
+                                                           @NotNull HashMap<String, String> data,
+                                                           @NotNull SugarResponse callback) {
+        String id = data.get("id");
+        if(id!=null) cache.invalidate(moduleName, id);
+        return delegate.setRecordAsync(moduleName, data, callback).whenComplete((r, error) -> {
+            if(id!=null) cache.invalidate(moduleName, id);
+        });
+    }
+
+    @Override
+    public void setRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                           @NotNull HashMap<String, String>[] inserts, @NotNull SugarResponse callback) {
+        await(setRecordsAsync(moduleName, data, inserts, callback));
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> setRecordsAsync(@NotNull String moduleName,
+                                                            @NotNull HashMap<String, String> data,
+                                                            @NotNull HashMap<String, String>[] inserts,
+                                                            @NotNull SugarResponse callback) {
+        invalidate(moduleName, inserts);
+        return delegate.setRecordsAsync(moduleName, data, inserts, callback).whenComplete((r, error) ->
+                invalidate(moduleName, inserts));
+    }
+
+    private void invalidate(String moduleName, HashMap<String, String>[] inserts){
+        for(HashMap<String, String> insert : inserts){
+            String id = insert.get("id");
+            if(id!=null) cache.invalidate(moduleName, id);
+        }
+    }
+
+    /**
+     * The session a response is cached under: the one in the post data, otherwise the delegate's current one,
+     * so switching the delegate to another user never serves the previous user's records.
+     * "" when the cache is shared, null when there is no session yet and the cache can't be used
+     */
+    private String scope(HashMap<String, String> data){
+        if(shareAcrossSessions) return "";
+        String session = data.get("session");
+        return session!=null ? session : delegate.getSessionID();
+    }
+
+    /**
+     * Sends the request with the session it is cached under, the delegate's session may change while it is out
+     */
+    private void pin(HashMap<String, String> data, String session){
+        if(!shareAcrossSessions) data.put("session", session);
+    }
+
+    /**
+     * Caches every live entry of the response
+     * @return {Map} id to single response, null when the body isn't an entry_list response
+     */
+    private Map<String, String> store(String moduleName, String fields, String session, String body,
+                                      long generation){
+        JsonObject responseObject;
+        try {
+            responseObject = new JsonParser().parse(body).getAsJsonObject();
+        }catch (RuntimeException ex){
+            return null;
+        }
+        if(!responseObject.has("entry_list") || !responseObject.get("entry_list").isJsonArray()) return null;
+        Map<String, String> singles = EntryResponses.splitById(responseObject);
+        JsonParser parser = new JsonParser();
+        for(Map.Entry<String, String> single : singles.entrySet()){
+            if(EntryResponses.isLiveEntry(parser.parse(single.getValue()).getAsJsonObject()))
+                cache.put(moduleName, single.getKey(), fields, session, single.getValue(), generation);
+        }
+        return singles;
+    }
+
+    private static String join(List<String> ids, Map<String, String> singles){
+        List<String> ordered = new ArrayList<>(ids.size());
+        for(String id : ids){
+            String single = singles.get(id);
+            if(single!=null) ordered.add(single);
+        }
+        return EntryResponses.combine(ordered);
+    }
+
+    private static List<String> parseIds(String ids){
+        if(ids==null) return null;
+        try {
+            JsonElement parsed = new JsonParser().parse(ids);
+            if(!parsed.isJsonArray()) return null;
+            List<String> list = new ArrayList<>();
+            for(JsonElement id : parsed.getAsJsonArray()) list.add(id.getAsString());
+            return list;
+        }catch (RuntimeException ex){
+            return null;//let sugar answer whatever the caller sent
+        }
+    }
+
+    private static void await(CompletableFuture<SugarResponse> future){
+        try {
+            future.join();
+        }catch (CompletionException ex){
+            //the callback has already been told through onFailed
+        }
+    }
+
+    /**
+     * Holds on to the body so it can be cached before the caller's callback sees it, failures go straight through
+     */
+    private static class Capture extends SugarResponse {
+        private final SugarResponse callback;
+        volatile String body;
+
+        Capture(SugarResponse callback){
+            this.callback = callback;
+        }
+
+        @Override
+        public void onSuccessful(String data) {
+            body = data;
+        }
+
+        @Override
+        public void onFailed(String errorMessage) {
+            callback.onFailed(errorMessage);
+        }
+    }
+}
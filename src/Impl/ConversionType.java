@@ -5,7 +5,15 @@ package Impl;
  * Created by paulex on 27/03/16.
  */
 public enum ConversionType {
-    DEFAULT(0), SINGLE(1), LIST(2);
+    DEFAULT(0), SINGLE(1), LIST(2),
+    /**
+     * A {@link RecordBatch} of the entry_list records, stored by column
+     */
+    COLUMNAR(3),
+    /**
+     * A {@link RelationshipLoader.Result} of the relationship_list, the related records of every entry by link
+     */
+    RELATIONSHIPS(4);
     int value;
     ConversionType(int value){
         this.value = value;
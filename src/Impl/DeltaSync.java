@@ -0,0 +1,452 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.ChangeHandler;
+import Interfaces.RecordHandler;
+import Interfaces.SugarRequestInterface;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Incremental sync of a module: every run only reads the records created, modified or deleted since the
+ *     previous run, so it costs time in proportion to the changes instead of the size of the module.
+ * </p>
+ * <p>
+ *     Every run makes two passes in (date_modified, id) order: one with deleted=0 for the records created or
+ *     modified, then one with deleted=1 for the tombstones sugar keeps (deleted = 1, date_modified set to the
+ *     time of the delete). Sugar's list query returns only deleted records when deleted=1, so the two can't
+ *     share a pass. Each page asks for the records after the last one handed over,
+ *     <b>date_modified &gt; W OR (date_modified = W AND id &gt; I)</b>, rather than for an offset, so records
+ *     modified while the sync runs can't shift the pages and be skipped.
+ * </p>
+ * <p>
+ *     The position (W, I) of each pass is saved in its own checkpoint file per module once the handler has been
+ *     given a page, written to a temporary file and moved in place so a crash leaves either the old or the new
+ *     checkpoint.
+ *     A run that dies resumes after the last saved page: the records of the page in progress are handed over
+ *     again, so the handler must apply them idempotently.
+ * </p>
+ * e.g.
+ * <pre>
+ *     DeltaSync sync = new DeltaSync(api, Paths.get("/var/lib/crm-sync"));
+ *     DeltaSync.Result result = sync.sync("Accounts", new HashMap&lt;&gt;(), new ChangeHandler() {...});
+ * </pre>
+ * The first run of a module reads all of it.
+ * Created on 17/10/26.
+ */
+public class DeltaSync {
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+    private static final String[] REQUIRED_FIELDS = {"id", "date_modified", "deleted"};
+
+    private final SugarRequestInterface api;
+    private final Path checkpointDirectory;
+    private int pageSize = 200;
+    private long overlapSeconds;
+
+    /**
+     * @param api {SugarRequestInterface} the api used to read the changes
+     * @param checkpointDirectory {Path} where the checkpoint of each module is kept, created when missing
+     */
+    public DeltaSync(@NotNull SugarRequestInterface api, @NotNull Path checkpointDirectory){
+        this.api = api;
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
+    /**
+     * @param pageSize {int} the max_results of each get_entry_list
+     */
+    public DeltaSync setPageSize(int pageSize) {
+        if(pageSize < 1) throw new IllegalArgumentException("pageSize must be at least 1");
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Starts every run this long before the saved watermark, for records whose date_modified was set before
+     * a record already synced but committed after it (long transactions, several web servers with drifting clocks).
+     * The records of the overlap are handed over again.
+     * @param overlap {long} 0 (the default) to start exactly after the last record synced
+     * @param unit {TimeUnit} the unit of the overlap
+     */
+    public DeltaSync setOverlap(long overlap, @NotNull TimeUnit unit) {
+        if(overlap < 0) throw new IllegalArgumentException("overlap can't be negative");
+        this.overlapSeconds = unit.toSeconds(overlap);
+        return this;
+    }
+
+    /**
+     * Syncs the module, its table is taken to be the lowercase module name (Accounts is accounts)
+     * @see #sync(String, String, HashMap, ChangeHandler)
+     */
+    public Result sync(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                       @NotNull ChangeHandler handler){
+        return sync(moduleName, moduleName.toLowerCase(Locale.ROOT), data, handler);
+    }
+
+    /**
+     * Hands every change since the last run to the handler, on the calling thread
+     * @param moduleName {String} The name of the module to sync
+     * @param tableName {String} the table of the module, the query and order_by name its columns with it
+     * @param data {HashMap} The post data, the same keys as getRecords. <b>query</b> narrows the records synced,
+     *             <b>fields</b> the fields read (id, date_modified and deleted are always added).
+     *             offset, max, order_by and deleted are managed by the sync
+     * @param handler {ChangeHandler} receives the changes, or the failure that stopped the run
+     * @return {Result} what the run did, {@link Result#isComplete()} is false when it stopped on a failure
+     */
+    public Result sync(@NotNull String moduleName, @NotNull String tableName, @NotNull HashMap<String, String> data,
+                       @NotNull ChangeHandler handler){
+        long start = System.nanoTime();
+        Pass changes = new Pass(moduleName, false);
+        Pass deletions = new Pass(moduleName, true);
+        boolean complete = changes.run(tableName, data, handler) && deletions.run(tableName, data, handler);
+        return new Result(changes.records, deletions.records, changes.pages + deletions.pages, changes.checkpoint,
+                deletions.checkpoint, complete, start);
+    }
+
+    /**
+     * @return {Checkpoint} the position of the changes saved by the last run, null before the first one
+     */
+    public Checkpoint getCheckpoint(@NotNull String moduleName) throws IOException{
+        return readCheckpoint(checkpointFile(moduleName, false));
+    }
+
+    /**
+     * @return {Checkpoint} the position of the deletions saved by the last run, null before the first one
+     */
+    public Checkpoint getDeletionCheckpoint(@NotNull String moduleName) throws IOException{
+        return readCheckpoint(checkpointFile(moduleName, true));
+    }
+
+    private static Checkpoint readCheckpoint(Path file) throws IOException{
+        if(!Files.exists(file)) return null;
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)){
+            properties.load(reader);
+        }
+        String watermark = properties.getProperty("watermark");
+        String lastId = properties.getProperty("lastId");
+        if(watermark==null || lastId==null) throw new IOException("Invalid checkpoint " + file);
+        return new Checkpoint(watermark, lastId, Long.parseLong(properties.getProperty("records", "0")),
+                Long.parseLong(properties.getProperty("savedAt", "0")));
+    }
+
+    /**
+     * Drops both checkpoints, the next run of the module reads all of it again
+     */
+    public void resetCheckpoint(@NotNull String moduleName) throws IOException{
+        Files.deleteIfExists(checkpointFile(moduleName, false));
+        Files.deleteIfExists(checkpointFile(moduleName, true));
+    }
+
+    private void save(String moduleName, boolean deletions, Checkpoint checkpoint) throws IOException{
+        Files.createDirectories(checkpointDirectory);
+        Properties properties = new Properties();
+        properties.setProperty("watermark", checkpoint.watermark);
+        properties.setProperty("lastId", checkpoint.lastId);
+        properties.setProperty("records", String.valueOf(checkpoint.records));
+        properties.setProperty("savedAt", String.valueOf(checkpoint.savedAt));
+        StringWriter text = new StringWriter();
+        properties.store(text, "DeltaSync checkpoint of " + moduleName);
+        Path file = checkpointFile(moduleName, deletions);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            while(bytes.hasRemaining()) channel.write(bytes);
+            channel.force(true);
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }catch (AtomicMoveNotSupportedException ex){
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Path checkpointFile(String moduleName, boolean deletions){
+        return checkpointDirectory.resolve(moduleName.replaceAll("[^A-Za-z0-9_-]", "_") +
+                (deletions ? ".deleted.checkpoint" : ".checkpoint"));
+    }
+
+    /**
+     * One walk through the records of the module after its checkpoint: the live ones (deleted=0) handed over as
+     * changes, or the tombstones (deleted=1, sugar's list query then returns only deleted records) as deletions
+     */
+    private final class Pass {
+        private final String moduleName;
+        private final boolean deletions;
+        Checkpoint checkpoint;
+        long records;
+        long pages;
+
+        Pass(String moduleName, boolean deletions){
+            this.moduleName = moduleName;
+            this.deletions = deletions;
+        }
+
+        /**
+         * @return {boolean} false when it stopped on a failure, handed to the handler's onFailed
+         */
+        boolean run(String tableName, HashMap<String, String> data, ChangeHandler handler){
+            try {
+                checkpoint = readCheckpoint(checkpointFile(moduleName, deletions));
+            }catch (IOException ex){
+                handler.onFailed("Could not read the checkpoint of " + moduleName + ": " + ex);
+                return false;
+            }
+            String watermark = checkpoint==null ? null : checkpoint.watermark;
+            String lastId = checkpoint==null ? null : checkpoint.lastId;
+            if(watermark!=null && overlapSeconds > 0){
+                watermark = minusSeconds(watermark, overlapSeconds);
+                lastId = null;
+            }
+            HashMap<String, String> pageData = new HashMap<>(data);
+            pageData.put("fields", withRequiredFields(data.get("fields")));
+            pageData.put("order_by", tableName + ".date_modified ASC, " + tableName + ".id ASC");
+            pageData.put("offset", "0");
+            pageData.put("max", String.valueOf(pageSize));
+            pageData.put("deleted", deletions ? "1" : "0");
+            String what = deletions ? "deletions" : "changes";
+            while (true){
+                pageData.put("query", query(data.get("query"), tableName, watermark, lastId));
+                List<Map<String, String>> page = new ArrayList<>(pageSize);
+                String[] failure = new String[1];
+                EntryListPage result = api.streamRecords(moduleName, pageData, new RecordHandler() {
+                    @Override
+                    public void onRecord(Map<String, String> record) {
+                        page.add(record);
+                    }
+
+                    @Override
+                    public void onFailed(String errorMessage) {
+                        failure[0] = errorMessage;
+                    }
+                });
+                if(result==null || result.isError() || failure[0]!=null){
+                    handler.onFailed("Failed to read the " + what + " of " + moduleName + ": " +
+                            (failure[0]!=null ? failure[0] : result!=null ? result.getError() : "no response"));
+                    return false;
+                }
+                pages++;
+                if(page.isEmpty()) return true;
+                for(Map<String, String> record : page){
+                    if(deletions) handler.onDeleted(record.get("id"), record);
+                    else handler.onChanged(record);
+                }
+                records += page.size();
+                Map<String, String> last = page.get(page.size() - 1);
+                watermark = last.get("date_modified");
+                lastId = last.get("id");
+                if(watermark==null || watermark.isEmpty() || lastId==null){
+                    handler.onFailed("The records of " + moduleName + " came without date_modified or id");
+                    return false;
+                }
+                checkpoint = new Checkpoint(watermark, lastId,
+                        (checkpoint==null ? 0 : checkpoint.records) + page.size(), System.currentTimeMillis());
+                try {
+                    save(moduleName, deletions, checkpoint);
+                }catch (IOException ex){
+                    handler.onFailed("Could not save the checkpoint of " + moduleName + ": " + ex);
+                    return false;
+                }
+                //total_count is the number of records after the position, this page held all of them
+                if(result.getTotalCount() >= 0 && page.size() >= result.getTotalCount()) return true;
+            }
+        }
+    }
+
+    /**
+     * The caller's query AND the records after the position, sugar takes the query as a sql where clause
+     */
+    static String query(@Nullable String callerQuery, String table, @Nullable String watermark,
+                        @Nullable String lastId){
+        String after = null;
+        if(watermark!=null && lastId==null){
+            after = table + ".date_modified >= '" + escape(watermark) + "'";
+        }else if(watermark!=null){
+            after = "(" + table + ".date_modified > '" + escape(watermark) + "' OR (" + table + ".date_modified = '" +
+                    escape(watermark) + "' AND " + table + ".id > '" + escape(lastId) + "'))";
+        }
+        boolean hasQuery = callerQuery!=null && !callerQuery.trim().isEmpty();
+        if(after==null) return hasQuery ? callerQuery : "";
+        return hasQuery ? "(" + callerQuery + ") AND " + after : after;
+    }
+
+    private static String escape(String value){
+        return value.replace("'", "''");
+    }
+
+    /**
+     * Adds the fields the sync needs to the caller's select fields, no fields (all of them) stays as is
+     */
+    private static String withRequiredFields(@Nullable String fields){
+        if(fields==null || !fields.trim().startsWith("[")) return fields==null ? "" : fields;
+        JsonElement parsed;
+        try {
+            parsed = new JsonParser().parse(fields);
+        }catch (RuntimeException ex){
+            return fields;//let sugar answer whatever the caller sent
+        }
+        if(!parsed.isJsonArray() || parsed.getAsJsonArray().size()==0) return fields;
+        JsonArray array = parsed.getAsJsonArray();
+        Set<String> names = new HashSet<>();
+        for(JsonElement name : array) names.add(name.getAsString());
+        for(String required : REQUIRED_FIELDS) if(!names.contains(required)) array.add(new JsonPrimitive(required));
+        return array.toString();
+    }
+
+    private static String minusSeconds(String watermark, long seconds){
+        SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return format.format(new Date(format.parse(watermark).getTime() - seconds * 1000));
+        }catch (ParseException ex){
+            return watermark;
+        }
+    }
+
+    /**
+     * The last record synced: its date_modified and its id
+     */
+    public static class Checkpoint {
+        private final String watermark;
+        private final String lastId;
+        private final long records;
+        private final long savedAt;
+
+        Checkpoint(String watermark, String lastId, long records, long savedAt){
+            this.watermark = watermark;
+            this.lastId = lastId;
+            this.records = records;
+            this.savedAt = savedAt;
+        }
+
+        public String getWatermark() {
+            return watermark;
+        }
+
+        public String getLastId() {
+            return lastId;
+        }
+
+        /**
+         * @return {long} the records synced since the checkpoint was first saved
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return {long} when the checkpoint was saved, in milliseconds since the epoch
+         */
+        public long getSavedAt() {
+            return savedAt;
+        }
+
+        @Override
+        public String toString() {
+            return "date_modified=" + watermark + ", id=" + lastId + ", records=" + records;
+        }
+    }
+
+    public static class Result {
+        private final long changed;
+        private final long deleted;
+        private final long pages;
+        private final Checkpoint checkpoint;
+        private final Checkpoint deletionCheckpoint;
+        private final boolean complete;
+        private final long elapsedNanos;
+
+        Result(long changed, long deleted, long pages, Checkpoint checkpoint, Checkpoint deletionCheckpoint,
+               boolean complete, long startNanos){
+            this.changed = changed;
+            this.deleted = deleted;
+            this.pages = pages;
+            this.checkpoint = checkpoint;
+            this.deletionCheckpoint = deletionCheckpoint;
+            this.complete = complete;
+            this.elapsedNanos = System.nanoTime() - startNanos;
+        }
+
+        public long getChanged() {
+            return changed;
+        }
+
+        public long getDeleted() {
+            return deleted;
+        }
+
+        public long getPages() {
+            return pages;
+        }
+
+        /**
+         * @return {Checkpoint} the position the next run reads changes from, null when none was ever synced
+         */
+        public Checkpoint getCheckpoint() {
+            return checkpoint;
+        }
+
+        /**
+         * @return {Checkpoint} the position the next run reads deletions from, null when none was ever synced
+         */
+        public Checkpoint getDeletionCheckpoint() {
+            return deletionCheckpoint;
+        }
+
+        /**
+         * @return {boolean} false when the run stopped on a failure, the next run resumes from the checkpoint
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public long getElapsedMillis(){
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return changed + " changed, " + deleted + " deleted, " + pages + " pages in " + getElapsedMillis() +
+                    "ms" + (complete ? "" : " (incomplete)") + ", checkpoint " + checkpoint +
+                    ", deletion checkpoint " + deletionCheckpoint;
+        }
+    }
+}
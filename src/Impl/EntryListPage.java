@@ -0,0 +1,76 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+/**
+ * <p>
+ *     The paging figures of a get_entry_list response. The records themselves are handed to the
+ *     record handler while the page is read and are not kept here.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class EntryListPage {
+
+    int resultCount = -1;
+    int totalCount = -1;
+    int nextOffset = -1;
+    String error;
+
+    /**
+     * @return {int} the number of records in this page, -1 when sugar didn't send it
+     */
+    public int getResultCount() {
+        return resultCount;
+    }
+
+    /**
+     * @return {int} the number of records matching the query, -1 when sugar didn't send it
+     */
+    public int getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return {int} the offset of the next page, -1 when sugar didn't send it
+     */
+    public int getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * @return {String} sugar's error (e.g Invalid Session ID) when the response was an error, otherwise null
+     */
+    public String getError() {
+        return error;
+    }
+
+    public boolean isError(){
+        return error!=null;
+    }
+
+    @Override
+    public String toString() {
+        return error!=null ? "error=" + error :
+                "result_count=" + resultCount + ", total_count=" + totalCount + ", next_offset=" + nextOffset;
+    }
+}
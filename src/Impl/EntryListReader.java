@@ -0,0 +1,193 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.RecordHandler;
+import Interfaces.RecordSink;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ *     Pull parser for get_entry_list / get_entries responses.
+ *     Each entry_list element is flattened (top level values plus the name_value_list values) and pushed to a
+ *     {@link RecordSink} as it is read, so the response is never held as a String or a Json tree and the
+ *     memory used stays the same whatever the page size.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class EntryListReader {
+
+    private EntryListReader(){}
+
+    /**
+     * Reads a whole response, pushing every record to the sink
+     * @param in {Reader} the response body
+     * @param sink {RecordSink} receives the records
+     * @return {EntryListPage} the paging figures, or the sugar error
+     * @throws IOException when the body can't be read or isn't a Json object
+     */
+    public static EntryListPage read(@NotNull Reader in, @NotNull RecordSink sink) throws IOException{
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        EntryListPage page = new EntryListPage();
+        String errorName = null, errorDescription = null;
+        reader.beginObject();
+        while (reader.hasNext()){
+            switch (reader.nextName()){
+                case "result_count":
+                    page.resultCount = readInt(reader);
+                    break;
+                case "total_count":
+                    page.totalCount = readInt(reader);
+                    break;
+                case "next_offset":
+                    page.nextOffset = readInt(reader);
+                    break;
+                case "entry_list":
+                    readEntryList(reader, sink);
+                    break;
+                case "name"://sugar errors look like {name:"Invalid Session ID", number:11, description:""}
+                    errorName = readScalar(reader);
+                    break;
+                case "description":
+                    errorDescription = readScalar(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if(errorName!=null) page.error = errorDescription==null ? errorName : errorName + ": " + errorDescription;
+        return page;
+    }
+
+    /**
+     * Adapts a {@link RecordHandler} to a sink, building one map per record
+     * @param handler {RecordHandler} the handler
+     * @return {RecordSink} the sink
+     */
+    public static RecordSink toSink(@NotNull RecordHandler handler){
+        return new RecordSink() {
+            private Map<String, String> record;
+
+            @Override
+            public void beginRecord() {
+                record = new LinkedHashMap<>();
+            }
+
+            @Override
+            public void field(String name, String value) {
+                record.put(name, value);
+            }
+
+            @Override
+            public void endRecord() {
+                handler.onRecord(record);
+                record = null;
+            }
+        };
+    }
+
+    private static void readEntryList(JsonReader reader, RecordSink sink) throws IOException{
+        if(reader.peek()!=JsonToken.BEGIN_ARRAY){
+            reader.skipValue();
+            return;
+        }
+        reader.beginArray();
+        while (reader.hasNext()){
+            if(reader.peek()!=JsonToken.BEGIN_OBJECT){
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            sink.beginRecord();
+            while (reader.hasNext()){
+                String key = reader.nextName();
+                JsonToken token = reader.peek();
+                if(token==JsonToken.BEGIN_OBJECT) readNameValueList(reader, sink);//possibly the name_value_list
+                else if(token==JsonToken.BEGIN_ARRAY) reader.skipValue();//an empty name_value_list comes as []
+                else sink.field(key, readScalar(reader));
+            }
+            reader.endObject();
+            sink.endRecord();
+        }
+        reader.endArray();
+    }
+
+    /**
+     * name_value_list is {field_name:{name:field_name, value:field_value}}
+     */
+    private static void readNameValueList(JsonReader reader, RecordSink sink) throws IOException{
+        reader.beginObject();
+        while (reader.hasNext()){
+            String field = reader.nextName();
+            if(reader.peek()!=JsonToken.BEGIN_OBJECT){
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            String value = null;
+            while (reader.hasNext()){
+                if(reader.nextName().equals("value")) value = readScalar(reader);
+                else reader.skipValue();
+            }
+            reader.endObject();
+            sink.field(field, value);
+        }
+        reader.endObject();
+    }
+
+    private static String readScalar(JsonReader reader) throws IOException{
+        switch (reader.peek()){
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    private static int readInt(JsonReader reader) throws IOException{
+        String value = readScalar(reader);
+        if(value==null || value.isEmpty()) return -1;
+        try {
+            return Integer.parseInt(value);
+        }catch (NumberFormatException ex){
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ *     Splits get_entries responses into get_entry shaped ones and joins them back,
+ *     each single response is {entry_list:[entry], relationship_list:[relationships of the entry]}
+ * </p>
+ * Created on 17/10/26.
+ */
+final class EntryResponses {
+
+    private EntryResponses(){}
+
+    /**
+     * @param responseObject {JsonObject} a get_entries (or get_entry) response holding an entry_list
+     * @return {Map} entry id to the single response of that entry, in response order
+     */
+    static Map<String, String> splitById(@NotNull JsonObject responseObject){
+        Map<String, String> singles = new LinkedHashMap<>();
+        JsonArray entries = responseObject.getAsJsonArray("entry_list");
+        JsonArray relationships = responseObject.has("relationship_list") &&
+                responseObject.get("relationship_list").isJsonArray() ?
+                responseObject.getAsJsonArray("relationship_list") : new JsonArray();
+        for(int i = 0; i < entries.size(); i++){
+            JsonElement id = entries.get(i).getAsJsonObject().get("id");
+            if(id==null || !id.isJsonPrimitive()) continue;
+            JsonObject single = new JsonObject();
+            JsonArray entryList = new JsonArray();
+            entryList.add(entries.get(i));
+            single.add("entry_list", entryList);
+            JsonArray relationshipList = new JsonArray();
+            if(i < relationships.size()) relationshipList.add(relationships.get(i));
+            single.add("relationship_list", relationshipList);
+            singles.put(id.getAsString(), single.toString());
+        }
+        return singles;
+    }
+
+    /**
+     * @param singles {List} single responses, as returned by {@link #splitById(JsonObject)}
+     * @return {String} one get_entries shaped response holding them all, in list order
+     */
+    static String combine(@NotNull List<String> singles){
+        JsonParser parser = new JsonParser();
+        JsonArray entries = new JsonArray();
+        JsonArray relationships = new JsonArray();
+        boolean anyRelationships = false;
+        for(String single : singles){
+            JsonObject object = parser.parse(single).getAsJsonObject();
+            entries.addAll(object.getAsJsonArray("entry_list"));
+            JsonArray relationshipList = object.getAsJsonArray("relationship_list");
+            if(relationshipList!=null && relationshipList.size() > 0){
+                relationships.add(relationshipList.get(0));
+                anyRelationships = true;
+            }else{
+                JsonObject none = new JsonObject();//keeps the list aligned with entry_list
+                none.add("link_list", new JsonArray());
+                relationships.add(none);
+            }
+        }
+        if(!anyRelationships) relationships = new JsonArray();
+        JsonObject response = new JsonObject();
+        response.add("entry_list", entries);
+        response.add("relationship_list", relationships);
+        return response.toString();
+    }
+
+    /**
+     * Sugar answers an id that was deleted or never existed with an entry holding a warning and deleted=1
+     * @param single {JsonObject} a single response
+     * @return {boolean} true when the entry is a live record
+     */
+    static boolean isLiveEntry(@NotNull JsonObject single){
+        JsonArray entries = single.getAsJsonArray("entry_list");
+        if(entries==null || entries.size()!=1) return false;
+        JsonElement nameValueList = entries.get(0).getAsJsonObject().get("name_value_list");
+        if(nameValueList==null || !nameValueList.isJsonObject()) return true;
+        return !nameValueList.getAsJsonObject().has("warning");
+    }
+}
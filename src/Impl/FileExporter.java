@@ -0,0 +1,596 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.RecordSink;
+import Interfaces.SugarRequestInterface;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ *     Exports a module to a file as NDJSON (one JSON object per line) or CSV, optionally gzipped.
+ *     Pages are read with get_entry_list and each record goes from the response stream, through the
+ *     {@link EntryListReader}, straight into a buffered write to the file: no page is held as a String,
+ *     a Json tree or a list of maps.
+ * </p>
+ * <p>
+ *     After every page (see {@link #setPagesPerCheckpoint(int)}) the file is forced to disk and the offset
+ *     reached is saved next to it in <b>file.checkpoint</b>. An export that was interrupted resumes from there
+ *     when it is started again with the same file: the records written after the checkpoint are cut off and
+ *     the export goes on from the saved offset. A gzipped export ends a gzip member at each checkpoint, the file
+ *     is a series of members that gunzip and {@link java.util.zip.GZIPInputStream} read as one stream.
+ *     The checkpoint is removed once the export completes.
+ * </p>
+ * <p>
+ *     Paging is by offset, give the query a stable <b>order_by</b> (e.g accounts.id) or records written during
+ *     the export can shift between pages. For a module too big to export one page at a time see
+ *     {@link ParallelExporter}.
+ * </p>
+ * e.g.
+ * <pre>
+ *     HashMap&lt;String, String&gt; data = new HashMap&lt;&gt;();
+ *     data.put("order_by", "accounts.id");
+ *     FileExporter.Result result = new FileExporter(api, FileExporter.Format.CSV).setGzip(true)
+ *             .export("Accounts", data, Paths.get("/data/accounts.csv.gz"));
+ *     if(!result.isComplete()) log(result.getError());//run it again to resume
+ * </pre>
+ * Created on 17/10/26.
+ */
+public class FileExporter {
+
+    public enum Format {
+        /**
+         * One JSON object per record and line, field name to value
+         */
+        NDJSON,
+        /**
+         * A header line of field names and one line per record, quoted as RFC 4180 has it
+         */
+        CSV
+    }
+
+    private static final int BUFFER_SIZE = 256 << 10;
+
+    private final SugarRequestInterface api;
+    private final Format format;
+    private boolean gzip;
+    private int pageSize = 500;
+    private int pagesPerCheckpoint = 1;
+    private List<String> columns;
+
+    /**
+     * @param api {SugarRequestInterface} the api used to read the pages
+     * @param format {Format} the format of the file
+     */
+    public FileExporter(@NotNull SugarRequestInterface api, @NotNull Format format){
+        this.api = api;
+        this.format = format;
+    }
+
+    public FileExporter setGzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    /**
+     * @param pageSize {int} the max_results of each get_entry_list
+     */
+    public FileExporter setPageSize(int pageSize) {
+        if(pageSize < 1) throw new IllegalArgumentException("pageSize must be at least 1");
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param pagesPerCheckpoint {int} pages written between two checkpoints, each one forces the file to disk
+     */
+    public FileExporter setPagesPerCheckpoint(int pagesPerCheckpoint) {
+        if(pagesPerCheckpoint < 1) throw new IllegalArgumentException("pagesPerCheckpoint must be at least 1");
+        this.pagesPerCheckpoint = pagesPerCheckpoint;
+        return this;
+    }
+
+    /**
+     * The CSV columns, in order. By default they are the <b>fields</b> of the export, or the fields of the
+     * first record when it selects all of them. Fields that aren't columns are left out of the file.
+     * @param columns {List} the field names, null for the default
+     */
+    public FileExporter setColumns(@Nullable List<String> columns) {
+        this.columns = columns==null ? null : new ArrayList<>(columns);
+        return this;
+    }
+
+    /**
+     * Exports the module to the file, or resumes the export the file's checkpoint was left by
+     * @param moduleName {String} The name of the module to export
+     * @param data {HashMap} The post data, the same keys as getRecords. <b>offset</b> is where the export starts,
+     *             <b>max</b> is managed by the exporter
+     * @param file {Path} the file written
+     * @return {Result} what the export did, {@link Result#isComplete()} is false when it stopped on a failure
+     */
+    public Result export(@NotNull String moduleName, @NotNull HashMap<String, String> data, @NotNull Path file){
+        long start = System.nanoTime();
+        Path checkpointFile = file.resolveSibling(file.getFileName() + ".checkpoint");
+        Checkpoint checkpoint;
+        try {
+            checkpoint = readCheckpoint(checkpointFile);
+        }catch (IOException | RuntimeException ex){
+            return new Result(0, 0, -1, false, "Could not read the checkpoint " + checkpointFile + ": " + ex, start);
+        }
+        if(checkpoint!=null && (checkpoint.format!=format || checkpoint.gzip!=gzip))
+            return new Result(0, 0, -1, false, "The export to " + file + " was started as " + checkpoint.format +
+                    (checkpoint.gzip ? " gzipped" : "") + ", delete " + checkpointFile + " to start over", start);
+        boolean resumed = checkpoint!=null;
+        long records = resumed ? checkpoint.records : 0;
+        long pages = 0;
+        int offset = resumed ? checkpoint.offset : parseOffset(data.get("offset"));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)){
+            long position = resumed ? checkpoint.bytes : 0;
+            if(channel.size() < position) throw new IOException(file + " is shorter than its checkpoint");
+            channel.truncate(position);
+            channel.position(position);
+            Output output = new Output(channel);
+            RecordWriter writer = format==Format.CSV ?
+                    new CsvWriter(resumed ? checkpoint.columns : defaultColumns(data.get("fields")), !resumed) :
+                    new NdjsonWriter();
+            HashMap<String, String> pageData = new HashMap<>(data);
+            pageData.put("max", String.valueOf(pageSize));
+            writer.output = output;
+            while (true){
+                pageData.put("offset", String.valueOf(offset));
+                writer.pageRecords = 0;
+                EntryListPage page = api.streamRecords(moduleName, pageData, writer);
+                if(page.isError()) return new Result(records, pages, -1, resumed,
+                        "Failed to read " + moduleName + " at offset " + offset + ": " + page.getError(), start);
+                pages++;
+                int received = writer.pageRecords;
+                offset += received;
+                records += received;
+                boolean last = received==0 || (page.getTotalCount() >= 0 ? offset >= page.getTotalCount() :
+                        received < pageSize);
+                if(last) break;
+                if(pages % pagesPerCheckpoint==0)
+                    saveCheckpoint(checkpointFile, new Checkpoint(format, gzip, offset, records,
+                            output.checkpoint(), writer.columns()));
+            }
+            output.finish();
+            Files.deleteIfExists(checkpointFile);
+            return new Result(records, pages, channel.size(), resumed, null, start);
+        }catch (IOException | UncheckedIOException ex){
+            Throwable cause = ex instanceof UncheckedIOException ? ex.getCause() : ex;
+            return new Result(records, pages, -1, resumed,
+                    "Export of " + moduleName + " to " + file + " failed at offset " + offset + ": " + cause, start);
+        }
+    }
+
+    /**
+     * @return {Checkpoint} where an interrupted export to the file resumes, null when there is none
+     */
+    public static Checkpoint getCheckpoint(@NotNull Path file) throws IOException{
+        return readCheckpoint(file.resolveSibling(file.getFileName() + ".checkpoint"));
+    }
+
+    private List<String> defaultColumns(String fields){
+        if(columns!=null) return columns;
+        if(fields==null || !fields.trim().startsWith("[")) return null;
+        try {
+            List<String> names = new ArrayList<>();
+            for(JsonElement name : new JsonParser().parse(fields).getAsJsonArray()) names.add(name.getAsString());
+            return names.isEmpty() ? null : names;
+        }catch (RuntimeException ex){
+            return null;
+        }
+    }
+
+    private static int parseOffset(String offset){
+        if(offset==null || offset.isEmpty()) return 0;
+        try {
+            return Integer.parseInt(offset.trim());
+        }catch (NumberFormatException ex){
+            throw new IllegalArgumentException("offset must be a number: " + offset);
+        }
+    }
+
+    private static Checkpoint readCheckpoint(Path file) throws IOException{
+        if(!Files.exists(file)) return null;
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)){
+            properties.load(reader);
+        }
+        String columns = properties.getProperty("columns");
+        List<String> names = null;
+        if(columns!=null){
+            names = new ArrayList<>();
+            for(JsonElement name : new JsonParser().parse(columns).getAsJsonArray()) names.add(name.getAsString());
+        }
+        return new Checkpoint(Format.valueOf(properties.getProperty("format")),
+                Boolean.parseBoolean(properties.getProperty("gzip")), Integer.parseInt(properties.getProperty("offset")),
+                Long.parseLong(properties.getProperty("records")), Long.parseLong(properties.getProperty("bytes")), names);
+    }
+
+    private static void saveCheckpoint(Path file, Checkpoint checkpoint) throws IOException{
+        Properties properties = new Properties();
+        properties.setProperty("format", checkpoint.format.name());
+        properties.setProperty("gzip", String.valueOf(checkpoint.gzip));
+        properties.setProperty("offset", String.valueOf(checkpoint.offset));
+        properties.setProperty("records", String.valueOf(checkpoint.records));
+        properties.setProperty("bytes", String.valueOf(checkpoint.bytes));
+        if(checkpoint.columns!=null){
+            JsonArray columns = new JsonArray();
+            for(String column : checkpoint.columns) columns.add(new JsonPrimitive(column));
+            properties.setProperty("columns", columns.toString());
+        }
+        StringWriter text = new StringWriter();
+        properties.store(text, "FileExporter checkpoint");
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            while(bytes.hasRemaining()) channel.write(bytes);
+            channel.force(true);
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }catch (AtomicMoveNotSupportedException ex){
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * The writer chain to the file: UTF-8 encoding, an optional gzip member and a large buffer in front of
+     * the channel, so the channel sees few large writes
+     */
+    private final class Output {
+        private final FileChannel channel;
+        private final OutputStream buffered;
+        private GZIPOutputStream member;
+        Writer writer;
+
+        Output(FileChannel channel) throws IOException{
+            this.channel = channel;
+            buffered = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            open();
+        }
+
+        private void open() throws IOException{
+            member = gzip ? new GZIPOutputStream(buffered, 64 << 10) : null;
+            OutputStream target = member!=null ? member : buffered;
+            writer = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), 64 << 10);
+        }
+
+        /**
+         * Ends the gzip member and forces what has been written to disk
+         * @return {long} the length of the file, where a resumed export starts writing
+         */
+        long checkpoint() throws IOException{
+            finish();
+            long position = channel.position();
+            if(gzip) open();
+            return position;
+        }
+
+        void finish() throws IOException{
+            writer.flush();
+            if(member!=null) member.finish();
+            buffered.flush();
+            channel.force(false);
+        }
+
+    }
+
+    /**
+     * Writes each record as the reader pushes its fields, IO failures are thrown unchecked through the reader
+     */
+    private abstract static class RecordWriter implements RecordSink {
+        Output output;
+        int pageRecords;
+
+        List<String> columns(){
+            return null;
+        }
+
+        @Override
+        public void endRecord() {
+            try {
+                writeRecord();
+            }catch (IOException ex){
+                throw new UncheckedIOException(ex);
+            }
+            pageRecords++;
+        }
+
+        abstract void writeRecord() throws IOException;
+    }
+
+    private static final class NdjsonWriter extends RecordWriter {
+        private final StringBuilder line = new StringBuilder(1024);
+        //the reader hands the id over twice, from the entry and from its name_value_list
+        private final Set<String> written = new HashSet<>();
+
+        @Override
+        public void beginRecord() {
+            line.setLength(0);
+            line.append('{');
+            written.clear();
+        }
+
+        @Override
+        public void field(String name, String value) {
+            if(!written.add(name)) return;
+            if(line.length() > 1) line.append(',');
+            quote(name);
+            line.append(':');
+            if(value==null) line.append("null");
+            else quote(value);
+        }
+
+        @Override
+        void writeRecord() throws IOException {
+            line.append("}\n");
+            output.writer.append(line);
+        }
+
+        private void quote(String value){
+            line.append('"');
+            for(int i = 0; i < value.length(); i++){
+                char c = value.charAt(i);
+                switch (c){
+                    case '"': line.append("\\\""); break;
+                    case '\\': line.append("\\\\"); break;
+                    case '\n': line.append("\\n"); break;
+                    case '\r': line.append("\\r"); break;
+                    case '\t': line.append("\\t"); break;
+                    default:
+                        if(c < 0x20) line.append(String.format("\\u%04x", (int) c));
+                        else line.append(c);
+                }
+            }
+            line.append('"');
+        }
+    }
+
+    private static final class CsvWriter extends RecordWriter {
+        private final StringBuilder line = new StringBuilder(1024);
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private List<String> columns;
+        private boolean headerPending;
+        private String[] values;
+        //the first record, held until its fields have named the columns
+        private List<String> firstNames;
+        private List<String> firstValues;
+
+        /**
+         * @param columns {List} the columns, null to take the fields of the first record
+         * @param header {boolean} false when resuming a file that already has its header
+         */
+        CsvWriter(List<String> columns, boolean header){
+            this.headerPending = header;
+            if(columns!=null) setColumns(columns);
+        }
+
+        private void setColumns(List<String> columns){
+            this.columns = columns;
+            for(int i = 0; i < columns.size(); i++) indexes.put(columns.get(i), i);
+            values = new String[columns.size()];
+        }
+
+        @Override
+        List<String> columns() {
+            return columns;
+        }
+
+        @Override
+        public void beginRecord() {
+            if(columns==null){
+                firstNames = new ArrayList<>();
+                firstValues = new ArrayList<>();
+            }else{
+                Arrays.fill(values, null);
+            }
+        }
+
+        @Override
+        public void field(String name, String value) {
+            if(columns==null){
+                firstNames.add(name);
+                firstValues.add(value);
+                return;
+            }
+            Integer index = indexes.get(name);
+            if(index!=null) values[index] = value;
+        }
+
+        @Override
+        void writeRecord() throws IOException {
+            if(columns==null){
+                setColumns(new ArrayList<>(new LinkedHashSet<>(firstNames)));
+                for(int i = 0; i < firstNames.size(); i++) values[indexes.get(firstNames.get(i))] = firstValues.get(i);
+                firstNames = null;
+                firstValues = null;
+            }
+            if(headerPending){
+                writeLine(columns.toArray(new String[0]));
+                headerPending = false;
+            }
+            writeLine(values);
+        }
+
+        private void writeLine(String[] fields) throws IOException{
+            line.setLength(0);
+            for(int i = 0; i < fields.length; i++){
+                if(i > 0) line.append(',');
+                String value = fields[i];
+                if(value==null) continue;
+                boolean quoted = false;
+                for(int c = 0; c < value.length() && !quoted; c++){
+                    char character = value.charAt(c);
+                    quoted = character==',' || character=='"' || character=='\n' || character=='\r';
+                }
+                if(!quoted){
+                    line.append(value);
+                    continue;
+                }
+                line.append('"');
+                for(int c = 0; c < value.length(); c++){
+                    char character = value.charAt(c);
+                    if(character=='"') line.append('"');
+                    line.append(character);
+                }
+                line.append('"');
+            }
+            line.append("\r\n");
+            output.writer.append(line);
+        }
+    }
+
+    /**
+     * Where an interrupted export resumes: the offset of the next page and the length of the file up to it
+     */
+    public static class Checkpoint {
+        private final Format format;
+        private final boolean gzip;
+        private final int offset;
+        private final long records;
+        private final long bytes;
+        private final List<String> columns;
+
+        Checkpoint(Format format, boolean gzip, int offset, long records, long bytes, List<String> columns){
+            this.format = format;
+            this.gzip = gzip;
+            this.offset = offset;
+            this.records = records;
+            this.bytes = bytes;
+            this.columns = columns;
+        }
+
+        public Format getFormat() {
+            return format;
+        }
+
+        public boolean isGzip() {
+            return gzip;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "offset " + offset + ", " + records + " records, " + bytes + " bytes";
+        }
+    }
+
+    public static class Result {
+        private final long records;
+        private final long pages;
+        private final long bytes;
+        private final boolean resumed;
+        private final String error;
+        private final long elapsedNanos;
+
+        Result(long records, long pages, long bytes, boolean resumed, String error, long startNanos){
+            this.records = records;
+            this.pages = pages;
+            this.bytes = bytes;
+            this.resumed = resumed;
+            this.error = error;
+            this.elapsedNanos = System.nanoTime() - startNanos;
+        }
+
+        /**
+         * @return {long} the records in the file, those written before a resume included
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return {long} the pages read by this run
+         */
+        public long getPages() {
+            return pages;
+        }
+
+        /**
+         * @return {long} the size of the file, -1 when the export didn't complete
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return {boolean} true when this run resumed an interrupted export
+         */
+        public boolean isResumed() {
+            return resumed;
+        }
+
+        /**
+         * @return {boolean} false when the export stopped on a failure, running it again resumes it
+         */
+        public boolean isComplete() {
+            return error==null;
+        }
+
+        /**
+         * @return {String} the failure that stopped the export, null when it completed
+         */
+        public String getError() {
+            return error;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return (isComplete() ? "complete" : "failed") + (resumed ? " (resumed)" : "") + ", " + records +
+                    " records, " + pages + " pages, " + bytes + " bytes in " + getElapsedMillis() + "ms" +
+                    (error!=null ? ": " + error : "");
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.RecordHandler;
+import Interfaces.RecordSink;
+import Interfaces.SugarRequestInterface;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>
+ *     Forwards every call to another {@link SugarRequestInterface}.
+ *     Layers that sit in front of the SugarAPI (caches, local mirrors...) extend this and only override the
+ *     calls they serve differently.
+ * </p>
+ * Created on 17/10/26.
+ */
+public abstract class ForwardingSugarAPI implements SugarRequestInterface {
+
+    protected final SugarRequestInterface delegate;
+
+    protected ForwardingSugarAPI(@NotNull SugarRequestInterface delegate){
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void login(String username, String password, SugarResponse callback) {
+        delegate.login(username, password, callback);
+    }
+
+    @Override
+    public String getSessionID() {
+        return delegate.getSessionID();
+    }
+
+    @Override
+    public void setSessionID(String sessionID) {
+        delegate.setSessionID(sessionID);
+    }
+
+    @Override
+    public void getRecord(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                          @NotNull SugarResponse callback) {
+        delegate.getRecord(moduleName, data, callback);
+    }
+
+    @Override
+    public void getRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                           @NotNull SugarResponse callback) {
+        delegate.getRecords(moduleName, data, callback);
+    }
+
+    @Override
+    public void getMultipleRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                   @NotNull SugarResponse callback) {
+        delegate.getMultipleRecords(moduleName, data, callback);
+    }
+
+    @Override
+    public void setRecord(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                          @NotNull SugarResponse callback) {
+        delegate.setRecord(moduleName, data, callback);
+    }
+
+    @Override
+    public void setRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                           @NotNull HashMap<String, String>[] inserts, @NotNull SugarResponse callback) {
+        delegate.setRecords(moduleName, data, inserts, callback);
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> loginAsync(String username, String password, SugarResponse callback) {
+        return delegate.loginAsync(username, password, callback);
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> getRecordAsync(@NotNull String moduleName,
+                                                           @NotNull HashMap<String, String> data,
+                                                           @NotNull SugarResponse callback) {
+        return delegate.getRecordAsync(moduleName, data, callback);
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> getRecordsAsync(@NotNull String moduleName,
+                                                            @NotNull HashMap<String, String> data,
+                                                            @NotNull SugarResponse callback) {
+        return delegate.getRecordsAsync(moduleName, data, callback);
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> getMultipleRecordsAsync(@NotNull String moduleName,
+                                                                    @NotNull HashMap<String, String> data,
+                                                                    @NotNull SugarResponse callback) {
+        return delegate.getMultipleRecordsAsync(moduleName, data, callback);
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> setRecordAsync(@NotNull String moduleName,
+                                                           @NotNull HashMap<String, String> data,
+                                                           @NotNull SugarResponse callback) {
+        return delegate.setRecordAsync(moduleName, data, callback);
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> setRecordsAsync(@NotNull String moduleName,
+                                                            @NotNull HashMap<String, String> data,
+                                                            @NotNull HashMap<String, String>[] inserts,
+                                                            @NotNull SugarResponse callback) {
+        return delegate.setRecordsAsync(moduleName, data, inserts, callback);
+    }
+
+    @Override
+    public EntryListPage streamRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                       @NotNull RecordHandler handler) {
+        return delegate.streamRecords(moduleName, data, handler);
+    }
+
+    @Override
+    public EntryListPage streamRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                       @NotNull RecordSink sink) throws IOException {
+        return delegate.streamRecords(moduleName, data, sink);
+    }
+
+    @Override
+    public CompletableFuture<EntryListPage> streamRecordsAsync(@NotNull String moduleName,
+                                                               @NotNull HashMap<String, String> data,
+                                                               @NotNull RecordHandler handler) {
+        return delegate.streamRecordsAsync(moduleName, data, handler);
+    }
+
+    @Override
+    public CompletableFuture<EntryListPage> streamRecordsAsync(@NotNull String moduleName,
+                                                               @NotNull HashMap<String, String> data,
+                                                               @NotNull RecordSink sink) {
+        return delegate.streamRecordsAsync(moduleName, data, sink);
+    }
+
+    /**
+     * The cursor pages through this layer, not straight through the delegate
+     */
+    @Override
+    public RecordCursor getRecordCursor(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                        int prefetchDepth) {
+        return new RecordCursor(this, moduleName, data, prefetchDepth);
+    }
+}
@@ -0,0 +1,766 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.ChangeHandler;
+import Interfaces.RecordHandler;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ *     A local on-disk copy of sugar records, for reads that can do with a recent copy instead of a round trip.
+ *     Each module has an append-only segment file holding every version of its records and a memory-mapped
+ *     index from record id to the offset of the latest version, so a lookup is a probe in the mapped index and
+ *     one positional read, and a module scan is a sequential read of the segment.
+ * </p>
+ * <p>
+ *     Writing a record appends it and repoints the index, removing one appends a tombstone. Superseded versions
+ *     and tombstones stay in the segment until it is compacted, which happens by itself once they take up more
+ *     than half of it (see {@link #setCompaction(double, long)}) or when {@link #compact(String)} is called.
+ * </p>
+ * <p>
+ *     Every record carries a checksum. The index is marked clean when the store is closed, a store that wasn't
+ *     closed (a crash) rebuilds its index from the segment when the module is first used again, dropping a
+ *     record left half written at the end.
+ * </p>
+ * e.g. keeping the mirror current with a {@link DeltaSync}:
+ * <pre>
+ *     MirrorStore mirror = new MirrorStore(Paths.get("/var/lib/crm-mirror"));
+ *     new DeltaSync(api, checkpoints).sync("Accounts", new HashMap&lt;&gt;(), mirror.changeHandler("Accounts"));
+ *     Map&lt;String, String&gt; account = mirror.get("Accounts", id);
+ * </pre>
+ * Created on 17/10/26.
+ */
+public class MirrorStore implements AutoCloseable {
+
+    private static final int MAGIC = 0x5053494d;
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int SLOT = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    //length and crc, then the body: type, storedAt, id length
+    private static final int RECORD_PREFIX = 8;
+    private static final int BODY_PREFIX = 1 + 8 + 2;
+
+    private final Path directory;
+    private final Map<String, Module> modules = new ConcurrentHashMap<>();
+    private volatile double compactionRatio = 0.5;
+    private volatile long compactionMinBytes = 4L << 20;
+    private volatile boolean closed;
+
+    /**
+     * @param directory {Path} where the segment and index files are kept, created when missing
+     */
+    public MirrorStore(@NotNull Path directory){
+        this.directory = directory;
+    }
+
+    /**
+     * @param garbageRatio {double} compact a segment once superseded versions and tombstones are this share of it
+     * @param minBytes {long} never compact a segment smaller than this
+     */
+    public MirrorStore setCompaction(double garbageRatio, long minBytes) {
+        if(garbageRatio <= 0 || garbageRatio >= 1) throw new IllegalArgumentException("garbageRatio must be in (0, 1)");
+        this.compactionRatio = garbageRatio;
+        this.compactionMinBytes = minBytes;
+        return this;
+    }
+
+    /**
+     * @return {Map} the fields of the record, null when the mirror doesn't have it
+     */
+    public Map<String, String> get(@NotNull String moduleName, @NotNull String id) throws IOException{
+        Record record = read(moduleName, id);
+        return record==null ? null : record.fields;
+    }
+
+    /**
+     * @return {Record} the record and when it was stored, null when the mirror doesn't have it
+     */
+    public Record read(@NotNull String moduleName, @NotNull String id) throws IOException{
+        Module module = module(moduleName);
+        module.lock.readLock().lock();
+        try {
+            return module.read(id);
+        }finally {
+            module.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores a record, replacing the version the mirror had
+     * @param record {Map} the flattened record as {@link RecordHandler}s get it, it must hold the id
+     */
+    public void put(@NotNull String moduleName, @NotNull Map<String, String> record) throws IOException{
+        putAll(moduleName, Collections.singletonList(record));
+    }
+
+    public void putAll(@NotNull String moduleName, @NotNull Collection<? extends Map<String, String>> records)
+            throws IOException{
+        if(records.isEmpty()) return;
+        Module module = module(moduleName);
+        long storedAt = System.currentTimeMillis();
+        module.lock.writeLock().lock();
+        try {
+            for(Map<String, String> record : records){
+                String id = record.get("id");
+                if(id==null || id.isEmpty()) throw new IllegalArgumentException("A record to mirror needs its id");
+                module.append(PUT, id, storedAt, encode(record));
+            }
+            module.maybeCompact();
+        }finally {
+            module.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return {boolean} true when the mirror had the record
+     */
+    public boolean remove(@NotNull String moduleName, @NotNull String id) throws IOException{
+        Module module = module(moduleName);
+        module.lock.writeLock().lock();
+        try {
+            if(module.read(id)==null) return false;
+            module.append(REMOVE, id, System.currentTimeMillis(), new byte[0]);
+            module.maybeCompact();
+            return true;
+        }finally {
+            module.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Hands every record of the module to the handler, in the order they were last written.
+     * The handler may write to the store, records written during the scan may be handed over twice.
+     * A failure to read the segment goes to the handler's onFailed and ends the scan.
+     * @return {long} the number of records handed over
+     */
+    public long scan(@NotNull String moduleName, @NotNull RecordHandler handler){
+        long count = 0;
+        Module module;
+        try {
+            module = module(moduleName);
+        }catch (IOException ex){
+            handler.onFailed("Could not open the mirror of " + moduleName + ": " + ex.getMessage());
+            return count;
+        }
+        module.scanners.incrementAndGet();//holds compaction off, offsets stay valid between batches
+        try {
+            long position = 0;
+            List<Map<String, String>> batch = new ArrayList<>();
+            while (true){
+                module.lock.readLock().lock();
+                try {
+                    position = module.readLive(position, batch, 256);
+                }finally {
+                    module.lock.readLock().unlock();
+                }
+                if(batch.isEmpty()) return count;
+                for(Map<String, String> record : batch) handler.onRecord(record);
+                count += batch.size();
+                batch.clear();
+            }
+        }catch (IOException ex){
+            handler.onFailed("Could not read the mirror of " + moduleName + ": " + ex.getMessage());
+            return count;
+        }finally {
+            module.scanners.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return {int} the number of records the mirror holds for the module
+     */
+    public int size(@NotNull String moduleName) throws IOException{
+        Module module = module(moduleName);
+        module.lock.readLock().lock();
+        try {
+            return module.live;
+        }finally {
+            module.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return {long} the size of the module's segment file, in bytes
+     */
+    public long getSegmentBytes(@NotNull String moduleName) throws IOException{
+        Module module = module(moduleName);
+        module.lock.readLock().lock();
+        try {
+            return module.length;
+        }finally {
+            module.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return {long} the bytes of the segment held by superseded versions and tombstones
+     */
+    public long getGarbageBytes(@NotNull String moduleName) throws IOException{
+        Module module = module(moduleName);
+        module.lock.readLock().lock();
+        try {
+            return module.garbage;
+        }finally {
+            module.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the segment with only the latest version of each record
+     * @return {boolean} false when it was put off because a scan of the module is running
+     */
+    public boolean compact(@NotNull String moduleName) throws IOException{
+        Module module = module(moduleName);
+        module.lock.writeLock().lock();
+        try {
+            return module.compact();
+        }finally {
+            module.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A handler that applies the changes of a {@link DeltaSync} run to the module.
+     * A failure to write to the store is thrown as an {@link UncheckedIOException}, which stops the run
+     * before its checkpoint moves past the record.
+     */
+    public ChangeHandler changeHandler(@NotNull String moduleName){
+        return new ChangeHandler() {
+            @Override
+            public void onChanged(Map<String, String> record) {
+                try {
+                    put(moduleName, record);
+                }catch (IOException ex){
+                    throw new UncheckedIOException(ex);
+                }
+            }
+
+            @Override
+            public void onDeleted(String id, Map<String, String> record) {
+                try {
+                    remove(moduleName, id);
+                }catch (IOException ex){
+                    throw new UncheckedIOException(ex);
+                }
+            }
+
+            @Override
+            public void onFailed(String errorMessage) {
+            }
+        };
+    }
+
+    /**
+     * Forces the segments and indexes of every open module to disk
+     */
+    public void flush() throws IOException{
+        for(Module module : modules.values()){
+            module.lock.writeLock().lock();
+            try {
+                module.flush(false);
+            }finally {
+                module.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException{
+        if(closed) return;
+        closed = true;
+        IOException failure = null;
+        for(Module module : modules.values()){
+            module.lock.writeLock().lock();
+            try {
+                module.flush(true);
+                module.close();
+            }catch (IOException ex){
+                failure = ex;
+            }finally {
+                module.lock.writeLock().unlock();
+            }
+        }
+        modules.clear();
+        if(failure!=null) throw failure;
+    }
+
+    private synchronized Module module(String moduleName) throws IOException{
+        if(closed) throw new IllegalStateException("The mirror store is closed");
+        Module module = modules.get(moduleName);
+        if(module==null){
+            module = new Module(moduleName);
+            modules.put(moduleName, module);
+        }
+        return module;
+    }
+
+    /**
+     * A field count, then per field the name and the value (length -1 for null) as UTF-8
+     */
+    private static byte[] encode(Map<String, String> record){
+        int size = 4;
+        List<byte[]> parts = new ArrayList<>(record.size() * 2);
+        for(Map.Entry<String, String> field : record.entrySet()){
+            if(field.getKey().equals("module_name")) continue;
+            byte[] name = field.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] value = field.getValue()==null ? null : field.getValue().getBytes(StandardCharsets.UTF_8);
+            parts.add(name);
+            parts.add(value);
+            size += 2 + name.length + 4 + (value==null ? 0 : value.length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(parts.size() / 2);
+        for(int i = 0; i < parts.size(); i += 2){
+            buffer.putShort((short) parts.get(i).length).put(parts.get(i));
+            byte[] value = parts.get(i + 1);
+            buffer.putInt(value==null ? -1 : value.length);
+            if(value!=null) buffer.put(value);
+        }
+        return buffer.array();
+    }
+
+    private static Map<String, String> decode(ByteBuffer buffer){
+        int fields = buffer.getInt();
+        Map<String, String> record = new LinkedHashMap<>(fields * 2);
+        for(int i = 0; i < fields; i++){
+            String name = string(buffer, buffer.getShort() & 0xffff);
+            int length = buffer.getInt();
+            record.put(name, length < 0 ? null : string(buffer, length));
+        }
+        return record;
+    }
+
+    private static String string(ByteBuffer buffer, int length){
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * 64 bit FNV-1a, never 0 since 0 marks an empty slot
+     */
+    private static long hash(String id){
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < id.length(); i++){
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash==0 ? 1 : hash;
+    }
+
+    /**
+     * A mirrored record and the time it was written to the store
+     */
+    public static class Record {
+        private final String id;
+        private final Map<String, String> fields;
+        private final long storedAt;
+
+        Record(String id, Map<String, String> fields, long storedAt){
+            this.id = id;
+            this.fields = fields;
+            this.storedAt = storedAt;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Map<String, String> getFields() {
+            return fields;
+        }
+
+        /**
+         * @return {long} when the record was written to the store, in milliseconds since the epoch
+         */
+        public long getStoredAt() {
+            return storedAt;
+        }
+    }
+
+    /**
+     * The segment and index of one module. Reads hold the read lock, writes and compaction the write lock.
+     * Index header: magic, version, capacity, used slots, live records, clean flag, indexed segment length,
+     * garbage bytes. A slot is the id hash and the record offset + 1, 0 for an empty slot.
+     */
+    private final class Module {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final AtomicInteger scanners = new AtomicInteger();
+        private final Path segmentPath;
+        private final Path indexPath;
+        private FileChannel segment;
+        private FileChannel indexChannel;
+        private MappedByteBuffer index;
+        private int capacity;
+        private int used;
+        int live;
+        long length;
+        long garbage;
+
+        Module(String moduleName) throws IOException{
+            Files.createDirectories(directory);
+            String file = moduleName.replaceAll("[^A-Za-z0-9_-]", "_");
+            segmentPath = directory.resolve(file + ".seg");
+            indexPath = directory.resolve(file + ".idx");
+            Files.deleteIfExists(segmentPath.resolveSibling(file + ".seg.compact"));
+            Files.deleteIfExists(indexPath.resolveSibling(file + ".idx.compact"));
+            segment = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            length = segment.size();
+            if(!openIndex()) rebuildIndex();
+            index.putInt(20, 0);//dirty until closed
+            index.force();
+        }
+
+        /**
+         * @return {boolean} false when there is no usable index, it wasn't closed or doesn't match the segment
+         */
+        private boolean openIndex() throws IOException{
+            if(!Files.exists(indexPath)) return false;
+            FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = channel.size();
+            MappedByteBuffer mapped = size >= HEADER ? channel.map(FileChannel.MapMode.READ_WRITE, 0, size) : null;
+            if(mapped==null || mapped.getInt(0)!=MAGIC || mapped.getInt(4)!=VERSION || mapped.getInt(20)!=1 ||
+                    mapped.getLong(24)!=length || size!=HEADER + (long) mapped.getInt(8) * SLOT){
+                channel.close();
+                return false;
+            }
+            indexChannel = channel;
+            index = mapped;
+            capacity = mapped.getInt(8);
+            used = mapped.getInt(12);
+            live = mapped.getInt(16);
+            garbage = mapped.getLong(32);
+            return true;
+        }
+
+        private void rebuildIndex() throws IOException{
+            if(indexChannel!=null) indexChannel.close();
+            int slots = INITIAL_CAPACITY;
+            while(slots < length / 64) slots <<= 1;//a guess at the record count, the index grows if it is short
+            createIndex(indexPath, slots);
+            used = 0;
+            live = 0;
+            garbage = 0;
+            long end = length;
+            length = 0;
+            SegmentReader reader = new SegmentReader();
+            while(length < end){
+                Entry entry = reader.read(length, end);
+                if(entry==null){//a record left half written by a crash
+                    segment.truncate(length);
+                    break;
+                }
+                length += entry.size;
+                apply(entry.type, entry.id, entry.offset, entry.size);
+            }
+            writeHeader();
+        }
+
+        private void createIndex(Path path, int slots) throws IOException{
+            Files.deleteIfExists(path);
+            indexChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) slots * SLOT);
+            capacity = slots;
+            index.putInt(0, MAGIC);
+            index.putInt(4, VERSION);
+            index.putInt(8, capacity);
+        }
+
+        private void writeHeader(){
+            index.putInt(12, used);
+            index.putInt(16, live);
+            index.putLong(24, length);
+            index.putLong(32, garbage);
+        }
+
+        Record read(String id) throws IOException{
+            long hash = hash(id);
+            for(int slot = (int) hash & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)){
+                long slotHash = index.getLong(HEADER + slot * SLOT);
+                if(slotHash==0) return null;
+                if(slotHash!=hash) continue;
+                long offset = index.getLong(HEADER + slot * SLOT + 8) - 1;
+                ByteBuffer body = readBody(offset);
+                byte type = body.get();
+                long storedAt = body.getLong();
+                String recordId = string(body, body.getShort() & 0xffff);
+                if(!recordId.equals(id)) continue;
+                return type==REMOVE ? null : new Record(id, decode(body), storedAt);
+            }
+        }
+
+        /**
+         * Reads the live records from position on into batch
+         * @return {long} where the next batch starts
+         */
+        long readLive(long position, List<Map<String, String>> batch, int max) throws IOException{
+            SegmentReader reader = new SegmentReader();
+            while(position < length && batch.size() < max){
+                Entry entry = reader.read(position, length);
+                if(entry==null) throw new IOException("Corrupt record at " + position + " of " + segmentPath);
+                if(entry.type==PUT && isCurrent(hash(entry.id), entry.offset)) batch.add(decode(entry.payload));
+                position += entry.size;
+            }
+            return position;
+        }
+
+        void append(byte type, String id, long storedAt, byte[] payload) throws IOException{
+            byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+            int bodyLength = BODY_PREFIX + idBytes.length + payload.length;
+            ByteBuffer record = ByteBuffer.allocate(RECORD_PREFIX + bodyLength);
+            record.putInt(bodyLength).putInt(0);
+            record.put(type).putLong(storedAt).putShort((short) idBytes.length).put(idBytes).put(payload);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), RECORD_PREFIX, bodyLength);
+            record.putInt(4, (int) crc.getValue());
+            record.flip();
+            long offset = length;
+            while(record.hasRemaining()) segment.write(record, offset + record.position());
+            length += RECORD_PREFIX + bodyLength;
+            apply(type, id, offset, RECORD_PREFIX + bodyLength);
+            writeHeader();
+        }
+
+        /**
+         * Points the id's slot at the record, counting what it supersedes as garbage
+         */
+        private void apply(byte type, String id, long offset, int size) throws IOException{
+            long hash = hash(id);
+            int slot = findSlot(id, hash);
+            if(slot >= 0){
+                long previous = index.getLong(HEADER + slot * SLOT + 8) - 1;
+                ByteBuffer body = readBody(previous);
+                if(body.get()==PUT){//a tombstone was counted when it was written
+                    live--;
+                    garbage += RECORD_PREFIX + body.capacity();
+                }
+                index.putLong(HEADER + slot * SLOT + 8, offset + 1);
+                if(type==PUT) live++;
+                else garbage += size;//the tombstone itself goes at the next compaction
+                return;
+            }
+            if(type==REMOVE){
+                garbage += size;
+                return;
+            }
+            if((used + 1) * 2 > capacity){
+                grow();
+                slot = findSlot(id, hash);
+            }
+            slot = -slot - 1;
+            index.putLong(HEADER + slot * SLOT, hash);
+            index.putLong(HEADER + slot * SLOT + 8, offset + 1);
+            used++;
+            live++;
+        }
+
+        /**
+         * @return {int} the slot holding the id, or -(the empty slot it would go in) - 1
+         */
+        private int findSlot(String id, long hash) throws IOException{
+            for(int slot = (int) hash & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)){
+                long slotHash = index.getLong(HEADER + slot * SLOT);
+                if(slotHash==0) return -slot - 1;
+                if(slotHash!=hash) continue;
+                ByteBuffer body = readBody(index.getLong(HEADER + slot * SLOT + 8) - 1);
+                body.position(1 + 8);
+                if(string(body, body.getShort() & 0xffff).equals(id)) return slot;
+            }
+        }
+
+        private boolean isCurrent(long hash, long offset){
+            for(int slot = (int) hash & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)){
+                long slotHash = index.getLong(HEADER + slot * SLOT);
+                if(slotHash==0) return false;
+                if(slotHash==hash && index.getLong(HEADER + slot * SLOT + 8) - 1==offset) return true;
+            }
+        }
+
+        private void grow() throws IOException{
+            Path grown = indexPath.resolveSibling(indexPath.getFileName() + ".compact");
+            FileChannel oldChannel = indexChannel;
+            MappedByteBuffer old = index;
+            int oldCapacity = capacity;
+            createIndex(grown, capacity * 2);
+            for(int slot = 0; slot < oldCapacity; slot++){
+                long hash = old.getLong(HEADER + slot * SLOT);
+                if(hash==0) continue;
+                int target = (int) hash & (capacity - 1);
+                while(index.getLong(HEADER + target * SLOT)!=0) target = (target + 1) & (capacity - 1);
+                index.putLong(HEADER + target * SLOT, hash);
+                index.putLong(HEADER + target * SLOT + 8, old.getLong(HEADER + slot * SLOT + 8));
+            }
+            writeHeader();
+            oldChannel.close();
+            Files.move(grown, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        void maybeCompact() throws IOException{
+            if(length >= compactionMinBytes && garbage > length * compactionRatio) compact();
+        }
+
+        /**
+         * Copies the live records to a new segment and indexes it, the new segment replaces the old one
+         * with an atomic move. The old index is marked dirty first, so a crash between the two moves
+         * ends in a rebuild rather than an index pointing into the wrong segment.
+         */
+        boolean compact() throws IOException{
+            if(scanners.get() > 0) return false;
+            Path compacted = segmentPath.resolveSibling(segmentPath.getFileName() + ".compact");
+            long copied = 0;
+            try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(target), 64 << 10);
+                SegmentReader reader = new SegmentReader();
+                for(long position = 0; position < length; ){
+                    Entry entry = reader.read(position, length);
+                    if(entry==null) throw new IOException("Corrupt record at " + position + " of " + segmentPath);
+                    if(entry.type==PUT && isCurrent(hash(entry.id), entry.offset)){
+                        reader.copy(entry, out);
+                        copied += entry.size;
+                    }
+                    position += entry.size;
+                }
+                out.flush();
+                target.force(true);
+            }
+            index.putInt(20, 0);
+            index.force();
+            Files.move(compacted, segmentPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            segment.close();
+            segment = FileChannel.open(segmentPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            length = copied;
+            rebuildIndex();
+            return true;
+        }
+
+        void flush(boolean clean) throws IOException{
+            segment.force(true);
+            writeHeader();
+            index.putInt(20, clean ? 1 : 0);
+            index.force();
+        }
+
+        void close() throws IOException{
+            segment.close();
+            indexChannel.close();
+        }
+
+        private ByteBuffer readBody(long offset) throws IOException{
+            ByteBuffer prefix = ByteBuffer.allocate(4);
+            while(prefix.hasRemaining()) if(segment.read(prefix, offset + prefix.position()) < 0) break;
+            ByteBuffer body = ByteBuffer.allocate(prefix.getInt(0));
+            while(body.hasRemaining())
+                if(segment.read(body, offset + RECORD_PREFIX + body.position()) < 0)
+                    throw new IOException("Truncated record at " + offset + " of " + segmentPath);
+            body.flip();
+            return body;
+        }
+
+        /**
+         * Reads the segment front to back through a buffer, an entry's payload is only good until the next read
+         */
+        private final class SegmentReader {
+            private final CRC32 crc = new CRC32();
+            private ByteBuffer buffer = ByteBuffer.allocate(64 << 10);
+            private long start = -1;//segment offset of the first buffered byte
+
+            /**
+             * @return {Entry} the record at the offset, null when it is cut short or fails its checksum
+             */
+            Entry read(long offset, long end) throws IOException{
+                if(!fill(offset, RECORD_PREFIX, end)) return null;
+                int bodyLength = buffer.getInt((int) (offset - start));
+                if(bodyLength < BODY_PREFIX || offset + RECORD_PREFIX + bodyLength > end) return null;
+                if(!fill(offset, RECORD_PREFIX + bodyLength, end)) return null;
+                int at = (int) (offset - start);
+                crc.reset();
+                crc.update(buffer.array(), at + RECORD_PREFIX, bodyLength);
+                if((int) crc.getValue()!=buffer.getInt(at + 4)) return null;
+                ByteBuffer body = ByteBuffer.wrap(buffer.array(), at + RECORD_PREFIX, bodyLength).slice();
+                byte type = body.get();
+                body.getLong();
+                String id = string(body, body.getShort() & 0xffff);
+                return new Entry(type, id, offset, RECORD_PREFIX + bodyLength, body);
+            }
+
+            void copy(Entry entry, OutputStream out) throws IOException{
+                out.write(buffer.array(), (int) (entry.offset - start), entry.size);
+            }
+
+            /**
+             * Makes size bytes from the offset on available in the buffer
+             */
+            private boolean fill(long offset, int size, long end) throws IOException{
+                if(end - offset < size) return false;
+                if(start >= 0 && offset >= start && offset + size <= start + buffer.limit()) return true;
+                if(size > buffer.capacity()) buffer = ByteBuffer.allocate(size);
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+                start = offset;
+                while(buffer.hasRemaining()) if(segment.read(buffer, offset + buffer.position()) < 0) break;
+                buffer.limit(buffer.position());
+                return buffer.limit() >= size;
+            }
+        }
+    }
+
+    private static final class Entry {
+        final byte type;
+        final String id;
+        final long offset;
+        final int size;
+        final ByteBuffer payload;
+
+        Entry(byte type, String id, long offset, int size, ByteBuffer payload){
+            this.type = type;
+            this.id = id;
+            this.offset = offset;
+            this.size = size;
+            this.payload = payload;
+        }
+    }
+}
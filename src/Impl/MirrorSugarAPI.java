@@ -0,0 +1,405 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.SugarRequestInterface;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     Serves getRecord (get_entry) and getMultipleRecords (get_entries) from a {@link MirrorStore} when the
+ *     mirror has a recent enough copy of the records, get_entries only asks sugar for the ids the mirror can't
+ *     answer. Whatever sugar returns for a read of all fields is written to the mirror, records sugar reports
+ *     as deleted or missing are dropped from it. getRecords (get_entry_list) always goes to sugar and feeds
+ *     the mirror the same way.
+ * </p>
+ * <p>
+ *     Unlike a {@link CachingSugarAPI} the mirror survives restarts and holds whole modules, typically kept
+ *     current by a {@link DeltaSync} through {@link MirrorStore#changeHandler(String)}. A read asking for
+ *     specific fields is answered from the mirror only when the mirrored record has all of them, a read of
+ *     all fields assumes the mirror was fed complete records.
+ *     setRecord and setRecords drop the mirrored versions of the records they write. A mirror that fails to
+ *     read or write is treated as a miss, see {@link #getStoreFailures()}.
+ * </p>
+ * e.g.
+ * <pre>
+ *     MirrorStore mirror = new MirrorStore(Paths.get("/var/lib/crm-mirror"));
+ *     SugarRequestInterface api = new MirrorSugarAPI(SugarAPI.getSugarAPIInstance(url), mirror, 15, TimeUnit.MINUTES);
+ * </pre>
+ * Created on 17/10/26.
+ */
+public class MirrorSugarAPI extends ForwardingSugarAPI {
+
+    private final MirrorStore store;
+    private final long maxAgeMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong storeFailures = new AtomicLong();
+
+    /**
+     * Serves mirrored records whatever their age, for a mirror kept current by a sync
+     */
+    public MirrorSugarAPI(@NotNull SugarRequestInterface delegate, @NotNull MirrorStore store){
+        this(delegate, store, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxAge {long} how long after it was written a mirrored record is still served, 0 for no limit
+     */
+    public MirrorSugarAPI(@NotNull SugarRequestInterface delegate, @NotNull MirrorStore store,
+                          long maxAge, @NotNull TimeUnit unit){
+        super(delegate);
+        this.store = store;
+        this.maxAgeMillis = unit.toMillis(maxAge);
+    }
+
+    public MirrorStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return {long} the records answered from the mirror
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return {long} the records asked from sugar because the mirror didn't have them or had them too old
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return {long} the mirror reads and writes that failed, the requests went to sugar all the same
+     */
+    public long getStoreFailures() {
+        return storeFailures.get();
+    }
+
+    @Override
+    public void getRecord(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                          @NotNull SugarResponse callback) {
+        await(getRecordAsync(moduleName, data, callback));
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> getRecordAsync(@NotNull String moduleName,
+                                                           @NotNull HashMap<String, String> data,
+                                                           @NotNull SugarResponse callback) {
+        String id = data.get("id");
+        List<String> fields = parseList(data.get("fields"));
+        if(id==null || fields==null) return delegate.getRecordAsync(moduleName, data, callback);
+        String mirrored = lookup(moduleName, id, fields);
+        if(mirrored!=null){
+            callback.onSuccessful(mirrored);
+            return CompletableFuture.completedFuture(callback);
+        }
+        Capture capture = new Capture(callback);
+        return delegate.getRecordAsync(moduleName, data, capture).thenApply(r -> {
+            mirror(moduleName, fields, capture.body);
+            callback.onSuccessful(capture.body);
+            return callback;
+        });
+    }
+
+    @Override
+    public void getMultipleRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                   @NotNull SugarResponse callback) {
+        await(getMultipleRecordsAsync(moduleName, data, callback));
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> getMultipleRecordsAsync(@NotNull String moduleName,
+                                                                    @NotNull HashMap<String, String> data,
+                                                                    @NotNull SugarResponse callback) {
+        List<String> ids = parseList(data.get("ids"));
+        List<String> fields = parseList(data.get("fields"));
+        if(ids==null || fields==null || data.containsKey("extras"))
+            return delegate.getMultipleRecordsAsync(moduleName, data, callback);
+        Map<String, String> found = new HashMap<>();
+        JsonArray missing = new JsonArray();
+        for(String id : ids){
+            String mirrored = lookup(moduleName, id, fields);
+            if(mirrored!=null) found.put(id, mirrored);
+            else missing.add(new JsonPrimitive(id));
+        }
+        if(missing.size()==0){
+            callback.onSuccessful(join(ids, found));
+            return CompletableFuture.completedFuture(callback);
+        }
+        HashMap<String, String> missingData = new HashMap<>(data);
+        missingData.put("ids", missing.toString());
+        Capture capture = new Capture(callback);
+        return delegate.getMultipleRecordsAsync(moduleName, missingData, capture).thenApply(r -> {
+            Map<String, String> fetched = mirror(moduleName, fields, capture.body);
+            if(fetched==null || found.isEmpty()){//an error, or nothing came from the mirror: hand sugar's body over
+                callback.onSuccessful(capture.body);
+            }else{
+                found.putAll(fetched);
+                callback.onSuccessful(join(ids, found));
+            }
+            return callback;
+        });
+    }
+
+    @Override
+    public void getRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                           @NotNull SugarResponse callback) {
+        await(getRecordsAsync(moduleName, data, callback));
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> getRecordsAsync(@NotNull String moduleName,
+                                                            @NotNull HashMap<String, String> data,
+                                                            @NotNull SugarResponse callback) {
+        List<String> fields = parseList(data.get("fields"));
+        if(fields==null || !fields.isEmpty()) return delegate.getRecordsAsync(moduleName, data, callback);
+        Capture capture = new Capture(callback);
+        return delegate.getRecordsAsync(moduleName, data, capture).thenApply(r -> {
+            mirror(moduleName, fields, capture.body);
+            callback.onSuccessful(capture.body);
+            return callback;
+        });
+    }
+
+    @Override
+    public void setRecord(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                          @NotNull SugarResponse callback) {
+        await(setRecordAsync(moduleName, data, callback));
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> setRecordAsync(@NotNull String moduleName,
+                                                           @NotNull HashMap<String, String> data,
+                                                           @NotNull SugarResponse callback) {
+        String id = data.get("id");
+        if(id!=null) drop(moduleName, id);
+        return delegate.setRecordAsync(moduleName, data, callback).whenComplete((r, error) -> {
+            if(id!=null) drop(moduleName, id);
+        });
+    }
+
+    @Override
+    public void setRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                           @NotNull HashMap<String, String>[] inserts, @NotNull SugarResponse callback) {
+        await(setRecordsAsync(moduleName, data, inserts, callback));
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> setRecordsAsync(@NotNull String moduleName,
+                                                            @NotNull HashMap<String, String> data,
+                                                            @NotNull HashMap<String, String>[] inserts,
+                                                            @NotNull SugarResponse callback) {
+        drop(moduleName, inserts);
+        return delegate.setRecordsAsync(moduleName, data, inserts, callback).whenComplete((r, error) ->
+                drop(moduleName, inserts));
+    }
+
+    /**
+     * @param fields {List} the fields asked for, empty for all of them
+     * @return {String} a get_entry shaped response built from the mirror, null when it can't answer
+     */
+    private String lookup(String moduleName, String id, List<String> fields){
+        MirrorStore.Record record;
+        try {
+            record = store.read(moduleName, id);
+        }catch (IOException | RuntimeException ex){
+            storeFailures.incrementAndGet();
+            record = null;
+        }
+        if(record==null || (maxAgeMillis > 0 && System.currentTimeMillis() - record.getStoredAt() > maxAgeMillis) ||
+                !record.getFields().keySet().containsAll(fields)){
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        JsonObject nameValueList = new JsonObject();
+        for(Map.Entry<String, String> field : record.getFields().entrySet()){
+            if(!fields.isEmpty() && !fields.contains(field.getKey())) continue;
+            JsonObject nameValue = new JsonObject();
+            nameValue.addProperty("name", field.getKey());
+            nameValue.addProperty("value", field.getValue());
+            nameValueList.add(field.getKey(), nameValue);
+        }
+        JsonObject entry = new JsonObject();
+        entry.addProperty("id", id);
+        entry.addProperty("module_name", moduleName);
+        entry.add("name_value_list", nameValueList);
+        JsonArray entryList = new JsonArray();
+        entryList.add(entry);
+        JsonObject single = new JsonObject();
+        single.add("entry_list", entryList);
+        single.add("relationship_list", new JsonArray());
+        return single.toString();
+    }
+
+    /**
+     * Writes the live entries of a read of all fields to the mirror and drops the deleted or missing ones
+     * @return {Map} id to single response, null when the body isn't an entry_list response
+     */
+    private Map<String, String> mirror(String moduleName, List<String> fields, String body){
+        JsonObject responseObject;
+        try {
+            responseObject = new JsonParser().parse(body).getAsJsonObject();
+        }catch (RuntimeException ex){
+            return null;
+        }
+        if(!responseObject.has("entry_list") || !responseObject.get("entry_list").isJsonArray()) return null;
+        List<Map<String, String>> live = new ArrayList<>();
+        for(JsonElement element : responseObject.getAsJsonArray("entry_list")){
+            JsonObject entry = element.getAsJsonObject();
+            JsonElement id = entry.get("id");
+            if(id==null || !id.isJsonPrimitive()) continue;
+            if(isLive(entry)){
+                if(fields.isEmpty()) live.add(flatten(entry));
+            }else{
+                drop(moduleName, id.getAsString());
+            }
+        }
+        try {
+            store.putAll(moduleName, live);
+        }catch (IOException | RuntimeException ex){
+            storeFailures.incrementAndGet();
+        }
+        return EntryResponses.splitById(responseObject);
+    }
+
+    /**
+     * Sugar answers a deleted or unknown id with a warning in place of the fields, and get_entry_list with
+     * deleted=1 returns deleted records flagged deleted="1"
+     */
+    private static boolean isLive(JsonObject entry){
+        JsonElement nameValueList = entry.get("name_value_list");
+        if(nameValueList==null || !nameValueList.isJsonObject()) return true;
+        JsonObject fields = nameValueList.getAsJsonObject();
+        if(fields.has("warning")) return false;
+        JsonElement deleted = fields.get("deleted");
+        if(deleted==null || !deleted.isJsonObject()) return true;
+        JsonElement value = deleted.getAsJsonObject().get("value");
+        return value==null || !value.isJsonPrimitive() || !"1".equals(value.getAsString());
+    }
+
+    /**
+     * The record as the {@link EntryListReader} hands it over: id and module_name plus the name_value_list values
+     */
+    private static Map<String, String> flatten(JsonObject entry){
+        Map<String, String> record = new LinkedHashMap<>();
+        record.put("id", entry.get("id").getAsString());
+        JsonElement nameValueList = entry.get("name_value_list");
+        if(nameValueList==null || !nameValueList.isJsonObject()) return record;
+        for(Map.Entry<String, JsonElement> field : nameValueList.getAsJsonObject().entrySet()){
+            JsonElement value = field.getValue().isJsonObject() ? field.getValue().getAsJsonObject().get("value") : null;
+            record.put(field.getKey(), value==null || value.isJsonNull() ? null :
+                    value.isJsonPrimitive() ? value.getAsString() : value.toString());
+        }
+        return record;
+    }
+
+    private void drop(String moduleName, String id){
+        try {
+            store.remove(moduleName, id);
+        }catch (IOException | RuntimeException ex){
+            storeFailures.incrementAndGet();
+        }
+    }
+
+    private void drop(String moduleName, HashMap<String, String>[] inserts){
+        for(HashMap<String, String> insert : inserts){
+            String id = insert.get("id");
+            if(id!=null) drop(moduleName, id);
+        }
+    }
+
+    private static String join(List<String> ids, Map<String, String> singles){
+        List<String> ordered = new ArrayList<>(ids.size());
+        for(String id : ids){
+            String single = singles.get(id);
+            if(single!=null) ordered.add(single);
+        }
+        return EntryResponses.combine(ordered);
+    }
+
+    /**
+     * @return {List} the values of a JSON array parameter, empty when it is missing or empty,
+     * null when it isn't a plain array
+     */
+    private static List<String> parseList(String value){
+        if(value==null || value.trim().isEmpty()) return Collections.emptyList();
+        try {
+            JsonElement parsed = new JsonParser().parse(value);
+            if(!parsed.isJsonArray()) return null;
+            List<String> list = new ArrayList<>();
+            for(JsonElement element : parsed.getAsJsonArray()){
+                if(!element.isJsonPrimitive()) return null;
+                list.add(element.getAsString());
+            }
+            return list;
+        }catch (RuntimeException ex){
+            return null;//let sugar answer whatever the caller sent
+        }
+    }
+
+    private static void await(CompletableFuture<SugarResponse> future){
+        try {
+            future.join();
+        }catch (CompletionException ex){
+            //the callback has already been told through onFailed
+        }
+    }
+
+    /**
+     * Holds on to the body so it can be mirrored before the caller's callback sees it, failures go straight through
+     */
+    private static class Capture extends SugarResponse {
+        private final SugarResponse callback;
+        volatile String body;
+
+        Capture(SugarResponse callback){
+            this.callback = callback;
+        }
+
+        @Override
+        public void onSuccessful(String data) {
+            body = data;
+        }
+
+        @Override
+        public void onFailed(String errorMessage) {
+            callback.onFailed(errorMessage);
+        }
+    }
+}
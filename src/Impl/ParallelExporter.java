@@ -0,0 +1,376 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.RecordHandler;
+import Interfaces.SugarRequestInterface;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     Exports a whole module by fetching several partitions of it at the same time.
+ *     By default a first get_entry_list call reads total_count and the module is split into offset ranges,
+ *     alternatively the caller can partition on queries (e.g date_entered or id buckets) with
+ *     {@link #export(String, HashMap, List, RecordHandler)}.
+ * </p>
+ * <p>
+ *     Partitions are fetched by a bounded pool of workers and merged into one stream of records that is
+ *     delivered on the calling thread, so the handler doesn't need to be thread safe. In ordered mode the
+ *     records come out in partition order (the order of an offset walk when the query has a stable order_by),
+ *     otherwise in the order they arrive. Workers block once their partition's buffer is full, so a slow
+ *     handler slows the export down instead of filling the heap.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class ParallelExporter {
+
+    private static final Object END = new Object();
+
+    private final SugarRequestInterface api;
+    private final int workers;
+    private int partitionsPerWorker = 4;
+    private int pageSize = 100;
+    private int bufferedPagesPerPartition = 2;
+    private boolean ordered;
+    private ProgressListener progressListener;
+
+    /**
+     * @param api {SugarRequestInterface} the api used to fetch the pages
+     * @param workers {int} the number of partitions fetched at the same time
+     */
+    public ParallelExporter(@NotNull SugarRequestInterface api, int workers){
+        if(workers < 1) throw new IllegalArgumentException("workers must be at least 1");
+        this.api = api;
+        this.workers = workers;
+    }
+
+    /**
+     * @param partitionsPerWorker {int} offset ranges per worker, smaller partitions balance uneven pages better
+     */
+    public ParallelExporter setPartitionsPerWorker(int partitionsPerWorker) {
+        if(partitionsPerWorker < 1) throw new IllegalArgumentException("partitionsPerWorker must be at least 1");
+        this.partitionsPerWorker = partitionsPerWorker;
+        return this;
+    }
+
+    public ParallelExporter setPageSize(int pageSize) {
+        if(pageSize < 1) throw new IllegalArgumentException("pageSize must be at least 1");
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param bufferedPagesPerPartition {int} how many pages a worker may run ahead of the handler
+     */
+    public ParallelExporter setBufferedPagesPerPartition(int bufferedPagesPerPartition) {
+        if(bufferedPagesPerPartition < 1)
+            throw new IllegalArgumentException("bufferedPagesPerPartition must be at least 1");
+        this.bufferedPagesPerPartition = bufferedPagesPerPartition;
+        return this;
+    }
+
+    public ParallelExporter setOrdered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+    public ParallelExporter setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Splits the module into offset ranges using the total_count of a first get_entry_list call
+     * @param moduleName {String} The name of the module to query or plainly the table name
+     * @param data {HashMap} The post data, the same keys as getRecords. <b>offset</b> and <b>max</b> are
+     *             managed by the exporter, give the query a stable <b>order_by</b> (e.g the id)
+     * @param handler {RecordHandler} receives every record on the calling thread, or the failure that stopped
+     *                the export
+     * @return {Result} the partitions and the overall figures
+     * @throws InterruptedException when the calling thread is interrupted, the workers are stopped
+     */
+    public Result export(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                         @NotNull RecordHandler handler) throws InterruptedException {
+        HashMap<String, String> probe = new HashMap<>(data);
+        probe.put("offset", "0");
+        probe.put("max", "1");
+        EntryListPage first = api.streamRecords(moduleName, probe, new RecordHandler() {
+            @Override
+            public void onRecord(Map<String, String> record) {
+            }
+
+            @Override
+            public void onFailed(String errorMessage) {
+            }
+        });
+        if(first==null || first.isError() || first.getTotalCount() < 0){
+            handler.onFailed("Could not read the total_count of " + moduleName +
+                    (first!=null && first.isError() ? ": " + first.getError() : ""));
+            return new Result(Collections.emptyList(), 0, 0);
+        }
+        int total = first.getTotalCount();
+        int count = Math.max(1, Math.min(workers * partitionsPerWorker, (total + pageSize - 1) / pageSize));
+        //align the ranges on page boundaries so each partition is a whole number of pages
+        int pagesPerPartition = ((total + pageSize - 1) / pageSize + count - 1) / count;
+        List<Partition> partitions = new ArrayList<>();
+        for(int start = 0; start < total || partitions.isEmpty(); start += pagesPerPartition * pageSize){
+            partitions.add(new Partition(partitions.size(), data.get("query"), start,
+                    Math.min(total, start + pagesPerPartition * pageSize)));
+        }
+        return run(moduleName, data, partitions, handler);
+    }
+
+    /**
+     * Exports one partition per query, each query is paged from offset 0 until it runs dry.
+     * The queries must not overlap, e.g "accounts.date_entered &lt; '2015-01-01'" and
+     * "accounts.date_entered &gt;= '2015-01-01'"
+     * @see #export(String, HashMap, RecordHandler)
+     */
+    public Result export(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                         @NotNull List<String> queries, @NotNull RecordHandler handler) throws InterruptedException {
+        List<Partition> partitions = new ArrayList<>();
+        for(String query : queries) partitions.add(new Partition(partitions.size(), query, 0, -1));
+        return run(moduleName, data, partitions, handler);
+    }
+
+    private Result run(String moduleName, HashMap<String, String> data, List<Partition> partitions,
+                       RecordHandler handler) throws InterruptedException {
+        int capacity = pageSize * bufferedPagesPerPartition;
+        List<BlockingQueue<Object>> queues = new ArrayList<>();
+        BlockingQueue<Object> shared = ordered ? null : new ArrayBlockingQueue<>(capacity * workers);
+        for(int i = 0; i < partitions.size(); i++) queues.add(ordered ? new ArrayBlockingQueue<>(capacity) : shared);
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, partitions.size()), runnable -> {
+            Thread thread = new Thread(runnable, "psugar-export-" + moduleName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long started = System.nanoTime();
+        long delivered = 0;
+        try {
+            for(Partition partition : partitions){//submitted in order, so the head partitions are fetched first
+                BlockingQueue<Object> queue = queues.get(partition.index);
+                pool.execute(() -> fetch(moduleName, data, partition, queue));
+            }
+            int finished = 0;
+            for(int i = 0; finished < partitions.size(); ){
+                Object item = queues.get(ordered ? i : 0).take();
+                if(item==END){
+                    finished++;
+                    i++;
+                }else if(item instanceof Failure){
+                    handler.onFailed(((Failure) item).message);
+                    return new Result(partitions, delivered, System.nanoTime() - started);
+                }else{
+                    @SuppressWarnings("unchecked") Map<String, String> record = (Map<String, String>) item;
+                    handler.onRecord(record);
+                    delivered++;
+                }
+            }
+        }finally {
+            pool.shutdownNow();
+        }
+        return new Result(partitions, delivered, System.nanoTime() - started);
+    }
+
+    private void fetch(String moduleName, HashMap<String, String> data, Partition partition,
+                       BlockingQueue<Object> queue){
+        partition.startedAt = System.nanoTime();
+        try {
+            int offset = partition.startOffset;
+            while (partition.endOffset < 0 || offset < partition.endOffset){
+                HashMap<String, String> pageData = new HashMap<>(data);
+                if(partition.query!=null) pageData.put("query", partition.query);
+                int max = partition.endOffset < 0 ? pageSize : Math.min(pageSize, partition.endOffset - offset);
+                pageData.put("offset", String.valueOf(offset));
+                pageData.put("max", String.valueOf(max));
+                int[] received = new int[1];
+                EntryListPage page = api.streamRecords(moduleName, pageData,
+                        EntryListReader.toSink(new RecordHandler() {
+                            @Override
+                            public void onRecord(Map<String, String> record) {
+                                try {
+                                    queue.put(record);
+                                    received[0]++;
+                                }catch (InterruptedException ex){
+                                    Thread.currentThread().interrupt();
+                                    throw new CancellationException("export stopped");
+                                }
+                            }
+
+                            @Override
+                            public void onFailed(String errorMessage) {
+                            }
+                        }));
+                if(page.isError()) throw new IllegalStateException(page.getError());
+                partition.records.addAndGet(received[0]);
+                partition.pages.incrementAndGet();
+                if(progressListener!=null) progressListener.onPage(partition);
+                if(received[0]==0) break;
+                offset += received[0];//follows sugar if it caps max_results below the page size
+            }
+            partition.finishedAt = System.nanoTime();
+            queue.put(END);
+        }catch (CancellationException | InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }catch (Exception ex){
+            partition.finishedAt = System.nanoTime();
+            try {
+                queue.put(new Failure("Partition " + partition.index + " of " + moduleName + " at offset " +
+                        partition.startOffset + " failed: " + ex.getMessage()));
+            }catch (InterruptedException stopped){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Notified from the worker threads after every page, implementations must be thread safe
+     */
+    public interface ProgressListener {
+        void onPage(Partition partition);
+    }
+
+    /**
+     * One offset range (or query) of the export and its progress
+     */
+    public static class Partition {
+        private final int index;
+        private final String query;
+        private final int startOffset;
+        private final int endOffset;
+        private final AtomicLong records = new AtomicLong();
+        private final AtomicLong pages = new AtomicLong();
+        private volatile long startedAt;
+        private volatile long finishedAt;
+
+        Partition(int index, String query, int startOffset, int endOffset){
+            this.index = index;
+            this.query = query;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public int getStartOffset() {
+            return startOffset;
+        }
+
+        /**
+         * @return {int} the exclusive end offset, -1 for a query partition that is paged until it runs dry
+         */
+        public int getEndOffset() {
+            return endOffset;
+        }
+
+        public long getRecords() {
+            return records.get();
+        }
+
+        public long getPages() {
+            return pages.get();
+        }
+
+        public boolean isDone(){
+            return finishedAt!=0;
+        }
+
+        public long getElapsedMillis(){
+            if(startedAt==0) return 0;
+            return TimeUnit.NANOSECONDS.toMillis((finishedAt!=0 ? finishedAt : System.nanoTime()) - startedAt);
+        }
+
+        /**
+         * @return {double} records fetched per second so far
+         */
+        public double getThroughput(){
+            long millis = getElapsedMillis();
+            return millis==0 ? 0 : records.get() * 1000.0 / millis;
+        }
+
+        @Override
+        public String toString() {
+            return "partition " + index + " [" + startOffset + ", " + (endOffset < 0 ? "end" : endOffset) + ") " +
+                    records.get() + " records in " + pages.get() + " pages, " +
+                    String.format("%.1f", getThroughput()) + " records/s";
+        }
+    }
+
+    /**
+     * The outcome of an export
+     */
+    public static class Result {
+        private final List<Partition> partitions;
+        private final long records;
+        private final long elapsedNanos;
+
+        Result(List<Partition> partitions, long records, long elapsedNanos){
+            this.partitions = Collections.unmodifiableList(partitions);
+            this.records = records;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public List<Partition> getPartitions() {
+            return partitions;
+        }
+
+        /**
+         * @return {long} the number of records handed to the handler
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        public long getElapsedMillis(){
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        public double getThroughput(){
+            long millis = getElapsedMillis();
+            return millis==0 ? 0 : records * 1000.0 / millis;
+        }
+    }
+
+    private static class Failure {
+        final String message;
+
+        Failure(String message){
+            this.message = message;
+        }
+    }
+}
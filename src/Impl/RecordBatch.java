@@ -0,0 +1,394 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.RecordSink;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ *     A page of records stored by column. Field names are held once in a {@link Schema} that can be shared by
+ *     every page of a job, and the values of each field are kept in one array, so a record costs an array slot
+ *     per field instead of a map node, a key and a value object.
+ *     With dictionary encoding a column that keeps repeating the same values (status, assigned_user_id,
+ *     deleted...) stores each distinct value once and an int code per row.
+ * </p>
+ * <p>
+ *     Returned by {@link SugarResponse#getJsonObjectResponse(ConversionType)} for {@link ConversionType#COLUMNAR},
+ *     or built straight from the stream by handing a {@link Builder} to
+ *     {@link SugarAPI#streamRecords(String, HashMap, RecordSink)}.
+ * </p>
+ * e.g.
+ * <pre>
+ *     RecordBatch.Schema schema = new RecordBatch.Schema();
+ *     RecordBatch.Builder builder = new RecordBatch.Builder(schema, true);
+ *     sugarAPI.streamRecords("Contacts", data, builder);
+ *     RecordBatch batch = builder.build();
+ *     int email = schema.indexOf("email1");
+ *     for(int row = 0; row &lt; batch.getRowCount(); row++) send(batch.getString(row, email));
+ * </pre>
+ * Created on 17/10/26.
+ */
+public class RecordBatch {
+
+    private final Schema schema;
+    private final Column[] columns;
+    private final int rowCount;
+
+    private RecordBatch(Schema schema, Column[] columns, int rowCount){
+        this.schema = schema;
+        this.columns = columns;
+        this.rowCount = rowCount;
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @param field {String} the field name
+     * @return {int} the column of the field, -1 when no record of the schema had it
+     */
+    public int columnIndex(@NotNull String field){
+        return schema.indexOf(field);
+    }
+
+    /**
+     * @param row {int} the record, 0 to rowCount - 1
+     * @param column {int} the column, as given by {@link #columnIndex(String)}
+     * @return {String} the value, null when the record doesn't have the field
+     */
+    public String getString(int row, int column){
+        checkRow(row);
+        if(column < 0 || column >= columns.length || columns[column]==null) return null;
+        return columns[column].get(row);
+    }
+
+    public String getString(int row, @NotNull String field){
+        return getString(row, columnIndex(field));
+    }
+
+    public boolean isNull(int row, int column){
+        return getString(row, column)==null;
+    }
+
+    /**
+     * @return {int} the value parsed as an int, defaultValue when it is null, empty or not a number
+     */
+    public int getInt(int row, int column, int defaultValue){
+        String value = getString(row, column);
+        if(value==null || value.isEmpty()) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        }catch (NumberFormatException ex){
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return {long} the value parsed as a long, defaultValue when it is null, empty or not a number
+     */
+    public long getLong(int row, int column, long defaultValue){
+        String value = getString(row, column);
+        if(value==null || value.isEmpty()) return defaultValue;
+        try {
+            return Long.parseLong(value);
+        }catch (NumberFormatException ex){
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return {double} the value parsed as a double, defaultValue when it is null, empty or not a number
+     */
+    public double getDouble(int row, int column, double defaultValue){
+        String value = getString(row, column);
+        if(value==null || value.isEmpty()) return defaultValue;
+        try {
+            return Double.parseDouble(value);
+        }catch (NumberFormatException ex){
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Sugar sends checkboxes and the deleted flag as "1"/"0", some fields as "true"/"false"
+     * @return {boolean} true for "1" and "true"
+     */
+    public boolean getBoolean(int row, int column){
+        String value = getString(row, column);
+        return "1".equals(value) || "true".equalsIgnoreCase(value);
+    }
+
+    /**
+     * @return {int} the number of distinct values of a dictionary encoded column, -1 for a plain column
+     */
+    public int getDictionarySize(int column){
+        if(column < 0 || column >= columns.length || columns[column]==null) return -1;
+        return columns[column].dictionary==null ? -1 : columns[column].dictionary.length;
+    }
+
+    /**
+     * Builds a map of one record, for code that still wants one
+     * @return {Map} field name to value of the fields the record has, in schema order
+     */
+    public Map<String, String> getRow(int row){
+        checkRow(row);
+        Map<String, String> record = new LinkedHashMap<>();
+        for(int column = 0; column < columns.length; column++){
+            if(columns[column]==null || !columns[column].has(row)) continue;
+            record.put(schema.getName(column), columns[column].get(row));
+        }
+        return record;
+    }
+
+    private void checkRow(int row){
+        if(row < 0 || row >= rowCount)
+            throw new IndexOutOfBoundsException("Row " + row + " of a batch of " + rowCount + " records");
+    }
+
+    @Override
+    public String toString() {
+        return rowCount + " records, " + columns.length + " columns";
+    }
+
+    /**
+     * The field names of one or more batches, a field keeps its column index for the life of the schema
+     */
+    public static class Schema {
+        private final Map<String, Integer> indexes = new ConcurrentHashMap<>();
+        private volatile String[] names = new String[0];
+
+        /**
+         * @return {int} the column of the field, -1 when the schema doesn't have it
+         */
+        public int indexOf(@NotNull String field){
+            Integer index = indexes.get(field);
+            return index==null ? -1 : index;
+        }
+
+        public String getName(int column){
+            return names[column];
+        }
+
+        public int size(){
+            return names.length;
+        }
+
+        public List<String> getNames(){
+            return Collections.unmodifiableList(Arrays.asList(names));
+        }
+
+        synchronized int add(String field){
+            Integer index = indexes.get(field);
+            if(index!=null) return index;
+            String[] grown = Arrays.copyOf(names, names.length + 1);
+            grown[names.length] = field;
+            names = grown;
+            indexes.put(field, names.length - 1);
+            return names.length - 1;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(names);
+        }
+    }
+
+    /**
+     * Collects the records pushed by the {@link EntryListReader} into columns.
+     * A builder is used by one thread and makes one batch.
+     */
+    public static class Builder implements RecordSink {
+        private final Schema schema;
+        private final boolean dictionaryEncode;
+        private ColumnBuilder[] columns = new ColumnBuilder[16];
+        private int rows;
+        private boolean built;
+
+        public Builder(){
+            this(new Schema(), true);
+        }
+
+        public Builder(boolean dictionaryEncode){
+            this(new Schema(), dictionaryEncode);
+        }
+
+        /**
+         * @param schema {Schema} the schema shared with the other pages of the job
+         * @param dictionaryEncode {boolean} true to store repeated values once per column
+         */
+        public Builder(@NotNull Schema schema, boolean dictionaryEncode){
+            this.schema = schema;
+            this.dictionaryEncode = dictionaryEncode;
+        }
+
+        @Override
+        public void beginRecord() {
+            if(built) throw new IllegalStateException("The batch has already been built");
+        }
+
+        @Override
+        public void field(String name, String value) {
+            int column = schema.indexOf(name);
+            if(column < 0) column = schema.add(name);
+            if(column >= columns.length) columns = Arrays.copyOf(columns, Math.max(columns.length * 2, column + 1));
+            if(columns[column]==null) columns[column] = new ColumnBuilder(dictionaryEncode);
+            columns[column].set(rows, value);
+        }
+
+        @Override
+        public void endRecord() {
+            rows++;
+        }
+
+        public int getRowCount(){
+            return rows;
+        }
+
+        public RecordBatch build(){
+            built = true;
+            int width = 0;
+            for(int column = 0; column < columns.length; column++) if(columns[column]!=null) width = column + 1;
+            Column[] finished = new Column[width];
+            for(int column = 0; column < width; column++)
+                if(columns[column]!=null) finished[column] = columns[column].build();
+            columns = null;
+            return new RecordBatch(schema, finished, rows);
+        }
+    }
+
+    private static final class Column {
+        private static final String[] NONE = new String[0];
+
+        final String[] values;//plain column
+        final int[] codes;//dictionary column, 0 for a missing value, otherwise dictionary index + 1
+        final String[] dictionary;
+        final boolean[] nulls;//rows holding the field with a null value
+        final int size;
+
+        Column(String[] values, int[] codes, String[] dictionary, boolean[] nulls, int size){
+            this.values = values;
+            this.codes = codes;
+            this.dictionary = dictionary;
+            this.nulls = nulls;
+            this.size = size;
+        }
+
+        String get(int row){
+            if(row >= size) return null;
+            if(values!=null) return values[row];
+            int code = codes[row];
+            return code==0 ? null : dictionary[code - 1];
+        }
+
+        /**
+         * Whether the record has the field at all, null valued fields included
+         */
+        boolean has(int row){
+            if(row >= size) return false;
+            return get(row)!=null || (nulls!=null && row < nulls.length && nulls[row]);
+        }
+    }
+
+    private static final class ColumnBuilder {
+        //below this many rows a column always keeps its dictionary
+        private static final int DICTIONARY_MIN_ROWS = 64;
+
+        private String[] values;
+        private int[] codes;
+        private Map<String, Integer> lookup;
+        private List<String> dictionary;
+        private boolean[] nulls;
+        private int size;
+
+        ColumnBuilder(boolean dictionaryEncode){
+            if(dictionaryEncode){
+                codes = new int[16];
+                lookup = new HashMap<>();
+                dictionary = new ArrayList<>();
+            }else{
+                values = new String[16];
+            }
+        }
+
+        void set(int row, String value){
+            if(row >= capacity()) grow(row + 1);
+            if(value==null){
+                if(nulls==null || nulls.length < capacity()) nulls = nulls==null ?
+                        new boolean[capacity()] : Arrays.copyOf(nulls, capacity());
+                nulls[row] = true;
+            }
+            if(codes!=null){
+                int code = 0;
+                if(value!=null){
+                    Integer known = lookup.get(value);
+                    if(known==null){
+                        dictionary.add(value);
+                        known = dictionary.size();
+                        lookup.put(value, known);
+                    }
+                    code = known;
+                }
+                codes[row] = code;
+            }else{
+                values[row] = value;
+            }
+            size = Math.max(size, row + 1);
+            //a column of mostly distinct values (ids, names, emails) costs more with a dictionary than without
+            if(codes!=null && size >= DICTIONARY_MIN_ROWS && dictionary.size() * 2 > size) decode();
+        }
+
+        private int capacity(){
+            return codes!=null ? codes.length : values.length;
+        }
+
+        private void grow(int minimum){
+            int capacity = Math.max(capacity() * 2, minimum);
+            if(codes!=null) codes = Arrays.copyOf(codes, capacity);
+            else values = Arrays.copyOf(values, capacity);
+        }
+
+        private void decode(){
+            values = new String[codes.length];
+            for(int row = 0; row < size; row++) values[row] = codes[row]==0 ? null : dictionary.get(codes[row] - 1);
+            codes = null;
+            lookup = null;
+            dictionary = null;
+        }
+
+        Column build(){
+            boolean[] nullRows = nulls==null ? null : Arrays.copyOf(nulls, size);
+            if(codes!=null) return new Column(null, Arrays.copyOf(codes, size),
+                    dictionary.toArray(Column.NONE), nullRows, size);
+            return new Column(Arrays.copyOf(values, size), null, null, nullRows, size);
+        }
+    }
+}
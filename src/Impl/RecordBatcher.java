@@ -0,0 +1,261 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.SugarRequestInterface;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>
+ *     Coalesces getRecord (get_entry) calls into get_entries requests.
+ *     Calls for the same module, select fields and session are collected for a short window, or until the batch
+ *     is full, and sent as one get_entries request. The response is split back so every caller receives the same
+ *     body get_entry would have answered: {entry_list:[entry], relationship_list:[...]}.
+ * </p>
+ * <p>
+ *     Deleted and unknown ids come back from sugar as an entry holding a warning and deleted=1, exactly as they do
+ *     from get_entry, and are handed over as such. An id sugar leaves out of the response altogether is reported
+ *     through onFailed. Callers asking for the same id in one window share a single slot in the request.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class RecordBatcher implements AutoCloseable {
+
+    private final SugarRequestInterface api;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService timer;
+    private final Map<BatchKey, Batch> open = new HashMap<>();
+    private boolean closed;
+
+    /**
+     * @param api {SugarRequestInterface} the api used to send get_entries
+     * @param window {long} how long a batch collects calls after its first one
+     * @param unit {TimeUnit} the unit of the window
+     * @param maxBatchSize {int} a batch is sent as soon as it holds this many ids
+     */
+    public RecordBatcher(@NotNull SugarRequestInterface api, long window, @NotNull TimeUnit unit, int maxBatchSize){
+        if(maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        this.api = api;
+        this.windowNanos = unit.toNanos(window);
+        this.maxBatchSize = maxBatchSize;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "psugar-record-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Same contract as {@link SugarRequestInterface#getRecord(String, HashMap, SugarResponse)}, the calling
+     * thread waits for the batch its id was added to.
+     */
+    public void getRecord(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                          @NotNull SugarResponse callback){
+        try {
+            getRecordAsync(moduleName, data, callback).join();
+        }catch (CompletionException ex){
+            //already reported to the callback
+        }
+    }
+
+    /**
+     * Adds the id to the open batch of its module, fields and session
+     * @param moduleName {String} The name of the module to query or plainly the table name
+     * @param data {HashMap} <b>id</b>, optionally <b>fields</b> and <b>session</b>
+     * @param callback {SugarResponse} receives a get_entry shaped response
+     * @return {CompletableFuture} completed with the callback once it has received the response
+     */
+    public CompletableFuture<SugarResponse> getRecordAsync(@NotNull String moduleName,
+                                                           @NotNull HashMap<String, String> data,
+                                                           @NotNull SugarResponse callback){
+        String id = data.get("id");
+        if(id==null) throw new IllegalArgumentException("To get a record you must specify its id in your data");
+        BatchKey key = new BatchKey(moduleName, data.get("fields"), data.get("session"));
+        Waiter waiter = new Waiter(callback);
+        Batch full = null;
+        synchronized (this){
+            if(closed) throw new IllegalStateException("RecordBatcher is closed");
+            Batch batch = open.get(key);
+            if(batch==null){
+                batch = new Batch(key);
+                open.put(key, batch);
+                Batch scheduled = batch;
+                batch.timeout = timer.schedule(() -> send(scheduled), windowNanos, TimeUnit.NANOSECONDS);
+            }
+            batch.waiters.computeIfAbsent(id, k -> new ArrayList<>()).add(waiter);
+            if(batch.waiters.size() >= maxBatchSize) full = batch;
+        }
+        if(full!=null) send(full);
+        return waiter.future;
+    }
+
+    /**
+     * Sends every open batch now
+     */
+    public void flush(){
+        List<Batch> batches;
+        synchronized (this){
+            batches = new ArrayList<>(open.values());
+        }
+        for(Batch batch : batches) send(batch);
+    }
+
+    /**
+     * Sends what is pending and stops accepting calls
+     */
+    @Override
+    public void close(){
+        synchronized (this){
+            closed = true;
+        }
+        flush();
+        timer.shutdown();
+    }
+
+    private void send(Batch batch){
+        synchronized (this){
+            if(open.get(batch.key)!=batch) return;//already sent by the timer, a full batch or a flush
+            open.remove(batch.key);
+        }
+        batch.timeout.cancel(false);
+        JsonArray ids = new JsonArray();
+        for(String id : batch.waiters.keySet()) ids.add(new JsonPrimitive(id));
+        HashMap<String, String> data = new HashMap<>();
+        data.put("ids", ids.toString());
+        if(batch.key.fields!=null) data.put("fields", batch.key.fields);
+        if(batch.key.session!=null) data.put("session", batch.key.session);
+        String[] body = new String[1];
+        SugarResponse response = new SugarResponse(){
+            @Override
+            public void onSuccessful(String data) {
+                body[0] = data;
+            }
+        };
+        try {
+            api.getMultipleRecordsAsync(batch.key.moduleName, data, response).whenComplete((r, error) -> {
+                if(error!=null) fail(batch, String.valueOf(error.getCause()!=null ? error.getCause() : error));
+                else split(batch, body[0]);
+            });
+        }catch (RuntimeException ex){
+            fail(batch, ex.toString());
+        }
+    }
+
+    private void split(Batch batch, String body){
+        JsonObject responseObject;
+        try {
+            responseObject = new JsonParser().parse(body).getAsJsonObject();
+        }catch (RuntimeException ex){
+            fail(batch, "Invalid Json Response : " + body);
+            return;
+        }
+        if(!responseObject.has("entry_list")){//e.g Invalid Session ID, every caller gets what get_entry would give
+            for(List<Waiter> waiters : batch.waiters.values()) for(Waiter waiter : waiters) waiter.succeed(body);
+            return;
+        }
+        Map<String, String> singles = EntryResponses.splitById(responseObject);
+        for(Map.Entry<String, List<Waiter>> entry : batch.waiters.entrySet()){
+            String single = singles.get(entry.getKey());
+            if(single==null){
+                for(Waiter waiter : entry.getValue())
+                    waiter.fail("Sugar returned no entry for " + batch.key.moduleName + " " + entry.getKey());
+                continue;
+            }
+            for(Waiter waiter : entry.getValue()) waiter.succeed(single);
+        }
+    }
+
+    private void fail(Batch batch, String errorMessage){
+        for(List<Waiter> waiters : batch.waiters.values()) for(Waiter waiter : waiters) waiter.fail(errorMessage);
+    }
+
+    private static class Waiter {
+        final SugarResponse callback;
+        final CompletableFuture<SugarResponse> future = new CompletableFuture<>();
+
+        Waiter(SugarResponse callback){
+            this.callback = callback;
+        }
+
+        void succeed(String body){
+            try {
+                callback.onSuccessful(body);
+                future.complete(callback);
+            }catch (RuntimeException ex){
+                future.completeExceptionally(ex);
+            }
+        }
+
+        void fail(String errorMessage){
+            try {
+                callback.onFailed(errorMessage);
+            }finally {
+                future.completeExceptionally(new IllegalStateException(errorMessage));
+            }
+        }
+    }
+
+    private static class Batch {
+        final BatchKey key;
+        final LinkedHashMap<String, List<Waiter>> waiters = new LinkedHashMap<>();
+        ScheduledFuture<?> timeout;
+
+        Batch(BatchKey key){
+            this.key = key;
+        }
+    }
+
+    private static class BatchKey {
+        final String moduleName;
+        final String fields;
+        final String session;
+
+        BatchKey(String moduleName, String fields, String session){
+            this.moduleName = moduleName;
+            this.fields = fields;
+            this.session = session;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this==o) return true;
+            if(!(o instanceof BatchKey)) return false;
+            BatchKey other = (BatchKey) o;
+            return moduleName.equals(other.moduleName) && Objects.equals(fields, other.fields)
+                    && Objects.equals(session, other.session);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(moduleName, fields, session);
+        }
+    }
+}
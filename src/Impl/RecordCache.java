@@ -0,0 +1,205 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     A bounded least-recently-used store of get_entry responses, keyed by module, id, select fields and session.
+ *     Sugar answers every session with what its user may see, so an entry stored under one session is only
+ *     served to that session. Entries expire after a time to live, and every field and session variant of a
+ *     record can be dropped at once when the record is written.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class RecordCache {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<Key, Entry> entries;
+    private final Map<String, Set<Key>> keysByRecord = new HashMap<>();
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxEntries {int} the most responses kept, the least recently read one is evicted first
+     * @param ttl {long} how long a response is served, 0 to keep it until it is evicted or invalidated
+     * @param unit {TimeUnit} the unit of the ttl
+     */
+    public RecordCache(int maxEntries, long ttl, @NotNull TimeUnit unit){
+        if(maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, RecordCache.Entry> eldest) {
+                if(size() <= RecordCache.this.maxEntries) return false;
+                unindex(eldest.getKey());
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    public String get(@NotNull String moduleName, @NotNull String id, @Nullable String fields){
+        return get(moduleName, id, fields, null);
+    }
+
+    /**
+     * @param session {String} the session the response is for, null for responses stored without one
+     * @return {String} the cached response, null when there is none or it has expired
+     */
+    public synchronized String get(@NotNull String moduleName, @NotNull String id, @Nullable String fields,
+                                   @Nullable String session){
+        Key key = new Key(moduleName, id, fields, session);
+        Entry entry = entries.get(key);
+        if(entry!=null && ttlNanos > 0 && System.nanoTime() - entry.storedAt > ttlNanos){
+            entries.remove(key);
+            unindex(key);
+            entry = null;
+        }
+        if(entry==null){
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.response;
+    }
+
+    /**
+     * Bumped by every invalidation, a reader takes it before fetching and hands it to
+     * {@link #put(String, String, String, String, String, long)} so a response fetched before a write isn't stored after it
+     */
+    public synchronized long generation(){
+        return generation;
+    }
+
+    public synchronized void put(@NotNull String moduleName, @NotNull String id, @Nullable String fields,
+                                 @NotNull String response){
+        put(moduleName, id, fields, null, response, generation);
+    }
+
+    /**
+     * Stores the response unless something was invalidated since the reader took the generation
+     * @param session {String} the session the response was fetched with, null to store it without one
+     */
+    public synchronized void put(@NotNull String moduleName, @NotNull String id, @Nullable String fields,
+                                 @Nullable String session, @NotNull String response, long readGeneration){
+        if(readGeneration!=generation) return;
+        Key key = new Key(moduleName, id, fields, session);
+        entries.put(key, new Entry(response, System.nanoTime()));
+        keysByRecord.computeIfAbsent(key.record(), k -> new HashSet<>()).add(key);
+    }
+
+    /**
+     * Drops every cached variant (all select fields and sessions) of the record
+     */
+    public synchronized void invalidate(@NotNull String moduleName, @NotNull String id){
+        generation++;
+        Set<Key> keys = keysByRecord.remove(moduleName + '\u0000' + id);
+        if(keys!=null) for(Key key : keys) entries.remove(key);
+    }
+
+    public synchronized void clear(){
+        generation++;
+        entries.clear();
+        keysByRecord.clear();
+    }
+
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size=" + entries.size() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions;
+    }
+
+    private void unindex(Key key){
+        Set<Key> keys = keysByRecord.get(key.record());
+        if(keys==null) return;
+        keys.remove(key);
+        if(keys.isEmpty()) keysByRecord.remove(key.record());
+    }
+
+    private static class Entry {
+        final String response;
+        final long storedAt;
+
+        Entry(String response, long storedAt){
+            this.response = response;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private static class Key {
+        final String moduleName;
+        final String id;
+        final String fields;
+        final String session;
+
+        Key(String moduleName, String id, String fields, String session){
+            this.moduleName = moduleName;
+            this.id = id;
+            this.fields = fields==null ? "" : fields.replace(" ", "");
+            this.session = session==null ? "" : session;
+        }
+
+        String record(){
+            return moduleName + '\u0000' + id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this==o) return true;
+            if(!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return moduleName.equals(other.moduleName) && id.equals(other.id) && fields.equals(other.fields)
+                    && session.equals(other.session);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(moduleName, id, fields, session);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.RecordHandler;
+import Interfaces.SugarRequestInterface;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * <p>
+ *     Iterates over every record a get_entry_list query matches, page by page.
+ *     While the caller is consuming one page the next <b>prefetchDepth</b> pages are already being fetched,
+ *     so walking a whole module costs roughly one round trip in total instead of one per page.
+ * </p>
+ * <p>
+ *     The offset of every page is known upfront (offset + max), if sugar caps the page size below the
+ *     requested <b>max</b> the prefetched pages are dropped and paging continues from sugar's next_offset.
+ *     Give the query a stable <b>order_by</b> (e.g the id) when the module is being written to while it is read.
+ * </p>
+ * <p>
+ *     A cursor is meant for one consumer thread. A failed page is thrown from {@link #hasNext()} as an
+ *     {@link IllegalStateException} holding sugar's error message.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class RecordCursor implements Iterator<Map<String, String>>, AutoCloseable {
+
+    private final SugarRequestInterface api;
+    private final String moduleName;
+    private final HashMap<String, String> data;
+    private final int prefetchDepth;
+    private final ArrayDeque<PendingPage> pending = new ArrayDeque<>();
+
+    private int pageSize;
+    private int nextRequestOffset;
+    private int limit = -1;//total_count once the first page is in
+    private boolean exhausted;
+    private Iterator<Map<String, String>> current = Collections.emptyIterator();
+    private EntryListPage lastPage;
+
+    /**
+     * @param api {SugarRequestInterface} the api used to fetch the pages
+     * @param moduleName {String} The name of the module to query or plainly the table name
+     * @param data {HashMap} The post data, the same keys as getRecords. <b>offset</b> is where the cursor starts
+     *             and <b>max</b> is the page size
+     * @param prefetchDepth {int} how many pages to fetch ahead of the page being consumed, 0 disables prefetching
+     */
+    public RecordCursor(@NotNull SugarRequestInterface api, @NotNull String moduleName,
+                        @NotNull HashMap<String, String> data, int prefetchDepth){
+        if(prefetchDepth < 0) throw new IllegalArgumentException("prefetchDepth can't be negative");
+        this.api = api;
+        this.moduleName = moduleName;
+        this.data = new HashMap<>(data);
+        this.prefetchDepth = prefetchDepth;
+        this.pageSize = parse(data.get("max"), 30);
+        this.nextRequestOffset = parse(data.get("offset"), 0);
+        if(pageSize < 1) throw new IllegalArgumentException("max must be at least 1");
+        requestNext();//the first page, the one consumed first
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()){
+            if(exhausted) return false;
+            if(pending.isEmpty()){//nothing was fetched ahead, e.g with prefetching disabled
+                if(limit >= 0 && nextRequestOffset >= limit) return false;
+                requestNext();
+            }
+            PendingPage next = pending.poll();
+            List<Map<String, String>> records;
+            try {
+                records = next.records.join();
+            }catch (CompletionException ex){
+                close();
+                throw new IllegalStateException("Failed to fetch " + moduleName + " at offset " + next.offset,
+                        ex.getCause());
+            }
+            onPage(next, records);
+            current = records.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public Map<String, String> next() {
+        if(!hasNext()) throw new NoSuchElementException();
+        return current.next();
+    }
+
+    /**
+     * @return {EntryListPage} the paging figures of the last page handed out, null before the first one
+     */
+    public EntryListPage getLastPage() {
+        return lastPage;
+    }
+
+    /**
+     * @return {int} the total_count sugar reported, -1 until the first page is in
+     */
+    public int getTotalCount(){
+        return limit;
+    }
+
+    /**
+     * Stops paging, prefetched pages that are still in flight are abandoned
+     */
+    @Override
+    public void close() {
+        exhausted = true;
+        for(PendingPage page : pending) page.records.cancel(false);
+        pending.clear();
+        current = Collections.emptyIterator();
+    }
+
+    private void onPage(PendingPage page, List<Map<String, String>> records){
+        lastPage = page.page;
+        if(page.page.getTotalCount() >= 0) limit = page.page.getTotalCount();
+        int expectedNext = page.offset + pageSize;
+        if(records.isEmpty() || (limit >= 0 && page.offset + records.size() >= limit)){
+            close();
+            return;
+        }
+        if(records.size() < pageSize){
+            //sugar capped max_results, what we prefetched sits at the wrong offsets
+            for(PendingPage stale : pending) stale.records.cancel(false);
+            pending.clear();
+            pageSize = records.size();
+            nextRequestOffset = page.page.getNextOffset() > page.offset ? page.page.getNextOffset()
+                    : page.offset + records.size();
+        }else if(page.page.getNextOffset() >= 0 && page.page.getNextOffset() != expectedNext){
+            for(PendingPage stale : pending) stale.records.cancel(false);
+            pending.clear();
+            nextRequestOffset = page.page.getNextOffset();
+        }
+        fill();
+    }
+
+    /**
+     * Fetches ahead, the page being consumed has already left pending so everything in it is a prefetched page
+     */
+    private void fill(){
+        while (!exhausted && pending.size() < prefetchDepth){
+            if(limit >= 0 && nextRequestOffset >= limit) return;
+            //until total_count is known, only the first page is requested
+            if(limit < 0 && !pending.isEmpty()) return;
+            requestNext();
+        }
+    }
+
+    private void requestNext(){
+        pending.add(fetch(nextRequestOffset));
+        nextRequestOffset += pageSize;
+    }
+
+    private PendingPage fetch(int offset){
+        HashMap<String, String> pageData = new HashMap<>(data);
+        pageData.put("offset", String.valueOf(offset));
+        pageData.put("max", String.valueOf(pageSize));
+        List<Map<String, String>> records = new ArrayList<>(pageSize);
+        PendingPage page = new PendingPage(offset);
+        page.records = api.streamRecordsAsync(moduleName, pageData, new RecordHandler() {
+            @Override
+            public void onRecord(Map<String, String> record) {
+                records.add(record);
+            }
+
+            @Override
+            public void onFailed(String errorMessage) {
+            }
+        }).thenApply(entryListPage -> {
+            if(entryListPage.isError()) throw new IllegalStateException(entryListPage.getError());
+            page.page = entryListPage;
+            return records;
+        });
+        return page;
+    }
+
+    private static int parse(String value, int fallback){
+        if(value==null || value.isEmpty()) return fallback;
+        return Integer.parseInt(value.trim());
+    }
+
+    private static class PendingPage {
+        final int offset;
+        volatile EntryListPage page;
+        CompletableFuture<List<Map<String, String>>> records;
+
+        PendingPage(int offset){
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.SugarRequestInterface;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.Semaphore;
+
+/**
+ * <p>
+ *     Loads the related records of many parents at once. Instead of asking sugar for the contacts of one account
+ *     after the other, the parent ids are sent in batches through get_entries with a link_name_to_fields_array,
+ *     so a page of 200 accounts costs two calls instead of 200, and the children come back as a
+ *     parent id to records map per link.
+ * </p>
+ * <p>
+ *     A get_entry_list or get_entries response that already asked for the links holds the children in its
+ *     relationship_list. {@link #read(SugarResponse)} takes them from there, and handing that {@link Result} to
+ *     {@link #load(String, HashMap, Collection, Result)} only sends the parents it doesn't cover.
+ * </p>
+ * e.g.
+ * <pre>
+ *     RelationshipLoader loader = new RelationshipLoader(api, 100, 4).addLink("contacts", "id", "first_name");
+ *     data.put("extras", loader.getExtras());//the page brings the contacts of its accounts along
+ *     api.getRecords("Accounts", data, response);
+ *     RelationshipLoader.Result contacts = RelationshipLoader.read(response);
+ *     List&lt;Map&lt;String, String&gt;&gt; children = contacts.getChildren(accountId, "contacts");
+ *
+ *     RelationshipLoader.Result others = loader.load("Accounts", session, accountIds);//ids from anywhere else
+ * </pre>
+ * Created on 17/10/26.
+ */
+public class RelationshipLoader {
+
+    private final SugarRequestInterface api;
+    private final int maxBatchIds;
+    private final int maxInFlight;
+    private final Map<String, List<String>> links = new LinkedHashMap<>();
+
+    /**
+     * @param api {SugarRequestInterface} the api used to send get_entries
+     * @param maxBatchIds {int} the most parent ids sent in one get_entries call
+     * @param maxInFlight {int} the number of batches sent at the same time
+     */
+    public RelationshipLoader(@NotNull SugarRequestInterface api, int maxBatchIds, int maxInFlight){
+        if(maxBatchIds < 1 || maxInFlight < 1)
+            throw new IllegalArgumentException("maxBatchIds and maxInFlight must be at least 1");
+        this.api = api;
+        this.maxBatchIds = maxBatchIds;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param link {String} the link field of the parent module, e.g contacts on Accounts
+     * @param fields {String} the fields of the related records to load, only the id when none are given
+     * @return {RelationshipLoader} this loader
+     */
+    public RelationshipLoader addLink(@NotNull String link, String... fields){
+        links.put(link, fields.length==0 ? Collections.singletonList("id") : Arrays.asList(fields.clone()));
+        return this;
+    }
+
+    /**
+     * @return {Set} the link names added so far, in the order they were added
+     */
+    public Set<String> getLinks(){
+        return Collections.unmodifiableSet(links.keySet());
+    }
+
+    /**
+     * @return {String} the link_name_to_fields_array of the links, to be put in the <b>extras</b> of a
+     *          getRecords or getMultipleRecords call, e.g [{"name":"contacts","value":["id","first_name"]}]
+     */
+    public String getExtras(){
+        JsonArray extras = new JsonArray();
+        for(Map.Entry<String, List<String>> link : links.entrySet()){
+            JsonObject entry = new JsonObject();
+            entry.addProperty("name", link.getKey());
+            JsonArray fields = new JsonArray();
+            for(String field : link.getValue()) fields.add(new JsonPrimitive(field));
+            entry.add("value", fields);
+            extras.add(entry);
+        }
+        return extras.toString();
+    }
+
+    public Result load(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                       @NotNull Collection<String> parentIds) throws InterruptedException {
+        return load(moduleName, data, parentIds, null);
+    }
+
+    /**
+     * Loads the children of every parent over each link and waits for the last batch to complete
+     * @param moduleName {String} The module of the parents, e.g Accounts
+     * @param data {HashMap} the post data shared by every batch, e.g the <b>session</b>, and <b>fields</b>
+     *             of the parents when more than their id is wanted
+     * @param parentIds {Collection} the ids of the parents, duplicates are sent once
+     * @param known {Result} children already at hand, e.g from {@link #read(SugarResponse)}, null for none.
+     *              The parents it holds every link of are not sent again
+     * @return {Result} the children of every parent that was loaded, and the parents that failed
+     * @throws InterruptedException when the calling thread is interrupted while waiting for a free slot
+     */
+    public Result load(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                       @NotNull Collection<String> parentIds, @Nullable Result known) throws InterruptedException {
+        if(links.isEmpty()) throw new IllegalStateException("Add at least one link to load");
+        Result result = new Result();
+        Set<String> missing = new LinkedHashSet<>(parentIds);
+        if(known!=null) missing.removeIf(id -> known.copyTo(result, id, links.keySet()));
+        String extras = getExtras();
+        Semaphore slots = new Semaphore(maxInFlight);
+        List<String> batch = new ArrayList<>();
+        for(String id : missing){
+            batch.add(id);
+            if(batch.size() >= maxBatchIds){
+                send(moduleName, data, extras, batch, slots, result);
+                batch = new ArrayList<>();
+            }
+        }
+        if(!batch.isEmpty()) send(moduleName, data, extras, batch, slots, result);
+        slots.acquire(maxInFlight);//every batch has completed once all the slots are back
+        slots.release(maxInFlight);
+        return result;
+    }
+
+    /**
+     * Reads the children a get_entry_list or get_entries response already holds, without another call.
+     * The response must have been asked for the links through <b>extras</b>.
+     * @param response {SugarResponse} a response that has received its body
+     * @return {Result} the children of every entry of the response, by link
+     */
+    public static Result read(@NotNull SugarResponse response){
+        return (Result) response.getJsonObjectResponse(ConversionType.RELATIONSHIPS);
+    }
+
+    private void send(String moduleName, HashMap<String, String> data, String extras, List<String> parentIds,
+                      Semaphore slots, Result result) throws InterruptedException {
+        slots.acquire();
+        HashMap<String, String> batchData = new HashMap<>(data);
+        JsonArray ids = new JsonArray();
+        for(String id : parentIds) ids.add(new JsonPrimitive(id));
+        batchData.put("ids", ids.toString());
+        batchData.put("extras", extras);
+        if(!batchData.containsKey("fields")) batchData.put("fields", "[\"id\"]");
+        String[] body = new String[1];
+        SugarResponse response = new SugarResponse(){
+            @Override
+            public void onSuccessful(String responseData) {
+                body[0] = responseData;
+            }
+        };
+        result.requests++;
+        try {
+            api.getMultipleRecordsAsync(moduleName, batchData, response).whenComplete((r, error) -> {
+                try {
+                    if(error!=null) result.failAll(parentIds,
+                            String.valueOf(error.getCause()!=null ? error.getCause() : error));
+                    else collect(body[0], parentIds, result);
+                }finally {
+                    slots.release();
+                }
+            });
+        }catch (RuntimeException ex){
+            result.failAll(parentIds, ex.toString());
+            slots.release();
+        }
+    }
+
+    private void collect(String body, List<String> parentIds, Result result){
+        JsonObject responseObject;
+        try {
+            responseObject = new JsonParser().parse(body).getAsJsonObject();
+        }catch (RuntimeException ex){
+            result.failAll(parentIds, "Invalid Json Response : " + body);
+            return;
+        }
+        String error = readRelationships(responseObject, result);
+        if(error!=null){
+            result.failAll(parentIds, error);
+            return;
+        }
+        //a parent sugar has no entry or no link data for (deleted, not visible) has no children
+        for(String id : parentIds) for(String link : links.keySet()) result.children(id, link);
+    }
+
+    /**
+     * Sugar keeps relationship_list aligned with entry_list, the relationships of entry i are at index i.
+     * v4 and later answer [{link_list:[{name:"contacts", records:[{link_value:{id:{name:"id", value:""}}}]}]}],
+     * v2 and v3 answer [[{name:"contacts", records:[[{name:"id", value:""}]]}]]
+     * @param responseObject {JsonObject} a get_entry, get_entries or get_entry_list response
+     * @param result {Result} the result the children are added to
+     * @return {String} sugar's error when the response is an error object, otherwise null
+     */
+    static String readRelationships(@NotNull JsonObject responseObject, @NotNull Result result){
+        JsonElement entries = responseObject.get("entry_list");
+        if(entries==null || !entries.isJsonArray()){
+            String error = responseObject.has("name") ? responseObject.get("name").getAsString() :
+                    responseObject.toString();
+            if(responseObject.has("description")) error += ": " + responseObject.get("description").getAsString();
+            return error;
+        }
+        JsonElement relationships = responseObject.get("relationship_list");
+        JsonArray relationshipList = relationships!=null && relationships.isJsonArray() ?
+                relationships.getAsJsonArray() : new JsonArray();
+        JsonArray entryList = entries.getAsJsonArray();
+        for(int i = 0; i < entryList.size() && i < relationshipList.size(); i++){
+            JsonElement id = entryList.get(i).getAsJsonObject().get("id");
+            if(id==null || !id.isJsonPrimitive()) continue;
+            JsonElement linkList = relationshipList.get(i);
+            if(linkList.isJsonObject()) linkList = linkList.getAsJsonObject().get("link_list");
+            if(linkList==null || !linkList.isJsonArray()) continue;
+            for(JsonElement link : linkList.getAsJsonArray()){
+                if(!link.isJsonObject() || !link.getAsJsonObject().has("name")) continue;
+                List<Map<String, String>> children = result.children(id.getAsString(),
+                        link.getAsJsonObject().get("name").getAsString());
+                JsonElement records = link.getAsJsonObject().get("records");
+                if(records==null || !records.isJsonArray()) continue;
+                for(JsonElement record : records.getAsJsonArray()) children.add(readRecord(record));
+            }
+        }
+        return null;
+    }
+
+    private static Map<String, String> readRecord(JsonElement record){
+        Map<String, String> fields = new LinkedHashMap<>();
+        Iterable<JsonElement> values;
+        if(record.isJsonObject()){
+            JsonElement linkValue = record.getAsJsonObject().get("link_value");
+            if(linkValue==null || !linkValue.isJsonObject()) return fields;
+            List<JsonElement> named = new ArrayList<>();
+            for(Map.Entry<String, JsonElement> field : linkValue.getAsJsonObject().entrySet()) named.add(field.getValue());
+            values = named;
+        }else if(record.isJsonArray()){
+            values = record.getAsJsonArray();
+        }else{
+            return fields;
+        }
+        for(JsonElement value : values){
+            if(!value.isJsonObject()) continue;
+            JsonElement name = value.getAsJsonObject().get("name");
+            JsonElement fieldValue = value.getAsJsonObject().get("value");
+            if(name==null || !name.isJsonPrimitive()) continue;
+            fields.put(name.getAsString(), fieldValue==null || fieldValue.isJsonNull() ? null : fieldValue.getAsString());
+        }
+        return fields;
+    }
+
+    /**
+     * The children of every parent by link, and the parents that couldn't be loaded
+     */
+    public static class Result {
+        private final Map<String, Map<String, List<Map<String, String>>>> parents = new LinkedHashMap<>();
+        private final Map<String, String> failures = new LinkedHashMap<>();
+        private volatile int requests;
+
+        synchronized List<Map<String, String>> children(String parentId, String link){
+            return parents.computeIfAbsent(parentId, id -> new LinkedHashMap<>())
+                    .computeIfAbsent(link, name -> new ArrayList<>());
+        }
+
+        synchronized void failAll(Collection<String> parentIds, String reason){
+            for(String id : parentIds) failures.put(id, reason);
+        }
+
+        /**
+         * Copies the children of the parent to the other result when this one holds every link of it
+         * @return {boolean} true when it was copied
+         */
+        synchronized boolean copyTo(Result other, String parentId, Collection<String> links){
+            Map<String, List<Map<String, String>>> parent = parents.get(parentId);
+            if(parent==null || !parent.keySet().containsAll(links)) return false;
+            for(String link : links) other.children(parentId, link).addAll(parent.get(link));
+            return true;
+        }
+
+        /**
+         * @param parentId {String} the id of the parent
+         * @param link {String} the link name
+         * @return {List} the related records, each a field name to value map, empty when the parent has none
+         *          or wasn't loaded
+         */
+        public synchronized List<Map<String, String>> getChildren(@NotNull String parentId, @NotNull String link){
+            Map<String, List<Map<String, String>>> parent = parents.get(parentId);
+            List<Map<String, String>> children = parent==null ? null : parent.get(link);
+            return children==null ? Collections.emptyList() : Collections.unmodifiableList(children);
+        }
+
+        /**
+         * @param link {String} the link name
+         * @return {Map} parent id to the related records of every parent the link was loaded for
+         */
+        public synchronized Map<String, List<Map<String, String>>> getChildren(@NotNull String link){
+            Map<String, List<Map<String, String>>> byParent = new LinkedHashMap<>();
+            for(Map.Entry<String, Map<String, List<Map<String, String>>>> parent : parents.entrySet()){
+                List<Map<String, String>> children = parent.getValue().get(link);
+                if(children!=null) byParent.put(parent.getKey(), Collections.unmodifiableList(children));
+            }
+            return byParent;
+        }
+
+        /**
+         * @return {boolean} true when the link was loaded for the parent, even if it has no children
+         */
+        public synchronized boolean has(@NotNull String parentId, @NotNull String link){
+            Map<String, List<Map<String, String>>> parent = parents.get(parentId);
+            return parent!=null && parent.containsKey(link);
+        }
+
+        /**
+         * @return {Set} the ids of the parents children were loaded for
+         */
+        public synchronized Set<String> getParentIds(){
+            return new LinkedHashSet<>(parents.keySet());
+        }
+
+        /**
+         * @return {Map} parent id to the reason its batch failed
+         */
+        public synchronized Map<String, String> getFailures() {
+            return new LinkedHashMap<>(failures);
+        }
+
+        public synchronized boolean hasFailures(){
+            return !failures.isEmpty();
+        }
+
+        /**
+         * @return {int} the number of get_entries calls the load sent
+         */
+        public int getRequests() {
+            return requests;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return parents.size() + " parents, " + failures.size() + " failed, " + requests + " requests";
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.SugarRequestInterface;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>
+ *     Holds the sugar session of a {@link SugarAPI}. The first request logs in, every later one reuses the session,
+ *     and when sugar answers "Invalid Session ID" the session is renewed by exactly one login: the callers that
+ *     hit the expired session at the same time all wait for that login and then replay their request.
+ * </p>
+ * e.g.
+ * <pre>
+ *     SugarRequestInterface api = SugarAPI.getSugarAPIInstance(url, "admin", md5Password);
+ *     api.getRecord("Accounts", data, callback);//no login call, no session in data
+ * </pre>
+ * Created on 17/10/26.
+ */
+public class SessionManager {
+
+    private static final String INVALID_SESSION = "Invalid Session ID";
+
+    private final SugarRequestInterface api;
+    private final String username;
+    private final String password;
+    private String session;
+    private CompletableFuture<String> login;
+    private long logins;
+
+    /**
+     * @param api {SugarRequestInterface} the api the login request is sent through
+     * @param username {String} The SugarCRM Username
+     * @param password {String} The sugarCRM user password, hashed with MD5 as {@link SugarAPI#login} expects
+     */
+    public SessionManager(@NotNull SugarRequestInterface api, @NotNull String username, @NotNull String password){
+        this.api = api;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * @return {CompletableFuture} the current session, logging in first when there is none yet
+     */
+    public synchronized CompletableFuture<String> getSessionAsync(){
+        if(session!=null) return CompletableFuture.completedFuture(session);
+        return startLogin();
+    }
+
+    /**
+     * Called when sugar rejected a session. Only the first caller holding the rejected session logs in again,
+     * the others get the same login, and a caller that comes after the renewal gets the new session right away.
+     * @param rejected {String} the session sugar answered "Invalid Session ID" to
+     * @return {CompletableFuture} the session to replay the request with
+     */
+    public synchronized CompletableFuture<String> renew(@Nullable String rejected){
+        if(session!=null && !session.equals(rejected)) return CompletableFuture.completedFuture(session);
+        session = null;
+        return startLogin();
+    }
+
+    /**
+     * @return {String} the current session, null before the first login or while it is being renewed
+     */
+    public synchronized String getSession() {
+        return session;
+    }
+
+    /**
+     * Uses a session obtained elsewhere, e.g. from a {@link SugarAPI#login} the caller made itself
+     */
+    public synchronized void setSession(@Nullable String session) {
+        this.session = session;
+    }
+
+    /**
+     * @return {long} the number of logins sent so far
+     */
+    public synchronized long getLoginCount() {
+        return logins;
+    }
+
+    private CompletableFuture<String> startLogin(){
+        if(login!=null) return login;
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        login = pending;
+        logins++;
+        SugarResponse response = new SugarResponse();
+        try {
+            api.loginAsync(username, password, response).whenComplete((r, error) -> {
+                String id = null;
+                Throwable failure = error;
+                if(failure==null){
+                    try {
+                        id = sessionOf(response.call());
+                    }catch (RuntimeException ex){
+                        failure = ex;
+                    }
+                }
+                synchronized (SessionManager.this){
+                    login = null;
+                    if(id!=null) session = id;
+                }
+                if(id!=null) pending.complete(id);
+                else pending.completeExceptionally(failure instanceof IllegalStateException ? failure :
+                        new IllegalStateException("Login failed: " +
+                                (failure!=null && failure.getCause()!=null ? failure.getCause() : failure)));
+            });
+        }catch (RuntimeException ex){
+            login = null;
+            pending.completeExceptionally(new IllegalStateException("Login failed: " + ex, ex));
+        }
+        return pending;
+    }
+
+    /**
+     * A login answers {id:"session id", module_name:"Users", name_value_list:{...}}
+     */
+    private static String sessionOf(String body){
+        JsonObject responseObject = new JsonParser().parse(body).getAsJsonObject();
+        JsonElement id = responseObject.get("id");
+        if(id!=null && id.isJsonPrimitive() && !id.getAsString().isEmpty()) return id.getAsString();
+        String error = responseObject.has("name") ? responseObject.get("name").getAsString() : body;
+        if(responseObject.has("description")) error += ": " + responseObject.get("description").getAsString();
+        throw new IllegalStateException("Login failed: " + error);
+    }
+
+    /**
+     * Sugar answers an expired or unknown session with {name:"Invalid Session ID", number:11, description:""}
+     * @param body {String} a response body
+     * @return {boolean} true when the body is that error
+     */
+    static boolean isInvalidSession(@Nullable String body){
+        if(body==null || body.length() > 512 || !body.contains(INVALID_SESSION)) return false;
+        try {
+            JsonObject responseObject = new JsonParser().parse(body).getAsJsonObject();
+            JsonElement number = responseObject.get("number");
+            JsonElement name = responseObject.get("name");
+            return (number!=null && number.isJsonPrimitive() && "11".equals(number.getAsString())) ||
+                    (name!=null && name.isJsonPrimitive() && INVALID_SESSION.equals(name.getAsString()));
+        }catch (RuntimeException ex){
+            return false;
+        }
+    }
+
+    static boolean isInvalidSession(@Nullable EntryListPage page){
+        return page!=null && page.isError() && page.getError().startsWith(INVALID_SESSION);
+    }
+}
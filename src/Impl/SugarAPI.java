@@ -23,14 +23,29 @@
 package Impl;
 
 
+import Interfaces.RecordHandler;
+import Interfaces.RecordSink;
+import Interfaces.ResponseHandler;
 import Interfaces.SugarRequestInterface;
+import PRequest.FormEncoder;
+import PRequest.HttpTransport;
+import PRequest.Metrics;
 import PRequest.PRequest;
-import com.google.gson.*;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * @author Okeke Paul
@@ -40,6 +55,15 @@ import java.util.Map;
  * available in this release but we will continually improve
  * on the API
  *</p>
+ * <p>
+ * An instance holds no per-request state: every call builds its own post data from a copy of the
+ * caller's map, so a single instance can be shared by all threads without locking.
+ *</p>
+ * <p>
+ * The session of a request is the <b>session</b> of its post data when the caller gives one, otherwise the
+ * session of the instance. With a {@link SessionManager} the instance logs in by itself and renews the
+ * session and replays the request when sugar answers "Invalid Session ID".
+ *</p>
  *
  * Created by paulex on 25/03/16.
  */
@@ -51,22 +75,33 @@ public class SugarAPI implements SugarRequestInterface {
     public final static int GET_ENTRIES = 4;
     public final static int SET_ENTRIES = 5;
 
-    private String crmUrl;
-    private String sessionID;
-    private HashMap<String, String> dataTemp;
-    private JsonParser parser;
+    private final String crmUrl;
+    private volatile String sessionID;
+    private volatile SessionManager sessionManager;
 
-    private SugarAPI(){}//lets prevent direct initialization
+    private SugarAPI(){//lets prevent direct initialization
+        this.crmUrl = null;
+    }
 
     //factory method
     public static SugarRequestInterface getSugarAPIInstance(String crmUrl){
         return new SugarAPI(crmUrl);
     }
 
+    /**
+     * @param crmUrl {String} the sugarCRM rest endpoint
+     * @param username {String} The SugarCRM Username
+     * @param password {String} The sugarCRM user password, hashed with MD5
+     * @return {SugarRequestInterface} an api that logs in on its first request and keeps its session alive
+     */
+    public static SugarRequestInterface getSugarAPIInstance(String crmUrl, String username, String password){
+        SugarAPI api = new SugarAPI(crmUrl);
+        api.setSessionManager(new SessionManager(api, username, password));
+        return api;
+    }
+
     private SugarAPI(String crmUrl){
         this.crmUrl =  crmUrl;
-        dataTemp = new HashMap<>();
-        parser = new JsonParser();//use this parser
     }
 
     /**
@@ -77,27 +112,42 @@ public class SugarAPI implements SugarRequestInterface {
      */
     @Override
     public void login(String username, String password, SugarResponse callback){
-        JsonObject userAuth = new JsonObject();
-        JsonObject userAuthParams = new JsonObject();
-        userAuthParams.addProperty("user_name", username);
-        userAuthParams.addProperty("password", password);
-        userAuth.add("user_auth", userAuthParams);
-        PRequest.post(this.crmUrl, buildSugarData("login", userAuth.toString()), callback);
+        callback.setMethod("login");
+        PRequest.post(this.crmUrl, "login", buildSugarData("login", buildLoginParams(username, password), null),
+                callback);
     }
 
     public String getSessionID() {
-        return sessionID;
+        SessionManager manager = sessionManager;
+        return manager!=null ? manager.getSession() : sessionID;
     }
 
     /**
      * Okeke Paul
      * It is important that after login-in this method should be called
      * by the user/client, to set the session id for sub-sequent request.
-     * SugarAPI wouldn't set this value automatically for you
+     * SugarAPI wouldn't set this value automatically for you, unless a {@link SessionManager} is set.
+     * Requests whose post data holds no <b>session</b> are sent with this one.
      * @param sessionID {String} The sugarCRM sessionID
      */
     public void setSessionID(String sessionID) {
         this.sessionID = sessionID;
+        SessionManager manager = sessionManager;
+        if(manager!=null) manager.setSession(sessionID);
+    }
+
+    public SessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    /**
+     * @param sessionManager {SessionManager} logs in and renews the session for this instance, null to go back
+     *                       to sessions set by hand
+     */
+    public void setSessionManager(SessionManager sessionManager) {
+        if(sessionManager!=null && sessionID!=null && sessionManager.getSession()==null)
+            sessionManager.setSession(sessionID);
+        this.sessionManager = sessionManager;
     }
 
     /**
@@ -109,8 +159,7 @@ public class SugarAPI implements SugarRequestInterface {
     @Override
     public void getRecord(@NotNull String moduleName, @NotNull  HashMap<String, String> data,
                           @NotNull SugarResponse callback) {
-        PRequest.post(this.crmUrl, buildSugarData("get_entry",
-                buildSugarParams(GET_ENTRY, moduleName, data, null)), callback);
+        post("get_entry", buildSugarParams(GET_ENTRY, moduleName, data, null), data, callback);
     }
 
     /**
@@ -127,18 +176,23 @@ public class SugarAPI implements SugarRequestInterface {
     @Override
     public void getRecords(@NotNull String moduleName, @NotNull  HashMap<String, String> data,
                            @NotNull SugarResponse callback) {
-        PRequest.post(this.crmUrl, buildSugarData("get_entry_list",
-                buildSugarParams(GET_ENTRY_LIST, moduleName, data, null)), callback);
+        post("get_entry_list", buildSugarParams(GET_ENTRY_LIST, moduleName, data, null), data, callback);
     }
 
-
+    /**
+     * @apiNote Use <b>ids</b> for the Json array of the record ids, <b>fields</b> for the columns to select and
+     *          <b>extras</b> for link_name_to_fields_array, the related records then come back in the
+     *          relationship_list, @see {@link RelationshipLoader}
+     * @param moduleName {String} The name of the module to query or plainly the table name
+     * @param data {HashMap} The post data to be sent.. this is the value of rest_data @see sugarCRM documentation.
+     * @param callback {SugarResponse} the callback method that handles the server response.
+     */
     @Override
     public void getMultipleRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
                                    @NotNull SugarResponse callback) {
         if(!data.containsKey("ids")) throw new UnsupportedOperationException("To get multiple records you must" +
                 "specify an array record ids in your data");
-        PRequest.post(this.crmUrl, buildSugarData("get_entries",
-                buildSugarParams(GET_ENTRIES, moduleName, data, null)), callback);
+        post("get_entries", buildSugarParams(GET_ENTRIES, moduleName, data, null), data, callback);
     }
 
     /**
@@ -150,20 +204,273 @@ public class SugarAPI implements SugarRequestInterface {
     @Override
     public void setRecord(@NotNull String moduleName, @NotNull  HashMap<String, String> data,
                           @NotNull SugarResponse callback) {
-        PRequest.post(this.crmUrl, buildSugarData("set_entry",
-                buildSugarParams(SET_ENTRY, moduleName, data, null)), callback);
+        post("set_entry", buildSugarParams(SET_ENTRY, moduleName, data, null), data, callback);
     }
 
     @Override
     public void setRecords(@NotNull String moduleName, @NotNull  HashMap<String, String> data,
                            @NotNull HashMap<String, String>[] inserts, @NotNull SugarResponse callback) {
-        PRequest.post(this.crmUrl, buildSugarData("set_entries",
-                buildSugarParams(SET_ENTRIES, moduleName, data, inserts)), callback);
+        post("set_entries", buildSugarParams(SET_ENTRIES, moduleName, data, inserts), data, callback);
+    }
+
+    /**
+     * Async variant of {@link #login(String, String, SugarResponse)}.
+     * The returned future completes with the callback once it has received the response.
+     */
+    @Override
+    public CompletableFuture<SugarResponse> loginAsync(String username, String password, SugarResponse callback){
+        callback.setMethod("login");
+        return PRequest.postAsync(this.crmUrl, "login",
+                buildSugarData("login", buildLoginParams(username, password), null), callback)
+                .thenApply(body -> callback);
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> getRecordAsync(@NotNull String moduleName,
+                                                           @NotNull HashMap<String, String> data,
+                                                           @NotNull SugarResponse callback) {
+        return postAsync("get_entry", buildSugarParams(GET_ENTRY, moduleName, data, null), data, callback);
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> getRecordsAsync(@NotNull String moduleName,
+                                                            @NotNull HashMap<String, String> data,
+                                                            @NotNull SugarResponse callback) {
+        return postAsync("get_entry_list", buildSugarParams(GET_ENTRY_LIST, moduleName, data, null), data, callback);
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> getMultipleRecordsAsync(@NotNull String moduleName,
+                                                                    @NotNull HashMap<String, String> data,
+                                                                    @NotNull SugarResponse callback) {
+        if(!data.containsKey("ids")) throw new UnsupportedOperationException("To get multiple records you must" +
+                "specify an array record ids in your data");
+        return postAsync("get_entries", buildSugarParams(GET_ENTRIES, moduleName, data, null), data, callback);
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> setRecordAsync(@NotNull String moduleName,
+                                                           @NotNull HashMap<String, String> data,
+                                                           @NotNull SugarResponse callback) {
+        return postAsync("set_entry", buildSugarParams(SET_ENTRY, moduleName, data, null), data, callback);
+    }
+
+    @Override
+    public CompletableFuture<SugarResponse> setRecordsAsync(@NotNull String moduleName,
+                                                            @NotNull HashMap<String, String> data,
+                                                            @NotNull HashMap<String, String>[] inserts,
+                                                            @NotNull SugarResponse callback) {
+        return postAsync("set_entries", buildSugarParams(SET_ENTRIES, moduleName, data, inserts), data, callback);
     }
 
     /**
-     * Update : 27th-03-2016
-     * When passing Arrays to the server, we need to remove all escape characters from the Json String
+     * Streaming variant of {@link #getRecords(String, HashMap, SugarResponse)}.
+     * The response is parsed straight off the socket and every record is handed to the handler as soon as
+     * it has been read, so the page is never held in memory as a String or a Json tree.
+     * @param moduleName {String} The name of the module to query or plainly the table name
+     * @param data {HashMap} The post data, the same keys as {@link #getRecords(String, HashMap, SugarResponse)}
+     * @param handler {RecordHandler} receives each flattened record, or the failure
+     * @return {EntryListPage} the paging figures of the page, null when the request failed
+     */
+    @Override
+    public EntryListPage streamRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                       @NotNull RecordHandler handler) {
+        try {
+            EntryListPage page = streamRecords(moduleName, data, EntryListReader.toSink(handler));
+            if(page.isError()) handler.onFailed(page.getError());
+            return page;
+        }catch (IOException ex){
+            handler.onFailed(ex.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Same as {@link #streamRecords(String, HashMap, RecordHandler)} but the fields are pushed to the sink one
+     * by one, without a map being built per record. A sugar error is returned in the page, not thrown.
+     */
+    @Override
+    public EntryListPage streamRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                       @NotNull RecordSink sink) throws IOException {
+        RestData restData = buildSugarParams(GET_ENTRY_LIST, moduleName, data, null);
+        String session = sessionFor(data);
+        EntryListPage page = PRequest.postForStream(this.crmUrl, "get_entry_list",
+                buildSugarData("get_entry_list", restData, session), entryListReader(sink));
+        SessionManager manager = sessionManager;
+        if(manager==null || !SessionManager.isInvalidSession(page)) return page;
+        //an error response holds no records, nothing has reached the sink yet
+        return PRequest.postForStream(this.crmUrl, "get_entry_list",
+                buildSugarData("get_entry_list", restData, await(manager.renew(session))), entryListReader(sink));
+    }
+
+    @Override
+    public CompletableFuture<EntryListPage> streamRecordsAsync(@NotNull String moduleName,
+                                                               @NotNull HashMap<String, String> data,
+                                                               @NotNull RecordHandler handler) {
+        return streamRecordsAsync(moduleName, data, EntryListReader.toSink(handler)).whenComplete((page, error) -> {
+            if(error!=null) handler.onFailed(String.valueOf(error.getCause()!=null ? error.getCause() : error));
+            else if(page.isError()) handler.onFailed(page.getError());
+        });
+    }
+
+    @Override
+    public CompletableFuture<EntryListPage> streamRecordsAsync(@NotNull String moduleName,
+                                                               @NotNull HashMap<String, String> data,
+                                                               @NotNull RecordSink sink) {
+        RestData restData = buildSugarParams(GET_ENTRY_LIST, moduleName, data, null);
+        SessionManager manager = sessionManager;
+        if(manager==null) return PRequest.postForStreamAsync(this.crmUrl, "get_entry_list",
+                buildSugarData("get_entry_list", restData, ownSession(data)), entryListReader(sink));
+        return sessionAsync(manager, data).thenCompose(session -> PRequest.postForStreamAsync(this.crmUrl,
+                "get_entry_list", buildSugarData("get_entry_list", restData, session), entryListReader(sink))
+                .thenCompose(page -> {
+            if(!SessionManager.isInvalidSession(page)) return CompletableFuture.completedFuture(page);
+            return manager.renew(session).thenCompose(renewed -> PRequest.postForStreamAsync(this.crmUrl,
+                    "get_entry_list", buildSugarData("get_entry_list", restData, renewed), entryListReader(sink)));
+        }));
+    }
+
+    /**
+     * Iterates over every record the query matches, fetching the next pages while the current one is consumed
+     * e.g. exporting a module:
+     * <pre>
+     *     try(RecordCursor cursor = api.getRecordCursor("Accounts", data, 2)){
+     *         while(cursor.hasNext()) write(cursor.next());
+     *     }
+     * </pre>
+     * @param moduleName {String} The name of the module to query or plainly the table name
+     * @param data {HashMap} The post data, the same keys as {@link #getRecords(String, HashMap, SugarResponse)},
+     *             <b>max</b> is the page size and <b>offset</b> where the cursor starts
+     * @param prefetchDepth {int} the number of pages fetched ahead of the one being consumed
+     * @return {RecordCursor} the cursor, close it to stop paging early
+     */
+    @Override
+    public RecordCursor getRecordCursor(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                        int prefetchDepth) {
+        return new RecordCursor(this, moduleName, data, prefetchDepth);
+    }
+
+    private static HttpTransport.BodyReader<EntryListPage> entryListReader(RecordSink sink){
+        return in -> EntryListReader.read(new InputStreamReader(in, StandardCharsets.UTF_8), sink);
+    }
+
+    /**
+     * Posts on the calling thread. With a session manager an "Invalid Session ID" answer renews the session
+     * and the request is sent once more, the callback only sees the answer to the replay.
+     */
+    private void post(String method, RestData restData, HashMap<String, String> data, SugarResponse callback){
+        callback.setMethod(method);
+        SessionManager manager = sessionManager;
+        if(manager==null){
+            PRequest.post(this.crmUrl, method, buildSugarData(method, restData, ownSession(data)), callback);
+            return;
+        }
+        String session;
+        try {
+            session = sessionFor(data);
+        }catch (IOException ex){
+            callback.onFailed(ex.getMessage());
+            return;
+        }
+        PRequest.post(this.crmUrl, method, buildSugarData(method, restData, session), new ResponseHandler() {
+            @Override
+            public void onSuccessful(String body) {
+                if(!SessionManager.isInvalidSession(body)){
+                    callback.onSuccessful(body);
+                    return;
+                }
+                String renewed;
+                try {
+                    renewed = await(manager.renew(session));
+                }catch (IOException ex){
+                    callback.onFailed(ex.getMessage());
+                    return;
+                }
+                PRequest.post(crmUrl, method, buildSugarData(method, restData, renewed), callback);
+            }
+
+            @Override
+            public void onFailed(String errorMessage) {
+                callback.onFailed(errorMessage);
+            }
+        });
+    }
+
+    private CompletableFuture<SugarResponse> postAsync(String method, RestData restData,
+                                                       HashMap<String, String> data, SugarResponse callback){
+        callback.setMethod(method);
+        SessionManager manager = sessionManager;
+        if(manager==null) return PRequest.postAsync(this.crmUrl, method,
+                buildSugarData(method, restData, ownSession(data)), callback).thenApply(body -> callback);
+        return sessionAsync(manager, data).whenComplete((session, error) -> {
+            if(error!=null) callback.onFailed(describe(error));
+        }).thenCompose(session -> {
+            FailuresOnly first = new FailuresOnly(callback);
+            return PRequest.postAsync(this.crmUrl, method, buildSugarData(method, restData, session), first)
+                    .thenCompose(body -> {
+                        if(!SessionManager.isInvalidSession(body)){
+                            callback.onSuccessful(body);
+                            return CompletableFuture.completedFuture(callback);
+                        }
+                        return manager.renew(session).whenComplete((renewed, error) -> {
+                            if(error!=null) callback.onFailed(describe(error));
+                        }).thenCompose(renewed -> PRequest.postAsync(this.crmUrl, method,
+                                buildSugarData(method, restData, renewed), callback).thenApply(replayed -> callback));
+                    });
+        });
+    }
+
+    /**
+     * The session a request is sent with: the caller's, the manager's (logging in when there is none yet)
+     * or the one set with {@link #setSessionID(String)}
+     * @throws IOException when the manager couldn't log in
+     */
+    private String sessionFor(HashMap<String, String> data) throws IOException{
+        String session = data.get("session");
+        if(session!=null) return session;
+        SessionManager manager = sessionManager;
+        return manager!=null ? await(manager.getSessionAsync()) : sessionID;
+    }
+
+    private String ownSession(HashMap<String, String> data){
+        String session = data.get("session");
+        return session!=null ? session : sessionID;
+    }
+
+    private static CompletableFuture<String> sessionAsync(SessionManager manager, HashMap<String, String> data){
+        String session = data.get("session");
+        return session!=null ? CompletableFuture.completedFuture(session) : manager.getSessionAsync();
+    }
+
+    private static String await(CompletableFuture<String> session) throws IOException{
+        try {
+            return session.join();
+        }catch (CompletionException ex){
+            throw new IOException(describe(ex), ex.getCause());
+        }
+    }
+
+    private static String describe(Throwable error){
+        Throwable cause = error instanceof CompletionException && error.getCause()!=null ? error.getCause() : error;
+        return cause instanceof IllegalStateException ? cause.getMessage() : String.valueOf(cause);
+    }
+
+    private RestData buildLoginParams(String username, String password){
+        return (writer, session) -> {
+            writer.beginObject();
+            writer.name("user_auth").beginObject();
+            writer.name("user_name").value(username);
+            writer.name("password").value(password);
+            writer.endObject();
+            writer.endObject();
+        };
+    }
+
+    /**
+     * Update : 17th-10-2026
+     * The rest_data is no longer built as a Json String and then unescaped with regular expressions,
+     * every method writes its parameters straight into the form encoded body and embedded arrays
+     * (fields, ids, extras) are copied token by token as real Json arrays.
      *
      * @param type {int} The MethodType
      * @param $module {String} The name of the module to query or plainly the table name
@@ -173,127 +480,161 @@ public class SugarAPI implements SugarRequestInterface {
      * @apiNote Use <b>fields</b> to represent the list of columns you need to select
      *          Use <b>query</b> to represent your query. Mostly for your where statements, note that your where
      *          Queries should be without the where clause. @see sugarcrm documentation for more information
-     * @return {String}
+     * @return {RestData} the writer for the rest_data value, it holds copies of the data and arrayInputs taken
+     *         when it is built, a login or replay that writes it later never sees changes the caller made since
      */
-    private String buildSugarParams(int type, @NotNull String $module, @NotNull HashMap<String, String> data,
-                                   @Nullable HashMap<String, String> [] arrayInputs){
-        String _return; JsonObject params = new JsonObject();
-        params.addProperty("session", data.get("session")); params.addProperty("module_name", $module);
-        switch (type){
-            case GET_ENTRY:
-                _return = makeGetEntryParams(params, data);
-                break;
-            case SET_ENTRY://we need to build up the name_value_list array.. easy stuffs
-                _return = makeSetEntryParams(params, data);
-                break;
-            case SET_ENTRIES:
-                _return = makeSetEntriesParams(params, arrayInputs);
-                System.out.println(_return);
-                break;
-            case GET_ENTRY_LIST:
-                setParameterDefaults(data);
-                _return = makeGetEntryListParams(params, data);
-                System.out.println(_return);
-                break;
-            case GET_ENTRIES:
-                _return = makeGetEntriesParams(params, data);
-                break;
-            default:
-                _return = "";
-                break;
-        }
-        return _return;
+    RestData buildSugarParams(int type, @NotNull String $module, @NotNull HashMap<String, String> callerData,
+                            @Nullable HashMap<String, String> [] callerInputs){
+        HashMap<String, String> data = new LinkedHashMap<>(callerData);//keeps the caller's field order
+        HashMap<String, String>[] arrayInputs = callerInputs==null ? null : copyOf(callerInputs);
+        return (writer, session) -> {
+            writer.beginObject();
+            writer.name("session").value(session);
+            writer.name("module_name").value($module);
+            switch (type){
+                case GET_ENTRY:
+                    makeGetEntryParams(writer, data);
+                    break;
+                case SET_ENTRY://we need to build up the name_value_list array.. easy stuffs
+                    makeSetEntryParams(writer, data);
+                    break;
+                case SET_ENTRIES:
+                    makeSetEntriesParams(writer, arrayInputs);
+                    break;
+                case GET_ENTRY_LIST:
+                    makeGetEntryListParams(writer, withParameterDefaults(data));
+                    break;
+                case GET_ENTRIES:
+                    makeGetEntriesParams(writer, data);
+                    break;
+                default:
+                    break;
+            }
+            writer.endObject();
+        };
+    }
+
+    private static HashMap<String, String>[] copyOf(HashMap<String, String>[] inserts){
+        HashMap<String, String>[] copies = inserts.clone();
+        for(int i = 0; i < copies.length; i++) copies[i] = new LinkedHashMap<>(inserts[i]);
+        return copies;
     }
 
-    private String makeGetEntryParams(JsonObject params, HashMap<String, String> data){
-        if(data.containsKey("id")) params.addProperty("id", data.get("id"));
-        if(data.containsKey("fields")) params.addProperty("select_fields", data.get("fields"));
-        return params.toString();
+    private void makeGetEntryParams(JsonWriter writer, HashMap<String, String> data) throws IOException{
+        if(data.containsKey("id")) writer.name("id").value(data.get("id"));
+        if(data.containsKey("fields")) writeJsonArrayOrString(writer.name("select_fields"), data.get("fields"));
     }
 
     /**
      * Added 27th-03-2016
-     * @param params
+     * @param writer
      * @param data
-     * @return
      */
-    private String makeGetEntriesParams(JsonObject params, HashMap<String, String> data){
-        String ids =(data.get("ids")==null) ? "[]" : data.get("ids");
-        if(!ids.equals("[]")) ids = parser.parse(ids).getAsJsonArray().toString();
-        params.addProperty("ids", ids);
+    private void makeGetEntriesParams(JsonWriter writer, HashMap<String, String> data) throws IOException{
+        String ids = (data.get("ids")==null) ? "[]" : data.get("ids");
+        writeJsonArray(writer.name("ids"), ids);
         String fields = (data.get("fields")==null)? "" : data.get("fields");
-        if(!fields.equals("")) fields = parser.parse(fields).getAsJsonArray().toString();
-        params.addProperty("select_fields", fields);
-        params.addProperty("link_name_to_fields_array", "");
-        params.addProperty("track_view", "false");
-        return params.toString().replaceAll("\\]\"","]").replaceAll("\\\\", "").replace("\"[", "[").replace("\"[", "[");
+        writeJsonArrayOrString(writer.name("select_fields"), fields);
+        String extras = (data.get("extras")==null)? "" : data.get("extras");
+        writeJsonArrayOrString(writer.name("link_name_to_fields_array"), extras);
+        writer.name("track_view").value("false");
     }
 
     /**
      * Added 27th-03-2016
-     * @param params
+     * @param writer
      * @param data
-     * @return
      */
-    private String makeGetEntryListParams(JsonObject params, HashMap<String, String> data){
-        params.addProperty("query", data.get("query"));
-        params.addProperty("order_by", data.get("order_by"));
-        params.addProperty("offset", data.get("offset"));
-        String field = data.get("fields");
-        if(!data.get("fields").equals("")) field = parser.parse(data.get("fields")).getAsJsonArray().toString();
-        params.addProperty("select_fields",field);
-        params.addProperty("link_name_to_fields_array", data.get("extras"));
-        params.addProperty("max_results", data.get("max"));
-        params.addProperty("deleted", data.get("deleted"));
-        params.addProperty("favorites", data.get("favorites"));
-        return params.toString().replaceAll("\\]\"","]").replaceAll("\\\\", "").replace("\"[", "[");
+    private void makeGetEntryListParams(JsonWriter writer, HashMap<String, String> data) throws IOException{
+        writer.name("query").value(data.get("query"));
+        writer.name("order_by").value(data.get("order_by"));
+        writer.name("offset").value(data.get("offset"));
+        writeJsonArrayOrString(writer.name("select_fields"), data.get("fields"));
+        writeJsonArrayOrString(writer.name("link_name_to_fields_array"), data.get("extras"));
+        writer.name("max_results").value(data.get("max"));
+        writer.name("deleted").value(data.get("deleted"));
+        writer.name("favorites").value(data.get("favorites"));
     }
 
     /**
      * Added 27th-03-2016
-     * @param params
+     * @param writer
      * @param data
-     * @return
      */
-    private String makeSetEntryParams(JsonObject params, HashMap<String, String> data){
-        JsonArray pool = new JsonArray();
-        buildNameValueList(data, pool);
-        params.add("name_value_list", pool);
-        return params.toString();
+    private void makeSetEntryParams(JsonWriter writer, HashMap<String, String> data) throws IOException{
+        writer.name("name_value_list");
+        buildNameValueList(data, writer);
     }
 
     /**
      * Added 27th-03-2016
-     * @param params
+     * @param writer
      * @param data
-     * @return
      */
-    private String makeSetEntriesParams(JsonObject params, HashMap<String, String>[] data){
-        JsonArray namedValueList = new JsonArray();
+    private void makeSetEntriesParams(JsonWriter writer, HashMap<String, String>[] data) throws IOException{
+        writer.name("name_value_list").beginArray();
         for (HashMap<String, String> aData : data) {
-            JsonArray recordArgs = new JsonArray();
-            buildNameValueList(aData, recordArgs);
-            namedValueList.add(recordArgs);
+            buildNameValueList(aData, writer);
         }
-        params.add("name_value_list", namedValueList);
-        return params.toString();
+        writer.endArray();
     }
 
     /**
      * Added 27th-03-2016
      * @param fromData
-     * @param toArray
+     * @param writer
      */
-    private void buildNameValueList(HashMap<String, String> fromData, JsonArray toArray){
+    private void buildNameValueList(Map<String, String> fromData, JsonWriter writer) throws IOException{
+        writer.beginArray();
         for (Map.Entry<String, String> entry : fromData.entrySet()) {
-            JsonObject recordObj = new JsonObject();
-            recordObj.addProperty("name", entry.getKey());
-            recordObj.addProperty("value", entry.getValue());
-            toArray.add(recordObj);
+            writer.beginObject();
+            writer.name("name").value(entry.getKey());
+            writer.name("value").value(entry.getValue());
+            writer.endObject();
         }
+        writer.endArray();
+    }
+
+    /**
+     * Writes a value the caller handed over as a Json array string (e.g. fields, ids, extras) as a real
+     * Json array. Anything that is not an array, like the empty string used for "all fields", stays a string.
+     */
+    private static void writeJsonArrayOrString(JsonWriter writer, String value) throws IOException{
+        if(value!=null && value.trim().startsWith("[")) writeJsonArray(writer, value);
+        else writer.value(value);
     }
 
-    private void setParameterDefaults(HashMap<String, String> data){
+    /**
+     * Copies the Json array token by token from the caller's string into the writer,
+     * this also normalizes single quoted or unquoted values the lenient reader accepts
+     */
+    private static void writeJsonArray(JsonWriter writer, String json) throws IOException{
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        int depth = 0;
+        do {
+            switch (reader.peek()){
+                case BEGIN_ARRAY: reader.beginArray(); writer.beginArray(); depth++; break;
+                case END_ARRAY: reader.endArray(); writer.endArray(); depth--; break;
+                case BEGIN_OBJECT: reader.beginObject(); writer.beginObject(); depth++; break;
+                case END_OBJECT: reader.endObject(); writer.endObject(); depth--; break;
+                case NAME: writer.name(reader.nextName()); break;
+                case STRING: writer.value(reader.nextString()); break;
+                case NUMBER: writer.jsonValue(reader.nextString()); break;
+                case BOOLEAN: writer.value(reader.nextBoolean()); break;
+                case NULL: reader.nextNull(); writer.nullValue(); break;
+                default: throw new JsonSyntaxException("Unexpected end of json array " + json);
+            }
+        }while (depth > 0);
+    }
+
+    /**
+     * Fills in the get_entry_list defaults on a copy, the caller's map is never modified
+     * @param callerData {HashMap} the caller's post data
+     * @return {HashMap} a new map holding the data and the defaults
+     */
+    private HashMap<String, String> withParameterDefaults(HashMap<String, String> callerData){
+        HashMap<String, String> data = new HashMap<>(callerData);
         if(!data.containsKey("query")) data.put("query", null);
         if(!data.containsKey("order_by")) data.put("order_by", "");
         if(!data.containsKey("offset")) data.put("offset", String.valueOf(0));
@@ -302,13 +643,56 @@ public class SugarAPI implements SugarRequestInterface {
         if(!data.containsKey("max")) data.put("max", String.valueOf(30));
         if(!data.containsKey("deleted")) data.put("deleted", String.valueOf(0));
         if(!data.containsKey("favorites")) data.put("favorites", String.valueOf(false));
+        return data;
+    }
+
+    /**
+     * Encodes the request in a single pass: the rest_data Json is written straight into the form body.
+     * The field order is the one the old HashMap based post data produced, so the bytes are unchanged.
+     */
+    FormEncoder buildSugarData(String methodType, RestData data, String session){
+        Metrics metrics = Metrics.getDefault();
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        FormEncoder form = new FormEncoder();
+        form.field("method", methodType);
+        form.field("input_type", "JSON");
+        form.field("response_type", "JSON");
+        JsonWriter writer = new JsonWriter(form.valueWriter("rest_data"));
+        try {
+            data.write(writer, session);
+            writer.close();
+        }catch (IOException ex){//the form writer never fails, this is a malformed array from the caller
+            throw new JsonSyntaxException(ex);
+        }
+        if(start!=0) metrics.recordBuild(methodType, System.nanoTime() - start);
+        return form;
+    }
+
+    /**
+     * Writes the value of rest_data, the session is only known when the request is sent
+     * so a replay after a new login writes the same parameters with the new session
+     */
+    interface RestData {
+        void write(JsonWriter writer, String session) throws IOException;
     }
 
-    private HashMap<String , String> buildSugarData(String methodType, String data){
-        dataTemp.put("method", methodType+"");
-        dataTemp.put("input_type", "JSON");
-        dataTemp.put("response_type", "JSON");
-        dataTemp.put("rest_data", data);
-        return dataTemp;
+    /**
+     * Passes failures on, the body reaches the callback once it is known not to be an expired session error
+     */
+    private static class FailuresOnly implements ResponseHandler {
+        private final SugarResponse callback;
+
+        FailuresOnly(SugarResponse callback){
+            this.callback = callback;
+        }
+
+        @Override
+        public void onSuccessful(String responseData) {
+        }
+
+        @Override
+        public void onFailed(String errorMessage) {
+            callback.onFailed(errorMessage);
+        }
     }
-}
\ No newline at end of file
+}
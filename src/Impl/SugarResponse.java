@@ -23,9 +23,13 @@
 package Impl;
 
 import Interfaces.ResponseHandler;
+import PRequest.Metrics;
 import com.google.gson.*;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.EnumMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
@@ -38,21 +42,30 @@ import java.util.concurrent.Callable;
  *     request. The SugarResponse also provides other helper methods to convert
  *     the response to easy and accessible data.
  * </p>
+ * <p>
+ *     The body is parsed at most once, the first time a conversion needs it, and every conversion is
+ *     kept, so asking for the same conversionType twice returns the same object. Call {@link #release()}
+ *     once the conversions you need are made to let go of the raw body and the parsed tree.
+ * </p>
  * Created by paulex on 26/03/16.
  */
 public class SugarResponse implements Callable<String>, ResponseHandler{
 
     private String responseData;
-    private JsonParser parser = new JsonParser();
-
-//    //We use this to restrict the type of conversionTypes
+    private JsonObject responseObject;
+    private final EnumMap<ConversionType, Object> conversions = new EnumMap<>(ConversionType.class);
+    private boolean released;
+    private volatile String method;
 
-    private void setData(String responseData){
+    private synchronized void setData(String responseData){
         this.responseData = responseData;
+        this.responseObject = null;
+        this.conversions.clear();
+        this.released = false;
     }
 
     @Deprecated
-    public String getResponseData() {
+    public synchronized String getResponseData() {
         return responseData;
     }
 
@@ -60,11 +73,10 @@ public class SugarResponse implements Callable<String>, ResponseHandler{
      * Use this method to get the raw JsonObject responseData
      * @return {JsonObject}
      */
-    public JsonObject getJsonResponseData(){
+    public synchronized JsonObject getJsonResponseData(){
         JsonObject object = null;
         try{
-            JsonParser parser = new JsonParser();
-            object = parser.parse(this.responseData).getAsJsonObject();
+            object = parse();
         }catch (Exception ex){
             ex.printStackTrace();
             System.out.println("Invalid Json Response : ");
@@ -78,20 +90,56 @@ public class SugarResponse implements Callable<String>, ResponseHandler{
      * @param conversionType {enum|ConversionType} use to specify what type of response is been expected from sugar
      *               e.g for get_entry its reasonable to expect a single object, thus
      *               this method helps to easily re-order the keys and value for quick retrieval
-     * @return {Object|JsonObject|JsonArray}
+     * @return {Object|JsonObject|JsonArray|RecordBatch} the same object on every call for a given conversionType,
+     *               copy it before modifying it if other readers share this response
      */
-    public Object getJsonObjectResponse(ConversionType conversionType){
-        JsonObject responseObject = parser.parse(this.responseData).getAsJsonObject();
+    public synchronized Object getJsonObjectResponse(ConversionType conversionType){
+        Object converted = conversions.get(conversionType);
+        if(converted!=null) return converted;
+        Metrics metrics = Metrics.getDefault();
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
         if(conversionType==ConversionType.DEFAULT) {
-            return responseObject;
+            converted = parse();
         }else if(conversionType==ConversionType.SINGLE){
-            return  makeJsonObject(responseObject);
+            converted = makeJsonObject(parse());
         }else if(conversionType==ConversionType.LIST){
-            return makeListJsonObject(responseObject);
+            converted = makeListJsonObject(parse());
+        }else if(conversionType==ConversionType.COLUMNAR){
+            converted = makeRecordBatch();
+        }else if(conversionType==ConversionType.RELATIONSHIPS){
+            converted = makeRelationships(parse());
         }else{
             throw new IllegalArgumentException("Parameter conversionType must be either of SugarResponse.DEFAULT," +
-                    " SugarResponse.SINGLE or SugarResponse.LIST");
+                    " SugarResponse.SINGLE, SugarResponse.LIST, SugarResponse.COLUMNAR or SugarResponse.RELATIONSHIPS");
+        }
+        conversions.put(conversionType, converted);
+        if(start!=0) metrics.recordConvert(method, conversionType.name(), System.nanoTime() - start);
+        return converted;
+    }
+
+    /**
+     * The sugar method the response answers, set by the SugarAPI so conversions are timed under it
+     */
+    void setMethod(String method){
+        this.method = method;
+    }
+
+    /**
+     * Drops the raw body and the parsed tree, conversions already made stay available.
+     * Asking for a conversion that wasn't made before the release throws an IllegalStateException.
+     */
+    public synchronized void release(){
+        responseData = null;
+        responseObject = null;
+        released = true;
+    }
+
+    private JsonObject parse(){
+        if(responseObject==null){
+            if(released) throw new IllegalStateException("The response body has been released");
+            responseObject = new JsonParser().parse(this.responseData).getAsJsonObject();
         }
+        return responseObject;
     }
 
     /**
@@ -136,6 +184,46 @@ public class SugarResponse implements Callable<String>, ResponseHandler{
         return returnArray;
     }
 
+    /**
+     * The LIST conversion keeps the records only, this one keeps what the relationship_list holds for them
+     * @param responseObject {JsonObject}
+     * @return {RelationshipLoader.Result} the related records of every entry by link
+     */
+    private RelationshipLoader.Result makeRelationships(@NotNull JsonObject responseObject){
+        RelationshipLoader.Result relationships = new RelationshipLoader.Result();
+        String error = RelationshipLoader.readRelationships(responseObject, relationships);
+        if(error!=null) throw new UnsupportedOperationException("Can't read the relationships of an error " +
+                "response: " + error);
+        return relationships;
+    }
+
+    /**
+     * Reads the entry_list straight from the body into columns, without building a Json tree
+     * @return {RecordBatch} the records of the response
+     */
+    private RecordBatch makeRecordBatch(){
+        if(responseData==null) throw new IllegalStateException("The response body has been released");
+        RecordBatch.Builder builder = newRecordBatchBuilder();
+        EntryListPage page;
+        try {
+            page = EntryListReader.read(new StringReader(responseData), builder);
+        }catch (IOException ex){
+            throw new JsonSyntaxException(ex);
+        }
+        if(page.isError()) throw new UnsupportedOperationException("Can't create a record batch from an error " +
+                "response: " + page.getError());
+        return builder.build();
+    }
+
+    /**
+     * Override to share one {@link RecordBatch.Schema} between the pages of a job, or to turn
+     * dictionary encoding off
+     * @return {RecordBatch.Builder} the builder used for {@link ConversionType#COLUMNAR}
+     */
+    protected RecordBatch.Builder newRecordBatchBuilder(){
+        return new RecordBatch.Builder(true);
+    }
+
     public void getNameValueListObjectsKeyValues(@NotNull Set<Map.Entry<String, JsonElement>> fromEntries,
                                                  @NotNull JsonObject toObject){
         for (Map.Entry<String, JsonElement> entry :  fromEntries){
@@ -162,21 +250,17 @@ public class SugarResponse implements Callable<String>, ResponseHandler{
 
 
 
+    /**
+     * @return {String} the raw response body, null once released
+     */
     @Override
-    public String call() throws Exception {
-        //lets free unused objects
-        System.gc();
-        return null;
+    public synchronized String call() {
+        return responseData;
     }
 
     @Override
     public void onSuccessful(String data) {
         setData(data);
-        try {
-            call();
-        }catch (Exception ex){
-            ex.printStackTrace();
-        }
     }
 
     @Override
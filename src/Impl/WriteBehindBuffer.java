@@ -0,0 +1,371 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Impl;
+
+import Interfaces.SugarRequestInterface;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     Buffers setRecord (set_entry) calls and writes them behind the caller as set_entries requests.
+ *     Calls for the same module and session are collected until the batch holds <b>maxRecords</b> records or
+ *     <b>maxDelay</b> has passed since its first call. Updates of the same id in one batch are merged into one
+ *     record, the last value written to a field wins, so a record changed five times in a second costs one slot
+ *     of one request instead of five requests. Records without an id are inserts and are never merged.
+ * </p>
+ * <p>
+ *     Every caller receives what set_entry would have answered, {id:"record id"}, once the batch holding its
+ *     write has completed, and a failed batch is reported to each of its callers through onFailed.
+ *     Batches of the same module and session are sent one after the other, so a later write of a field never
+ *     overtakes an earlier one. Writes are only as durable as the process until they are flushed:
+ *     call {@link #flush()} where they must have reached sugar and {@link #close()} on shutdown.
+ * </p>
+ * e.g.
+ * <pre>
+ *     WriteBehindBuffer buffer = new WriteBehindBuffer(api, 500, TimeUnit.MILLISECONDS, 100);
+ *     buffer.setRecord("Accounts", changes, callback);//returns at once
+ *     ...
+ *     buffer.close();//writes what is pending and waits for it
+ * </pre>
+ * Created on 17/10/26.
+ */
+public class WriteBehindBuffer implements AutoCloseable {
+
+    private final SugarRequestInterface api;
+    private final long maxDelayNanos;
+    private final int maxRecords;
+    private final ScheduledExecutorService timer;
+    private final Map<BatchKey, Batch> open = new HashMap<>();
+    //the last batch sent for every module and session, the next one is only sent once it has completed
+    private final Map<BatchKey, CompletableFuture<Void>> sending = new HashMap<>();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private long inserts;
+    private boolean closed;
+
+    /**
+     * @param api {SugarRequestInterface} the api used to send set_entries
+     * @param maxDelay {long} how long a batch collects writes after its first one
+     * @param unit {TimeUnit} the unit of maxDelay
+     * @param maxRecords {int} a batch is sent as soon as it holds this many records
+     */
+    public WriteBehindBuffer(@NotNull SugarRequestInterface api, long maxDelay, @NotNull TimeUnit unit,
+                             int maxRecords){
+        if(maxRecords < 1) throw new IllegalArgumentException("maxRecords must be at least 1");
+        this.api = api;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.maxRecords = maxRecords;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "psugar-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Same contract as {@link SugarRequestInterface#setRecord(String, HashMap, SugarResponse)} except that the
+     * call returns as soon as the write is buffered, the callback is called once the write has been sent
+     */
+    public void setRecord(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                          @NotNull SugarResponse callback){
+        setRecordAsync(moduleName, data, callback);
+    }
+
+    /**
+     * Adds the write to the open batch of its module and session
+     * @param moduleName {String} The name of the module to write to
+     * @param data {HashMap} the fields to write, an <b>id</b> updates that record, and optionally the
+     *             <b>session</b>. The map is copied, the caller may reuse it
+     * @param callback {SugarResponse} receives a set_entry shaped response, {id:"record id"}
+     * @return {CompletableFuture} completed with the callback once it has received the response
+     */
+    public CompletableFuture<SugarResponse> setRecordAsync(@NotNull String moduleName,
+                                                           @NotNull HashMap<String, String> data,
+                                                           @NotNull SugarResponse callback){
+        LinkedHashMap<String, String> fields = new LinkedHashMap<>(data);
+        String session = fields.remove("session");
+        BatchKey key = new BatchKey(moduleName, session);
+        Waiter waiter = new Waiter(callback);
+        Batch full = null;
+        synchronized (this){
+            if(closed) throw new IllegalStateException("WriteBehindBuffer is closed");
+            Batch batch = open.get(key);
+            if(batch==null){
+                batch = new Batch(key);
+                open.put(key, batch);
+                Batch scheduled = batch;
+                batch.timeout = timer.schedule(() -> send(scheduled), maxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+            String id = fields.get("id");
+            //an insert has no id to merge on, it keeps a slot of its own
+            String slot = id==null || id.isEmpty() ? "\u0000insert-" + (inserts++) : id;
+            PendingRecord record = batch.records.get(slot);
+            if(record==null){
+                batch.records.put(slot, new PendingRecord(fields, waiter));
+            }else{
+                record.fields.putAll(fields);
+                record.waiters.add(waiter);
+                merged.incrementAndGet();
+            }
+            writes.incrementAndGet();
+            if(batch.records.size() >= maxRecords) full = batch;
+        }
+        if(full!=null) send(full);
+        return waiter.future;
+    }
+
+    /**
+     * Sends every open batch now and waits until every batch sent so far has completed.
+     * Failed writes have already been reported to their callbacks.
+     */
+    public void flush(){
+        List<Batch> batches;
+        synchronized (this){
+            batches = new ArrayList<>(open.values());
+        }
+        for(Batch batch : batches) send(batch);
+        List<CompletableFuture<Void>> pending;
+        synchronized (this){
+            pending = new ArrayList<>(sending.values());
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /**
+     * Writes what is pending, waits for it and stops accepting writes
+     */
+    @Override
+    public void close(){
+        synchronized (this){
+            closed = true;
+        }
+        try {
+            flush();
+        }finally {
+            timer.shutdown();
+        }
+    }
+
+    /**
+     * @return {int} the number of records waiting in open batches
+     */
+    public synchronized int getPendingCount(){
+        int pending = 0;
+        for(Batch batch : open.values()) pending += batch.records.size();
+        return pending;
+    }
+
+    /**
+     * @return {long} the number of setRecord calls buffered so far
+     */
+    public long getWriteCount(){
+        return writes.get();
+    }
+
+    /**
+     * @return {long} the number of setRecord calls that were merged into a record already pending
+     */
+    public long getMergedCount(){
+        return merged.get();
+    }
+
+    /**
+     * @return {long} the number of set_entries requests sent so far
+     */
+    public long getRequestCount(){
+        return requests.get();
+    }
+
+    private void send(Batch batch){
+        CompletableFuture<Void> previous;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        synchronized (this){
+            if(open.get(batch.key)!=batch) return;//already sent by the timer, a full batch or a flush
+            open.remove(batch.key);
+            previous = sending.put(batch.key, done);
+        }
+        batch.timeout.cancel(false);
+        done.whenComplete((r, error) -> {
+            synchronized (WriteBehindBuffer.this){
+                sending.remove(batch.key, done);
+            }
+        });
+        if(previous==null) write(batch, done);
+        else previous.whenComplete((r, error) -> write(batch, done));
+    }
+
+    private void write(Batch batch, CompletableFuture<Void> done){
+        List<PendingRecord> records = new ArrayList<>(batch.records.values());
+        HashMap<String, String>[] inserts = newInserts(records.size());
+        for(int i = 0; i < inserts.length; i++) inserts[i] = new HashMap<>(records.get(i).fields);
+        HashMap<String, String> data = new HashMap<>();
+        if(batch.key.session!=null) data.put("session", batch.key.session);
+        String[] body = new String[1];
+        SugarResponse response = new SugarResponse(){
+            @Override
+            public void onSuccessful(String data) {
+                body[0] = data;
+            }
+        };
+        requests.incrementAndGet();
+        try {
+            api.setRecordsAsync(batch.key.moduleName, data, inserts, response).whenComplete((r, error) -> {
+                try {
+                    if(error!=null) fail(records, String.valueOf(error.getCause()!=null ? error.getCause() : error));
+                    else split(records, body[0]);
+                }finally {
+                    done.complete(null);
+                }
+            });
+        }catch (RuntimeException ex){
+            try {
+                fail(records, ex.toString());
+            }finally {
+                done.complete(null);
+            }
+        }
+    }
+
+    /**
+     * setRecords takes the records as an array, and a generic array can only be made unchecked
+     */
+    @SuppressWarnings("unchecked")
+    private static HashMap<String, String>[] newInserts(int size){
+        return (HashMap<String, String>[]) new HashMap<?, ?>[size];
+    }
+
+    /**
+     * set_entries answers {ids:[...]} in the order the records were sent
+     */
+    private static void split(List<PendingRecord> records, String body){
+        JsonObject responseObject;
+        try {
+            responseObject = new JsonParser().parse(body).getAsJsonObject();
+        }catch (RuntimeException ex){
+            fail(records, "Invalid Json Response : " + body);
+            return;
+        }
+        if(!responseObject.has("ids") || !responseObject.get("ids").isJsonArray()){
+            String error = responseObject.has("name") ? responseObject.get("name").getAsString() : body;
+            if(responseObject.has("description")) error += ": " + responseObject.get("description").getAsString();
+            fail(records, error);
+            return;
+        }
+        JsonArray ids = responseObject.getAsJsonArray("ids");
+        for(int i = 0; i < records.size(); i++){
+            JsonElement id = i < ids.size() ? ids.get(i) : null;
+            if(id==null || id.isJsonNull() || id.getAsString().isEmpty() || id.getAsString().equals("-1")){
+                for(Waiter waiter : records.get(i).waiters) waiter.fail("Sugar returned no id for the record");
+                continue;
+            }
+            JsonObject single = new JsonObject();
+            single.addProperty("id", id.getAsString());
+            String answer = single.toString();
+            for(Waiter waiter : records.get(i).waiters) waiter.succeed(answer);
+        }
+    }
+
+    private static void fail(List<PendingRecord> records, String errorMessage){
+        for(PendingRecord record : records) for(Waiter waiter : record.waiters) waiter.fail(errorMessage);
+    }
+
+    private static class Waiter {
+        final SugarResponse callback;
+        final CompletableFuture<SugarResponse> future = new CompletableFuture<>();
+
+        Waiter(SugarResponse callback){
+            this.callback = callback;
+        }
+
+        void succeed(String body){
+            try {
+                callback.onSuccessful(body);
+                future.complete(callback);
+            }catch (RuntimeException ex){
+                future.completeExceptionally(ex);
+            }
+        }
+
+        void fail(String errorMessage){
+            try {
+                callback.onFailed(errorMessage);
+            }catch (RuntimeException ex){
+                //the other callers of the batch are still told
+            }finally {
+                future.completeExceptionally(new IllegalStateException(errorMessage));
+            }
+        }
+    }
+
+    private static class PendingRecord {
+        final LinkedHashMap<String, String> fields;
+        final List<Waiter> waiters = new ArrayList<>(1);
+
+        PendingRecord(LinkedHashMap<String, String> fields, Waiter waiter){
+            this.fields = fields;
+            this.waiters.add(waiter);
+        }
+    }
+
+    private static class Batch {
+        final BatchKey key;
+        final LinkedHashMap<String, PendingRecord> records = new LinkedHashMap<>();
+        ScheduledFuture<?> timeout;
+
+        Batch(BatchKey key){
+            this.key = key;
+        }
+    }
+
+    private static class BatchKey {
+        final String moduleName;
+        final String session;
+
+        BatchKey(String moduleName, String session){
+            this.moduleName = moduleName;
+            this.session = session;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this==o) return true;
+            if(!(o instanceof BatchKey)) return false;
+            BatchKey other = (BatchKey) o;
+            return moduleName.equals(other.moduleName) && Objects.equals(session, other.session);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(moduleName, session);
+        }
+    }
+}
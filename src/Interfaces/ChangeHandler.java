@@ -0,0 +1,48 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Interfaces;
+
+import java.util.Map;
+
+/**
+ * <p>
+ *     Receives the records an incremental sync finds changed since the last run. A run can hand over
+ *     a record again after a crash or when an overlap is configured, so apply them idempotently (upsert/delete by id).
+ * </p>
+ * Created on 17/10/26.
+ */
+public interface ChangeHandler {
+
+    /**
+     * @param record {Map} a record created or modified since the last run, flattened as the LIST conversion does
+     */
+    void onChanged(Map<String, String> record);
+
+    /**
+     * @param id {String} the id of a record deleted since the last run
+     * @param record {Map} the fields sugar still returns for the deleted record
+     */
+    void onDeleted(String id, Map<String, String> record);
+
+    void onFailed(String errorMessage);
+}
@@ -0,0 +1,81 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package Interfaces;
+
+/**
+ * <p>
+ *     Receives the measurements of the client while {@link PRequest.Metrics} is enabled, e.g to forward them to
+ *     a metrics library. Every method has an empty default so a listener only overrides what it needs.
+ *     Listeners are called on the thread doing the work and should return quickly.
+ * </p>
+ * Created on 17/10/26.
+ */
+public interface MetricsListener {
+
+    /**
+     * An exchange with sugar has completed
+     * @param method {String} the sugar method, e.g get_entry, null when the caller didn't say
+     * @param statusCode {int} the http status, 0 when no answer came back
+     * @param bytesSent {long} the size of the request body
+     * @param bytesReceived {long} the bytes of the response body read off the socket
+     * @param networkNanos {long} from sending the request to the answer, -1 when the request wasn't sent
+     * @param failure {Throwable} why the exchange failed, null when it succeeded
+     */
+    default void onExchange(String method, int statusCode, long bytesSent, long bytesReceived, long networkNanos,
+                            Throwable failure){
+    }
+
+    /**
+     * An exchange whose request or response body was compressed has completed, called after onExchange
+     * @param method {String} the sugar method, null when the caller didn't say
+     * @param bytesSent {long} the request body as sent
+     * @param uncompressedBytesSent {long} the request body before it was compressed
+     * @param bytesReceived {long} the response body as read off the socket
+     * @param uncompressedBytesReceived {long} the response body once decoded
+     */
+    default void onCompression(String method, long bytesSent, long uncompressedBytesSent, long bytesReceived,
+                               long uncompressedBytesReceived){
+    }
+
+    /**
+     * A read was answered by an identical request already in flight instead of being sent, no onExchange follows
+     * @param method {String} the sugar method, e.g get_entry_list
+     */
+    default void onShared(String method){
+    }
+
+    /**
+     * @param method {String} the sugar method whose post data was encoded
+     * @param nanos {long} the time spent encoding it
+     */
+    default void onBuild(String method, long nanos){
+    }
+
+    /**
+     * @param method {String} the sugar method of the response, null when unknown
+     * @param conversion {String} the SugarResponse conversionType, e.g LIST
+     * @param nanos {long} the time spent parsing and converting the body
+     */
+    default void onConvert(String method, String conversion, long nanos){
+    }
+}
@@ -25,9 +25,14 @@ package Interfaces;
 
 
 
+import Impl.EntryListPage;
+import Impl.RecordCursor;
 import Impl.SugarResponse;
 import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Okeke Paul
@@ -55,4 +60,39 @@ public interface SugarRequestInterface {
 
     void setRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
                     @NotNull HashMap<String, String>[] inserts, @NotNull SugarResponse callback);
+
+    CompletableFuture<SugarResponse> loginAsync(String username, String password, SugarResponse callback);
+
+    CompletableFuture<SugarResponse> getRecordAsync(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                                    @NotNull SugarResponse callback);
+
+    CompletableFuture<SugarResponse> getRecordsAsync(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                                     @NotNull SugarResponse callback);
+
+    CompletableFuture<SugarResponse> getMultipleRecordsAsync(@NotNull String moduleName,
+                                                             @NotNull HashMap<String, String> data,
+                                                             @NotNull SugarResponse callback);
+
+    CompletableFuture<SugarResponse> setRecordAsync(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                                    @NotNull SugarResponse callback);
+
+    CompletableFuture<SugarResponse> setRecordsAsync(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                                     @NotNull HashMap<String, String>[] inserts,
+                                                     @NotNull SugarResponse callback);
+
+    EntryListPage streamRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                @NotNull RecordHandler handler);
+
+    EntryListPage streamRecords(@NotNull String moduleName, @NotNull HashMap<String, String> data,
+                                @NotNull RecordSink sink) throws IOException;
+
+    CompletableFuture<EntryListPage> streamRecordsAsync(@NotNull String moduleName,
+                                                        @NotNull HashMap<String, String> data,
+                                                        @NotNull RecordHandler handler);
+
+    CompletableFuture<EntryListPage> streamRecordsAsync(@NotNull String moduleName,
+                                                        @NotNull HashMap<String, String> data,
+                                                        @NotNull RecordSink sink);
+
+    RecordCursor getRecordCursor(@NotNull String moduleName, @NotNull HashMap<String, String> data, int prefetchDepth);
 }
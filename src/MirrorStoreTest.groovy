@@ -0,0 +1,131 @@
+import Impl.MirrorStore
+import Interfaces.RecordHandler
+
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * Writes to a store in a temporary directory and checks what a reopened store, a compaction and
+ * a growing index make of it. A store that isn't closed stands in for a crash.
+ * Created on 17/10/26.
+ */
+class MirrorStoreTest extends GroovyTestCase {
+
+    Path directory
+    List<MirrorStore> stores = []
+
+    void setUp() {
+        directory = Files.createTempDirectory("mirror")
+    }
+
+    void tearDown() {
+        stores.each { it.close() }
+        directory.toFile().deleteDir()
+    }
+
+    private MirrorStore open() {
+        MirrorStore store = new MirrorStore(directory).setCompaction(0.5, Long.MAX_VALUE)
+        stores << store
+        store
+    }
+
+    private static Map<String, String> account(String id, String name) {
+        [id: id, name: name, industry: null]
+    }
+
+    void testGarbageIsWhatCompactionReclaims() {
+        MirrorStore store = open()
+        store.put("Accounts", account("1", "first"))
+        store.put("Accounts", account("2", "kept"))
+        store.put("Accounts", account("1", "second"))
+        store.remove("Accounts", "1")
+        store.put("Accounts", account("1", "after the tombstone"))
+        store.remove("Accounts", "3")
+        long garbage = store.getGarbageBytes("Accounts")
+        long before = store.getSegmentBytes("Accounts")
+        assertTrue(store.compact("Accounts"))
+        assertEquals(before - garbage, store.getSegmentBytes("Accounts"))
+        assertEquals(0L, store.getGarbageBytes("Accounts"))
+        assertEquals(2, store.size("Accounts"))
+        assertEquals("after the tombstone", store.get("Accounts", "1").name)
+        assertEquals("kept", store.get("Accounts", "2").name)
+    }
+
+    void testCompactsByItselfAndNotDuringAScan() {
+        MirrorStore store = open().setCompaction(0.5, 0)
+        store.put("Accounts", account("1", "a"))
+        store.put("Accounts", account("2", "b"))
+        long live = store.getSegmentBytes("Accounts")
+        store.put("Accounts", account("1", "a"))
+        store.put("Accounts", account("2", "b"))
+        store.put("Accounts", account("1", "a"))//more than half the segment is garbage now
+        assertEquals(live, store.getSegmentBytes("Accounts"))
+        assertEquals(0L, store.getGarbageBytes("Accounts"))
+
+        boolean compacted = true
+        store.scan("Accounts", new RecordHandler() {
+            @Override
+            void onRecord(Map<String, String> record) {
+                compacted = store.compact("Accounts")
+            }
+
+            @Override
+            void onFailed(String errorMessage) {
+                fail(errorMessage)
+            }
+        })
+        assertFalse(compacted)
+        assertTrue(store.compact("Accounts"))
+    }
+
+    void testUncleanShutdownRebuildsTheIndex() {
+        MirrorStore store = open()
+        store.put("Accounts", account("1", "a"))
+        store.put("Accounts", account("2", "b"))
+        store.put("Accounts", account("1", "c"))
+        store.remove("Accounts", "2")
+        store.flush()
+        long garbage = store.getGarbageBytes("Accounts")
+
+        MirrorStore reopened = open()//the first store was never closed
+        assertEquals(1, reopened.size("Accounts"))
+        assertEquals("c", reopened.get("Accounts", "1").name)
+        assertNull(reopened.get("Accounts", "2"))
+        assertEquals(garbage, reopened.getGarbageBytes("Accounts"))
+    }
+
+    void testTornTailIsDropped() {
+        MirrorStore store = open()
+        store.put("Accounts", account("1", "a"))
+        long intact = store.getSegmentBytes("Accounts")
+        store.put("Accounts", account("2", "b"))
+        store.flush()
+        FileChannel.open(directory.resolve("Accounts.seg"), StandardOpenOption.WRITE).withCloseable {
+            it.truncate(it.size() - 3)
+        }
+
+        MirrorStore reopened = open()
+        assertEquals(intact, reopened.getSegmentBytes("Accounts"))
+        assertEquals(1, reopened.size("Accounts"))
+        assertEquals("a", reopened.get("Accounts", "1").name)
+        assertNull(reopened.get("Accounts", "2"))
+        reopened.put("Accounts", account("2", "again"))
+        assertEquals("again", reopened.get("Accounts", "2").name)
+    }
+
+    void testIndexGrowsAndSurvivesAReopen() {
+        MirrorStore store = open()
+        int count = 5000//several doublings of the initial 1024 slots
+        store.putAll("Accounts", (0..<count).collect { account("id-$it".toString(), "name-$it".toString()) })
+        (0..<count).each { assertEquals("name-$it".toString(), store.get("Accounts", "id-$it").name) }
+        assertNull(store.get("Accounts", "id-$count"))
+        store.close()
+        stores.remove(store)
+
+        MirrorStore reopened = open()
+        assertEquals(count, reopened.size("Accounts"))
+        (0..<count).each { assertEquals("name-$it".toString(), reopened.get("Accounts", "id-$it").name) }
+    }
+}
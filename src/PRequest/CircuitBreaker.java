@@ -0,0 +1,139 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package PRequest;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Stops the {@link HttpTransport} from sending to a host that keeps failing. After <b>failureThreshold</b>
+ *     failures in a row (network errors and 5xx answers) the circuit of the host opens and requests fail at once
+ *     with a {@link CircuitOpenException}. Once <b>openDuration</b> has passed a single request is let through:
+ *     the circuit closes again if it succeeds and stays open for another openDuration if it fails.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    /**
+     * 10 failures in a row open the circuit for 5 seconds
+     */
+    public CircuitBreaker(){
+        this(10, 5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param failureThreshold {int} the failures in a row that open the circuit
+     * @param openDuration {long} how long requests fail fast before one is tried again
+     * @param unit {TimeUnit} the unit of the openDuration
+     */
+    public CircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit){
+        if(failureThreshold < 1) throw new IllegalArgumentException("failureThreshold must be at least 1");
+        this.failureThreshold = failureThreshold;
+        this.openNanos = unit.toNanos(openDuration);
+    }
+
+    /**
+     * @param host {String} scheme://host:port of the endpoint
+     * @return {boolean} false when the request must not be sent
+     */
+    public boolean allowRequest(String host){
+        return circuit(host).allow();
+    }
+
+    public void onSuccess(String host){
+        circuit(host).succeeded();
+    }
+
+    public void onFailure(String host){
+        circuit(host).failed();
+    }
+
+    /**
+     * Hands back a request {@link #allowRequest(String)} let through that was never sent, e.g. shed by the limiter,
+     * so a half open circuit lets the next request probe the host instead of waiting for an answer that won't come
+     */
+    public void onNotSent(String host){
+        circuit(host).notSent();
+    }
+
+    public State getState(String host){
+        Circuit circuit = circuits.get(host);
+        return circuit==null ? State.CLOSED : circuit.state();
+    }
+
+    private Circuit circuit(String host){
+        return circuits.computeIfAbsent(host, k -> new Circuit());
+    }
+
+    private class Circuit {
+        private State state = State.CLOSED;
+        private int failures;
+        private long openedAt;
+        private boolean probing;
+
+        synchronized boolean allow(){
+            if(state==State.CLOSED) return true;
+            if(state==State.OPEN){
+                if(System.nanoTime() - openedAt < openNanos) return false;
+                state = State.HALF_OPEN;
+                probing = false;
+            }
+            if(probing) return false;//one request at a time finds out whether the host is back
+            probing = true;
+            return true;
+        }
+
+        synchronized void succeeded(){
+            state = State.CLOSED;
+            failures = 0;
+            probing = false;
+        }
+
+        synchronized void failed(){
+            failures++;
+            if(state==State.HALF_OPEN || failures >= failureThreshold){
+                state = State.OPEN;
+                openedAt = System.nanoTime();
+                probing = false;
+            }
+        }
+
+        synchronized void notSent(){
+            if(state==State.HALF_OPEN) probing = false;
+        }
+
+        synchronized State state(){
+            if(state==State.OPEN && System.nanoTime() - openedAt >= openNanos) return State.HALF_OPEN;
+            return state;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package PRequest
+
+import com.sun.net.httpserver.HttpServer
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * The breaker on its own, and through an {@link HttpTransport} against a local server that fails on demand.
+ * Created on 17/10/26.
+ */
+class CircuitBreakerTest extends GroovyTestCase {
+
+    static final String HOST = "http://localhost:1"
+
+    HttpServer server
+    AtomicInteger failures = new AtomicInteger()
+    String url
+
+    void setUp() {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+        server.createContext("/rest.php") { exchange ->
+            exchange.requestBody.bytes
+            byte[] body = "{}".getBytes("UTF-8")
+            exchange.sendResponseHeaders(failures.getAndDecrement() > 0 ? 503 : 200, body.length)
+            exchange.responseBody.write(body)
+            exchange.close()
+        }
+        server.start()
+        url = "http://localhost:${server.address.port}/rest.php"
+    }
+
+    void tearDown() {
+        server.stop(0)
+    }
+
+    void testOpensAfterTheThresholdAndLetsOneProbeThrough() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 50, TimeUnit.MILLISECONDS)
+        breaker.onFailure(HOST)
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST))
+        breaker.onFailure(HOST)
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST))
+        assertFalse(breaker.allowRequest(HOST))
+
+        Thread.sleep(80)
+        assertTrue(breaker.allowRequest(HOST))
+        assertFalse(breaker.allowRequest(HOST))//the probe is still out
+        breaker.onFailure(HOST)
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST))
+
+        Thread.sleep(80)
+        assertTrue(breaker.allowRequest(HOST))
+        breaker.onSuccess(HOST)
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST))
+    }
+
+    void testAProbeThatIsNeverSentIsHandedBack() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50, TimeUnit.MILLISECONDS)
+        breaker.onFailure(HOST)
+        Thread.sleep(80)
+        assertTrue(breaker.allowRequest(HOST))
+        breaker.onNotSent(HOST)
+        assertTrue(breaker.allowRequest(HOST))
+    }
+
+    void testCircuitRecoversWhenTheLimiterShedsTheProbe() {
+        ConcurrencyLimiter reads = new ConcurrencyLimiter("reads", 1, 1, 1, 0)
+        HttpTransport transport = new HttpTransport()
+                .setRetryPolicy(RetryPolicy.none())
+                .setCircuitBreaker(new CircuitBreaker(1, 50, TimeUnit.MILLISECONDS))
+                .setReadLimiter(reads)
+        failures.set(1)
+        shouldFail(HttpStatusException) { transport.post(url, "get_entry", body()) }
+        shouldFail(CircuitOpenException) { transport.post(url, "get_entry", body()) }
+
+        Thread.sleep(80)
+        def held = reads.acquire("get_entry").join()
+        shouldFail(LimitExceededException) { transport.post(url, "get_entry", body()) }//sheds the probe
+        held.ignore()
+
+        assertEquals("{}", transport.post(url, "get_entry", body()))
+        String host = "http://localhost:${server.address.port}"
+        assertEquals(CircuitBreaker.State.CLOSED, transport.circuitBreaker.getState(host))
+    }
+
+    private static FormEncoder body() {
+        new FormEncoder().field("method", "get_entry")
+    }
+}
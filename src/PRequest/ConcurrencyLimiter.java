@@ -0,0 +1,239 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package PRequest;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Adaptive cap on the requests the {@link HttpTransport} has in flight, so a fan out from many threads doesn't
+ *     saturate sugar's php workers. The limit follows AIMD: every answer that comes back about as fast as the
+ *     quickest recent answers of the same method adds 1/limit (one per round trip), an answer that takes more than
+ *     <b>tolerance</b> times as long (and a few milliseconds longer), a timeout, a 429 or a 5xx cuts it by a tenth,
+ *     at most once per round trip.
+ * </p>
+ * <p>
+ *     Requests over the limit wait in a FIFO queue, requests over the queue are shed with a
+ *     {@link LimitExceededException}. The transport keeps one limiter for reads and one for writes.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class ConcurrencyLimiter {
+
+    private static final double BACKOFF = 0.9;
+    private static final double TOLERANCE = 2.0;
+    //an answer is only slow once it is also this much over the baseline, on a fast link scheduling noise alone
+    //doubles a sub-millisecond round trip
+    private static final long SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    //the quickest answer is looked for again every this many answers, so the baseline follows the server
+    private static final int BASELINE_WINDOW = 500;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private final Map<String, Baseline> baselines = new HashMap<>();
+    private double limit;
+    private int inFlight;
+    private long lastDecrease;
+    private long shed;
+
+    /**
+     * @param name {String} e.g reads, shows in the failures of shed requests
+     * @param initialLimit {int} the limit until answers have been seen
+     * @param minLimit {int} the limit never goes below this
+     * @param maxLimit {int} the limit never goes above this
+     * @param maxQueue {int} the most requests waiting for a slot, 0 to shed as soon as the limit is reached
+     */
+    public ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit, int maxQueue){
+        if(minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit)
+            throw new IllegalArgumentException("Expected 1 <= minLimit <= initialLimit <= maxLimit");
+        if(maxQueue < 0) throw new IllegalArgumentException("maxQueue can't be negative");
+        this.name = name;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+    }
+
+    /**
+     * Takes a slot, completing immediately while the limit isn't reached and otherwise once a slot frees up
+     * @param method {String} the sugar method, round trips are only compared with the same method's
+     * @return {CompletableFuture} the permit, failed with a {@link LimitExceededException} when the queue is full
+     */
+    public CompletableFuture<Permit> acquire(String method){
+        synchronized (this){
+            if(inFlight < currentLimit()){
+                inFlight++;
+                return CompletableFuture.completedFuture(new Permit(method, inFlight));
+            }
+            if(queue.size() < maxQueue){
+                Waiter waiter = new Waiter(method);
+                queue.add(waiter);
+                return waiter.permit;
+            }
+            shed++;
+        }
+        CompletableFuture<Permit> rejected = new CompletableFuture<>();
+        rejected.completeExceptionally(new LimitExceededException("Too many " + name + " in flight (limit " +
+                getLimit() + ", queue " + maxQueue + ")"));
+        return rejected;
+    }
+
+    public synchronized int getLimit() {
+        return currentLimit();
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueueDepth(){
+        return queue.size();
+    }
+
+    /**
+     * @return {long} the requests rejected because the queue was full
+     */
+    public synchronized long getShed() {
+        return shed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + ": limit=" + currentLimit() + ", inFlight=" + inFlight + ", queued=" + queue.size() +
+                ", shed=" + shed;
+    }
+
+    private int currentLimit(){
+        return (int) limit;
+    }
+
+    private void release(String method, long rttNanos, boolean dropped, int inFlightAtStart){
+        Waiter next = null;
+        int nextInFlight = 0;
+        synchronized (this){
+            inFlight--;
+            if(rttNanos >= 0 || dropped) adjust(method, rttNanos, dropped, inFlightAtStart);
+            if(inFlight < currentLimit() && !queue.isEmpty()){
+                inFlight++;
+                nextInFlight = inFlight;
+                next = queue.poll();
+            }
+        }
+        //completed outside the lock, the waiter goes on to send its request
+        if(next!=null) next.permit.complete(new Permit(next.method, nextInFlight));
+    }
+
+    private void adjust(String method, long rttNanos, boolean dropped, int inFlightAtStart){
+        long now = System.nanoTime();
+        Baseline baseline = null;
+        if(method!=null && rttNanos >= 0){
+            baseline = baselines.computeIfAbsent(method, k -> new Baseline());
+            baseline.add(rttNanos);
+        }
+        boolean slow = baseline!=null && rttNanos > baseline.min * TOLERANCE && rttNanos - baseline.min > SLACK_NANOS;
+        if(dropped || slow){
+            //one cut per round trip, the answers of that trip were all sent at the old limit
+            long roundTrip = baseline!=null ? baseline.min : rttNanos;
+            if(now - lastDecrease > Math.max(roundTrip, 0)){
+                limit = Math.max(minLimit, limit * BACKOFF);
+                lastDecrease = now;
+            }
+        }else if(inFlightAtStart * 2 >= currentLimit()){//a limit the callers don't use isn't raised any further
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    /**
+     * A slot, give it back through exactly one of its methods
+     */
+    public class Permit {
+        private final String method;
+        private final int inFlightAtStart;
+        private boolean released;
+
+        private Permit(String method, int inFlightAtStart){
+            this.method = method;
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        /**
+         * @param rttNanos {long} how long the answer took
+         */
+        public void succeeded(long rttNanos){
+            give(rttNanos, false);
+        }
+
+        /**
+         * The answer was a timeout, a 429 or a 5xx, the server is overloaded
+         */
+        public void dropped(){
+            give(-1, true);
+        }
+
+        /**
+         * The request failed for a reason that says nothing about the server's load
+         */
+        public void ignore(){
+            give(-1, false);
+        }
+
+        private void give(long rttNanos, boolean dropped){
+            synchronized (this){
+                if(released) return;
+                released = true;
+            }
+            release(method, rttNanos, dropped, inFlightAtStart);
+        }
+    }
+
+    private static class Waiter {
+        final String method;
+        final CompletableFuture<Permit> permit = new CompletableFuture<>();
+
+        Waiter(String method){
+            this.method = method;
+        }
+    }
+
+    private static class Baseline {
+        private long min = Long.MAX_VALUE;
+        private long windowMin = Long.MAX_VALUE;
+        private int samples;
+
+        void add(long rttNanos){
+            min = Math.min(min, rttNanos);
+            windowMin = Math.min(windowMin, rttNanos);
+            if(++samples % BASELINE_WINDOW == 0){
+                min = windowMin;
+                windowMin = Long.MAX_VALUE;
+            }
+        }
+    }
+}
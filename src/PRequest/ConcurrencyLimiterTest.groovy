@@ -0,0 +1,57 @@
+package PRequest
+
+import java.util.concurrent.CompletionException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Created on 17/10/26.
+ */
+class ConcurrencyLimiterTest extends GroovyTestCase {
+
+    void testQueuesOverTheLimitAndShedsOverTheQueue() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("reads", 2, 1, 4, 1)
+        def first = limiter.acquire("get_entry")
+        def second = limiter.acquire("get_entry")
+        def queued = limiter.acquire("get_entry")
+        def shed = limiter.acquire("get_entry")
+        assertTrue(first.done && second.done)
+        assertFalse(queued.done)
+        assertEquals(1, limiter.queueDepth)
+        try {
+            shed.join()
+            fail("The request over the queue was not shed")
+        } catch (CompletionException ex) {
+            assertTrue(ex.cause instanceof LimitExceededException)
+        }
+        assertEquals(1L, limiter.shed)
+
+        first.join().ignore()
+        assertTrue(queued.done)
+        assertEquals(2, limiter.inFlight)
+        second.join().ignore()
+        queued.join().ignore()
+        assertEquals(0, limiter.inFlight)
+    }
+
+    void testAPermitIsOnlyGivenBackOnce() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("writes", 1, 1, 1, 0)
+        def permit = limiter.acquire("set_entry").join()
+        permit.ignore()
+        permit.ignore()
+        assertEquals(0, limiter.inFlight)
+        limiter.acquire("set_entry").join()
+        assertEquals(1, limiter.inFlight)
+    }
+
+    void testOverloadCutsTheLimitAndFastAnswersRaiseIt() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("reads", 10, 1, 20, 0)
+        limiter.acquire("get_entry").join().dropped()
+        assertEquals(9, limiter.limit)
+
+        20.times {
+            def permits = (0..<limiter.limit).collect { limiter.acquire("get_entry").join() }
+            permits.each { it.succeeded(TimeUnit.MILLISECONDS.toNanos(1)) }
+        }
+        assertTrue("limit ${limiter.limit}", limiter.limit > 9)
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package PRequest;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Per-host lease accounting for the {@link HttpTransport}.
+ *     Over HTTP/1.1 every in-flight exchange occupies exactly one socket, so a lease taken here for the
+ *     duration of an exchange caps the number of connections the client opens to a host. The sockets themselves
+ *     belong to the client's keep-alive cache, which keeps or closes them on its own timeout. Released leases are
+ *     only remembered for a reuse window, to count how many leases likely rode a socket left open by an earlier
+ *     one; the pool neither holds nor closes sockets.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class ConnectionPool {
+
+    private final int maxConnectionsPerHost;
+    private final long reuseWindowNanos;
+    private final Map<String, Host> hosts = new HashMap<>();
+
+    /**
+     * @param maxConnectionsPerHost {int} the most leases held at the same time for one host
+     * @param reuseWindow {long} how long a released lease counts towards the reuse of the next one, set it to the
+     *                    keep-alive timeout the client runs with
+     * @param unit {TimeUnit} the unit of the reuseWindow
+     */
+    public ConnectionPool(int maxConnectionsPerHost, long reuseWindow, TimeUnit unit){
+        if(maxConnectionsPerHost < 1) throw new IllegalArgumentException("maxConnectionsPerHost must be at least 1");
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.reuseWindowNanos = unit.toNanos(reuseWindow);
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public long getReuseWindow(TimeUnit unit){
+        return unit.convert(reuseWindowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Takes a connection slot for the host, completing immediately when one is free
+     * and otherwise queueing the caller until another exchange releases its slot.
+     * @param host {String} scheme://host:port of the endpoint
+     * @return {CompletableFuture} completed with the lease
+     */
+    public CompletableFuture<Lease> acquire(String host){
+        CompletableFuture<Lease> waiter;
+        synchronized (this){
+            Host h = hosts.computeIfAbsent(host, k -> new Host());
+            if(h.active < maxConnectionsPerHost){
+                h.active++;
+                return CompletableFuture.completedFuture(h.lease(host, System.nanoTime()));
+            }
+            waiter = new CompletableFuture<>();
+            h.waiters.add(waiter);
+        }
+        return waiter;
+    }
+
+    /**
+     * Returns the slot, handing it straight to the oldest waiter when there is one.
+     * A lease must be released exactly once.
+     * @param lease {Lease} the lease returned by {@link #acquire(String)}
+     */
+    public void release(Lease lease){
+        CompletableFuture<Lease> next;
+        Lease handOff;
+        synchronized (this){
+            Host h = hosts.get(lease.host);
+            long now = System.nanoTime();
+            h.releasedAt.addLast(now);
+            next = h.waiters.poll();
+            if(next==null){
+                h.active--;
+                return;
+            }
+            handOff = h.lease(lease.host, now);
+        }
+        next.complete(handOff);//complete outside the lock, dependants may run inline
+    }
+
+    public synchronized Stats getStats(){
+        long now = System.nanoTime();
+        Stats stats = new Stats();
+        for(Host h : hosts.values()) h.addTo(stats, now);
+        return stats;
+    }
+
+    public synchronized Stats getStats(String host){
+        Stats stats = new Stats();
+        Host h = hosts.get(host);
+        if(h!=null) h.addTo(stats, System.nanoTime());
+        return stats;
+    }
+
+    private class Host {
+        int active;
+        long opened;
+        long reused;
+        final ArrayDeque<Long> releasedAt = new ArrayDeque<>();
+        final ArrayDeque<CompletableFuture<Lease>> waiters = new ArrayDeque<>();
+
+        Lease lease(String host, long now){
+            forgetReleased(now);
+            if(releasedAt.pollLast()!=null){
+                reused++;
+                return new Lease(host, true);
+            }
+            opened++;
+            return new Lease(host, false);
+        }
+
+        /**
+         * Drops the releases older than the reuse window
+         */
+        void forgetReleased(long now){
+            while(!releasedAt.isEmpty() && now - releasedAt.peekFirst() > reuseWindowNanos) releasedAt.pollFirst();
+            while(releasedAt.size() > maxConnectionsPerHost) releasedAt.pollFirst();
+        }
+
+        void addTo(Stats stats, long now){
+            forgetReleased(now);
+            stats.active += active;
+            stats.released += releasedAt.size();
+            stats.waiters += waiters.size();
+            stats.opened += opened;
+            stats.reused += reused;
+        }
+    }
+
+    /**
+     * A connection slot held for the duration of one exchange
+     */
+    public static class Lease {
+        private final String host;
+        private final boolean reused;
+
+        Lease(String host, boolean reused){
+            this.host = host;
+            this.reused = reused;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * @return true when a lease was released within the reuse window, the exchange likely rides its socket
+         */
+        public boolean isReused() {
+            return reused;
+        }
+    }
+
+    /**
+     * Point in time pool figures, use these to size {@link #getMaxConnectionsPerHost()}
+     */
+    public static class Stats {
+        private int active;
+        private int released;
+        private int waiters;
+        private long opened;
+        private long reused;
+
+        public int getActive() {
+            return active;
+        }
+
+        /**
+         * @return {int} the leases released within the reuse window and not taken again since
+         */
+        public int getReleased() {
+            return released;
+        }
+
+        public int getWaiters() {
+            return waiters;
+        }
+
+        public long getOpened() {
+            return opened;
+        }
+
+        public long getReused() {
+            return reused;
+        }
+
+        @Override
+        public String toString() {
+            return "active=" + active + ", released=" + released + ", waiters=" + waiters +
+                    ", opened=" + opened + ", reused=" + reused;
+        }
+    }
+}
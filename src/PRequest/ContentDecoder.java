@@ -0,0 +1,255 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package PRequest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * <p>
+ *     Decodes a gzip or deflate response body chunk by chunk as it comes off the socket, so a compressed
+ *     body is never held whole before it is inflated. Gzip headers, the CRC32 and size trailer and bodies made
+ *     of several members are handled. Deflate is taken as zlib wrapped (what the RFC says) or raw (what some
+ *     servers send), whichever the first bytes look like.
+ * </p>
+ * A decoder is used by one exchange, chunks are fed in order and never concurrently.
+ * Created on 17/10/26.
+ */
+final class ContentDecoder {
+
+    private static final int OUTPUT_CHUNK = 16 << 10;
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    private enum State {HEADER, BODY, TRAILER, DONE}
+
+    private final boolean gzip;
+    private final CRC32 crc = new CRC32();
+    private Inflater inflater;
+    private State state = State.HEADER;
+    //header or trailer bytes gathered across chunks
+    private byte[] held = new byte[64];
+    private int heldLength;
+    private byte[] input = new byte[OUTPUT_CHUNK];
+    private long decoded;
+    private int members;
+
+    private ContentDecoder(boolean gzip){
+        this.gzip = gzip;
+    }
+
+    /**
+     * @param contentEncoding {String} the Content-Encoding of a response
+     * @return {ContentDecoder} a decoder, null when the body isn't encoded
+     * @throws ZipException for an encoding other than gzip and deflate
+     */
+    static ContentDecoder forEncoding(String contentEncoding) throws ZipException{
+        String encoding = contentEncoding==null ? "" : contentEncoding.trim().toLowerCase(Locale.ROOT);
+        switch (encoding){
+            case "":
+            case "identity":
+                return null;
+            case "gzip":
+            case "x-gzip":
+                return new ContentDecoder(true);
+            case "deflate":
+                return new ContentDecoder(false);
+            default:
+                throw new ZipException("Unsupported Content-Encoding " + contentEncoding);
+        }
+    }
+
+    /**
+     * @param chunk {ByteBuffer} the next bytes of the body, consumed
+     * @param out {List} receives the decoded bytes
+     */
+    void decode(ByteBuffer chunk, List<ByteBuffer> out) throws IOException{
+        int length = chunk.remaining();
+        if(input.length < length) input = new byte[length];
+        chunk.get(input, 0, length);
+        decode(input, 0, length, out);
+    }
+
+    /**
+     * @return {long} the decoded bytes so far
+     */
+    long getDecodedBytes(){
+        return decoded;
+    }
+
+    /**
+     * Called once the whole body has been fed
+     * @throws EOFException when the body ended before the compressed stream did
+     */
+    void finish() throws IOException{
+        boolean complete = state==State.DONE || (state==State.HEADER && heldLength==0 && members > 0);
+        end();
+        if(!complete) throw new EOFException("The " + (gzip ? "gzip" : "deflate") + " body is truncated");
+    }
+
+    void end(){
+        if(inflater!=null) inflater.end();
+        inflater = null;
+    }
+
+    private void decode(byte[] bytes, int offset, int length, List<ByteBuffer> out) throws IOException{
+        while(length > 0){
+            switch (state){
+                case HEADER: {
+                    hold(bytes, offset, length);
+                    int header = gzip ? gzipHeaderLength() : deflateHeader();
+                    if(header < 0) return;//wait for more of the header
+                    if(state==State.DONE) return;
+                    //everything held past the header is the start of the compressed data
+                    bytes = Arrays.copyOfRange(held, header, heldLength);
+                    offset = 0;
+                    length = bytes.length;
+                    heldLength = 0;
+                    if(gzip) inflater = new Inflater(true);
+                    crc.reset();
+                    state = State.BODY;
+                    break;
+                }
+                case BODY: {
+                    int remaining = inflate(bytes, offset, length, out);
+                    offset += length - remaining;
+                    length = remaining;
+                    if(inflater.finished()) state = gzip ? State.TRAILER : State.DONE;
+                    break;
+                }
+                case TRAILER: {
+                    int used = hold(bytes, offset, Math.min(length, 8 - heldLength));
+                    offset += used;
+                    length -= used;
+                    if(heldLength < 8) return;
+                    if(intAt(0)!=(int) crc.getValue()) throw new ZipException("Corrupt gzip body: CRC mismatch");
+                    if(intAt(4)!=(int) inflater.getBytesWritten())
+                        throw new ZipException("Corrupt gzip body: size mismatch");
+                    end();
+                    members++;
+                    heldLength = 0;
+                    state = State.HEADER;//another member may follow
+                    break;
+                }
+                case DONE:
+                    return;//anything after a deflate stream is ignored
+            }
+        }
+    }
+
+    /**
+     * @return {int} the bytes of the input left over once the inflater is finished, 0 when it needs more
+     */
+    private int inflate(byte[] bytes, int offset, int length, List<ByteBuffer> out) throws IOException{
+        inflater.setInput(bytes, offset, length);
+        try {
+            while (true){
+                byte[] chunk = new byte[OUTPUT_CHUNK];
+                int written = 0;
+                while(written < chunk.length && !inflater.finished() && !inflater.needsInput()){
+                    int inflated = inflater.inflate(chunk, written, chunk.length - written);
+                    if(inflated==0 && inflater.needsDictionary()) throw new ZipException("Deflate dictionaries are not supported");
+                    if(inflated==0 && !inflater.needsInput() && !inflater.finished()) break;
+                    written += inflated;
+                }
+                if(written > 0){
+                    if(gzip) crc.update(chunk, 0, written);
+                    decoded += written;
+                    out.add(ByteBuffer.wrap(chunk, 0, written));
+                }
+                if(inflater.finished()) return inflater.getRemaining();
+                if(inflater.needsInput()) return 0;
+                if(written==0) throw new ZipException("The compressed body makes no progress");
+            }
+        }catch (DataFormatException ex){
+            throw new ZipException("Corrupt " + (gzip ? "gzip" : "deflate") + " body: " + ex.getMessage());
+        }
+    }
+
+    private int hold(byte[] bytes, int offset, int length){
+        if(held.length < heldLength + length) held = Arrays.copyOf(held, Math.max(held.length * 2,
+                heldLength + length));
+        System.arraycopy(bytes, offset, held, heldLength, length);
+        heldLength += length;
+        return length;
+    }
+
+    /**
+     * @return {int} the length of the gzip header held, -1 while it is incomplete
+     */
+    private int gzipHeaderLength() throws ZipException{
+        if(heldLength < 2) return -1;
+        if((held[0] & 0xff)!=0x1f || (held[1] & 0xff)!=0x8b){
+            if(members==0) throw new ZipException("Not a gzip body");
+            state = State.DONE;//trailing bytes after the last member are ignored, as GZIPInputStream does
+            return 0;
+        }
+        if(heldLength < 10) return -1;
+        if(held[2]!=8) throw new ZipException("Unsupported gzip compression method " + held[2]);
+        int flags = held[3] & 0xff;
+        int position = 10;
+        if((flags & FEXTRA)!=0){
+            if(heldLength < position + 2) return -1;
+            position += 2 + ((held[position] & 0xff) | (held[position + 1] & 0xff) << 8);
+        }
+        if((flags & FNAME)!=0){
+            while(position < heldLength && held[position]!=0) position++;
+            if(position++ >= heldLength) return -1;
+        }
+        if((flags & FCOMMENT)!=0){
+            while(position < heldLength && held[position]!=0) position++;
+            if(position++ >= heldLength) return -1;
+        }
+        if((flags & FHCRC)!=0) position += 2;
+        return position <= heldLength ? position : -1;
+    }
+
+    /**
+     * Picks zlib or raw deflate from the first two bytes, the inflater reads the zlib header itself
+     * @return {int} 0, the header bytes stay in the input, -1 until two bytes are there
+     */
+    private int deflateHeader(){
+        if(heldLength < 2) return -1;
+        inflater = new Inflater(!isZlibHeader(held[0] & 0xff, held[1] & 0xff));
+        return 0;
+    }
+
+    /**
+     * @return {boolean} true when the first two bytes of a deflate body are a zlib header, false for raw deflate
+     */
+    static boolean isZlibHeader(int cmf, int flg){
+        return (cmf & 0x0f)==8 && (cmf >> 4) <= 7 && ((cmf << 8) | flg) % 31==0;
+    }
+
+    private int intAt(int position){
+        return (held[position] & 0xff) | (held[position + 1] & 0xff) << 8 | (held[position + 2] & 0xff) << 16 |
+                (held[position + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,156 @@
+package PRequest
+
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.GZIPOutputStream
+import java.util.zip.ZipException
+
+/**
+ * Feeds bodies compressed by the JDK to the decoder in 1 byte and random sized chunks, and checks that
+ * truncated and corrupt bodies are reported.
+ * Created on 17/10/26.
+ */
+class ContentDecoderTest extends GroovyTestCase {
+
+    static final byte[] TEXT = ('{"entry_list":[' + (0..<2000).collect { "{\"id\":\"$it\",\"name\":\"Account $it\"}" }
+            .join(",") + ']}').getBytes("UTF-8")
+    static final byte[] NOISE = new byte[50000]
+    static {
+        new Random(7).nextBytes(NOISE)
+    }
+    static final List<byte[]> BODIES = [new byte[0], "x".getBytes("UTF-8"), TEXT, NOISE]
+
+    void testGzipInOneByteAndRandomChunks() {
+        BODIES.each { body ->
+            assertDecodes("gzip", gzip(body), body)
+        }
+    }
+
+    void testZlibAndRawDeflateInOneByteAndRandomChunks() {
+        BODIES.each { body ->
+            assertDecodes("deflate", deflate(body, false), body)
+            assertDecodes("deflate", deflate(body, true), body)
+        }
+    }
+
+    void testGzipMembersFollowingEachOther() {
+        byte[] first = TEXT
+        byte[] second = "second member".getBytes("UTF-8")
+        assertDecodes("x-gzip", concat(gzip(first), gzip(second)), concat(first, second))
+    }
+
+    void testGzipHeaderWithEveryOptionalField() {
+        ByteArrayOutputStream header = new ByteArrayOutputStream()
+        header.write([0x1f, 0x8b, 8, 2 | 4 | 8 | 16, 0, 0, 0, 0, 0, 3] as byte[])
+        header.write([3, 0, 1, 2, 3] as byte[])//FEXTRA
+        header.write("accounts.json\u0000".getBytes("ISO-8859-1"))//FNAME
+        header.write("a comment\u0000".getBytes("ISO-8859-1"))//FCOMMENT
+        CRC32 headerCrc = new CRC32()
+        headerCrc.update(header.toByteArray())
+        header.write([headerCrc.value & 0xff, (headerCrc.value >> 8) & 0xff] as byte[])//FHCRC
+
+        CRC32 crc = new CRC32()
+        crc.update(TEXT)
+        ByteBuffer trailer = ByteBuffer.allocate(8).order(java.nio.ByteOrder.LITTLE_ENDIAN)
+        trailer.putInt((int) crc.value).putInt(TEXT.length)
+        assertDecodes("gzip", concat(header.toByteArray(), deflate(TEXT, true), trailer.array()), TEXT)
+    }
+
+    void testTruncatedBodiesFailAtFinish() {
+        [gzip(TEXT), deflate(TEXT, false), deflate(TEXT, true)].eachWithIndex { encoded, i ->
+            String encoding = i==0 ? "gzip" : "deflate"
+            [0, 1, 5, 10, encoded.length.intdiv(2), encoded.length - 5, encoded.length - 1].each { cut ->
+                ContentDecoder decoder = ContentDecoder.forEncoding(encoding)
+                decoder.decode(ByteBuffer.wrap(encoded, 0, cut), [])
+                shouldFail(EOFException) { decoder.finish() }
+            }
+        }
+    }
+
+    void testCorruptBodiesAreReported() {
+        byte[] encoded = gzip(TEXT)
+        assertEquals("Corrupt gzip body: CRC mismatch", corrupt("gzip", flip(encoded, encoded.length - 8)))
+        assertEquals("Corrupt gzip body: size mismatch", corrupt("gzip", flip(encoded, encoded.length - 4)))
+        assertEquals("Not a gzip body", corrupt("gzip", flip(encoded, 0)))
+        assertNotNull(corrupt("gzip", flip(encoded, encoded.length.intdiv(2))))
+
+        byte[] zlib = deflate(TEXT, false)
+        assertNotNull(corrupt("deflate", flip(zlib, zlib.length - 1)))//the adler32 trailer
+        assertNotNull(corrupt("deflate", flip(zlib, zlib.length.intdiv(2))))
+        shouldFail(ZipException) { ContentDecoder.forEncoding("br") }
+    }
+
+    void testInflatedStreamTakesZlibAndRawDeflate() {
+        [TEXT, NOISE].each { body ->
+            assertBytes(body, PRequest.inflated(new ByteArrayInputStream(deflate(body, false))).bytes)
+            assertBytes(body, PRequest.inflated(new ByteArrayInputStream(deflate(body, true))).bytes)
+        }
+    }
+
+    private static void assertDecodes(String encoding, byte[] encoded, byte[] expected) {
+        assertBytes(expected, decode(encoding, encoded, { 1 }))
+        Random random = new Random(encoded.length)
+        5.times {
+            assertBytes(expected, decode(encoding, encoded, { 1 + random.nextInt(4096) }))
+        }
+    }
+
+    private static byte[] decode(String encoding, byte[] encoded, Closure<Integer> chunkSize) {
+        ContentDecoder decoder = ContentDecoder.forEncoding(encoding)
+        List<ByteBuffer> out = []
+        for (int offset = 0; offset < encoded.length;) {
+            int length = Math.min(chunkSize.call(), encoded.length - offset)
+            decoder.decode(ByteBuffer.wrap(encoded, offset, length), out)
+            offset += length
+        }
+        decoder.finish()
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream()
+        out.each { decoded.write(it.array(), it.arrayOffset() + it.position(), it.remaining()) }
+        assertEquals((long) decoded.size(), decoder.getDecodedBytes())
+        decoded.toByteArray()
+    }
+
+    private static void assertBytes(byte[] expected, byte[] actual) {
+        assertTrue("expected ${expected.length} bytes, decoded ${actual.length}", Arrays.equals(expected, actual))
+    }
+
+    /**
+     * @return the message of the IOException decoding the body ended in
+     */
+    private static String corrupt(String encoding, byte[] encoded) {
+        try {
+            decode(encoding, encoded, { 1 + new Random(3).nextInt(512) })
+        } catch (IOException ex) {
+            return ex.message
+        }
+        fail("The corrupt body was decoded")
+    }
+
+    private static byte[] gzip(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        new GZIPOutputStream(out).withCloseable { it.write(body) }
+        out.toByteArray()
+    }
+
+    private static byte[] deflate(byte[] body, boolean raw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, raw)
+        new DeflaterOutputStream(out, deflater).withCloseable { it.write(body) }
+        deflater.end()
+        out.toByteArray()
+    }
+
+    private static byte[] flip(byte[] bytes, int position) {
+        byte[] copy = Arrays.copyOf(bytes, bytes.length)
+        copy[position] = (byte) (copy[position] ^ 0x55)
+        copy
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        parts.each { out.write(it) }
+        out.toByteArray()
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package PRequest;
+
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>
+ *     Writes an application/x-www-form-urlencoded body straight into a single byte buffer.
+ *     Values are percent-encoded as they are written, using the same rules as {@link java.net.URLEncoder}
+ *     with UTF-8, so a caller can stream a large value (e.g. rest_data JSON) into the body without first
+ *     building it as a String.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class FormEncoder {
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buffer;
+    private int size;
+    private char highSurrogate;
+    private final ValueWriter valueWriter = new ValueWriter();
+
+    public FormEncoder(){
+        this(256);
+    }
+
+    public FormEncoder(int initialCapacity){
+        buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    /**
+     * Appends name=value to the body
+     * @param name {String} the field name
+     * @param value {String} the field value
+     * @return {FormEncoder} this encoder
+     */
+    public FormEncoder field(String name, String value){
+        startField(name);
+        encode(value, 0, value.length());
+        return this;
+    }
+
+    /**
+     * Starts a field and returns a writer that encodes whatever is written to it as the field value.
+     * The writer is only valid until the next field is started; closing it is a no-op.
+     * @param name {String} the field name
+     * @return {Writer} the value writer
+     */
+    public Writer valueWriter(String name){
+        startField(name);
+        return valueWriter;
+    }
+
+    public int size() {
+        flushSurrogate();
+        return size;
+    }
+
+    /**
+     * The backing buffer, only the first {@link #size()} bytes are part of the body.
+     * Call {@link #size()} first so a dangling surrogate is flushed
+     * @return {byte[]} the buffer
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public byte[] toByteArray(){
+        flushSurrogate();
+        return Arrays.copyOf(buffer, size);
+    }
+
+    @Override
+    public String toString() {
+        flushSurrogate();
+        return new String(buffer, 0, size, StandardCharsets.US_ASCII);
+    }
+
+    private void startField(String name){
+        flushSurrogate();
+        if(size > 0) put((byte) '&');
+        encode(name, 0, name.length());
+        put((byte) '=');
+    }
+
+    private void encode(CharSequence chars, int from, int to){
+        for(int i = from; i < to; i++) encodeChar(chars.charAt(i));
+    }
+
+    private void encode(char[] chars, int from, int to){
+        for(int i = from; i < to; i++) encodeChar(chars[i]);
+    }
+
+    /**
+     * Surrogate pairs may arrive split across two writes, the high half is held until its partner shows up
+     */
+    private void encodeChar(char c){
+        if(highSurrogate != 0){
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if(Character.isLowSurrogate(c)){
+                encodeCodePoint(Character.toCodePoint(high, c));
+                return;
+            }
+            percent('?');
+        }
+        if(Character.isHighSurrogate(c)) highSurrogate = c;
+        else encodeCodePoint(c);
+    }
+
+    private void flushSurrogate(){
+        if(highSurrogate != 0){
+            highSurrogate = 0;
+            percent('?');
+        }
+    }
+
+    private void encodeCodePoint(int c){
+        if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '.' || c == '-' || c == '*' || c == '_'){
+            put((byte) c);
+        }else if(c == ' '){
+            put((byte) '+');
+        }else if(c < 0x80){
+            percent(c);
+        }else if(c < 0x800){
+            percent(0xC0 | (c >> 6));
+            percent(0x80 | (c & 0x3F));
+        }else if(c < 0x10000){
+            if(Character.isSurrogate((char) c)){
+                percent('?');//unpaired surrogate, URLEncoder substitutes the same way
+                return;
+            }
+            percent(0xE0 | (c >> 12));
+            percent(0x80 | ((c >> 6) & 0x3F));
+            percent(0x80 | (c & 0x3F));
+        }else{
+            percent(0xF0 | (c >> 18));
+            percent(0x80 | ((c >> 12) & 0x3F));
+            percent(0x80 | ((c >> 6) & 0x3F));
+            percent(0x80 | (c & 0x3F));
+        }
+    }
+
+    private void percent(int b){
+        ensureCapacity(3);
+        buffer[size++] = '%';
+        buffer[size++] = HEX[(b >> 4) & 0xF];
+        buffer[size++] = HEX[b & 0xF];
+    }
+
+    private void put(byte b){
+        ensureCapacity(1);
+        buffer[size++] = b;
+    }
+
+    private void ensureCapacity(int extra){
+        if(size + extra > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, size + extra));
+    }
+
+    private class ValueWriter extends Writer {
+
+        @Override
+        public void write(int c) {
+            encodeChar((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            encode(cbuf, off, off + len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            encode(str, off, off + len);
+        }
+
+        @Override
+        public Writer append(CharSequence csq) {
+            encode(csq, 0, csq.length());
+            return this;
+        }
+
+        @Override
+        public Writer append(char c) {
+            encodeChar(c);
+            return this;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package PRequest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *     When the {@link HttpTransport} sends a second copy of a read. The latencies of the last answers are kept per
+ *     sugar method, and a read that hasn't been answered after the <b>percentile</b> of those latencies (kept
+ *     between minDelay and maxDelay) is sent again, whichever copy answers first wins. With the 95th percentile
+ *     about one read in twenty is sent twice, and a read stuck on a slow node costs about the p95 instead of
+ *     the whole stall.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class HedgePolicy {
+
+    private static final int WINDOW = 256;
+    //below this many answers the percentile means little, maxDelay is used
+    private static final int MIN_SAMPLES = 20;
+
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long maxDelayNanos;
+    private final Map<String, Latencies> latencies = new ConcurrentHashMap<>();
+    private final AtomicLong hedgesSent = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    /**
+     * @param percentile {double} e.g 0.95, the share of reads answered before a copy is sent
+     * @param minDelay {long} the shortest wait before a copy is sent
+     * @param maxDelay {long} the longest wait before a copy is sent
+     * @param unit {TimeUnit} the unit of the delays
+     */
+    public HedgePolicy(double percentile, long minDelay, long maxDelay, TimeUnit unit){
+        if(percentile <= 0 || percentile >= 1) throw new IllegalArgumentException("percentile must be between 0 and 1");
+        this.percentile = percentile;
+        this.minDelayNanos = unit.toNanos(minDelay);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+    }
+
+    /**
+     * @param method {String} the sugar method, e.g get_entry
+     * @return {long} how long to wait for an answer before sending a copy, in nanoseconds
+     */
+    public long getHedgeDelayNanos(String method){
+        Latencies recent = latencies.get(method);
+        long threshold = recent==null ? -1 : recent.threshold();
+        if(threshold < 0) return maxDelayNanos;
+        return Math.max(minDelayNanos, Math.min(maxDelayNanos, threshold));
+    }
+
+    /**
+     * @return {long} the copies sent so far
+     */
+    public long getHedgesSent() {
+        return hedgesSent.get();
+    }
+
+    /**
+     * @return {long} the copies that answered before the original request
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    void sent(){
+        hedgesSent.incrementAndGet();
+    }
+
+    void answered(boolean byHedge){
+        if(byHedge) hedgesWon.incrementAndGet();
+    }
+
+    void record(String method, long latencyNanos){
+        latencies.computeIfAbsent(method, k -> new Latencies()).add(latencyNanos);
+    }
+
+    private class Latencies {
+        private final long[] samples = new long[WINDOW];
+        private int count;
+        private int next;
+        private long threshold = -1;
+
+        synchronized void add(long latencyNanos){
+            samples[next] = latencyNanos;
+            next = (next + 1) % WINDOW;
+            if(count < WINDOW) count++;
+            //sorting the window on every answer would cost more than the hedging saves
+            if(count >= MIN_SAMPLES && (count < WINDOW || next % 16 == 0)){
+                long[] sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                threshold = sorted[Math.min(count - 1, (int) Math.ceil(percentile * count) - 1)];
+            }
+        }
+
+        synchronized long threshold(){
+            return threshold;
+        }
+    }
+}
@@ -0,0 +1,941 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package PRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ *     Non-blocking transport used for the async request methods.
+ *     The underlying {@link HttpClient} multiplexes every exchange over a selector thread,
+ *     so a caller can keep thousands of CRM calls in flight without holding a thread per call.
+ *     Only the completion callbacks run on the client's executor.
+ * </p>
+ * <p>
+ *     Sync and async requests share the same client, so sockets (and their TLS sessions) are kept alive and
+ *     reused across calls instead of being torn down after every request. The {@link ConnectionPool} bounds
+ *     the connections per host and reports active/released/waiting lease figures, it doesn't close sockets.
+ *     The jdk keeps an idle socket for 20 minutes, apache closes it after 5s, and a request written to a socket
+ *     the server has just closed fails. The keep-alive timeout of the jdk client is a system property shared by
+ *     every HttpClient of the JVM, so it is left to the application: start it with
+ *     -Djdk.httpclient.keepalive.timeout=4 ({@link #DEFAULT_KEEP_ALIVE_SECONDS}), or set the property before
+ *     the first request, when sugar sits behind a server with a short keep-alive.
+ * </p>
+ * <p>
+ *     Every exchange goes through the {@link CircuitBreaker} of its host and is retried according to the
+ *     {@link RetryPolicy}. A non 2xx answer is a failure ({@link HttpStatusException}). When a {@link HedgePolicy}
+ *     is set, reads (get_entry, get_entries, get_entry_list) that are slower than usual are sent a second time
+ *     and the first answer wins. Streamed responses are never hedged and only retried before the reader starts,
+ *     since the reader may already have handed records over.
+ * </p>
+ * <p>
+ *     A read sent while an identical one (same url, method and encoded body, so the same session and rest_data)
+ *     is in flight isn't sent again, it gets the answer of the one in flight. Only the reads answered as a String
+ *     are shared, a streamed body can only be read once. Any other request clears the reads in flight, a read made
+ *     after a write is never answered by one sent before it. {@link #setSingleFlight(boolean)} turns it off.
+ * </p>
+ * <p>
+ *     Responses are asked for gzip or deflate (Accept-Encoding) and decoded while they are read, chunk by chunk,
+ *     for String and streamed bodies alike. Request bodies over {@link #setRequestCompression(int)} bytes are sent
+ *     gzipped, which needs a server that inflates them (e.g apache's mod_deflate input filter), so that is off
+ *     by default.
+ * </p>
+ * <p>
+ *     While {@link Metrics} is enabled every exchange is recorded under its sugar method with its round trip,
+ *     status and the bytes sent and read off the socket, compressed and uncompressed.
+ * </p>
+ * <p>
+ *     In front of all that, a {@link ConcurrencyLimiter} for reads and one for everything else cap the requests in
+ *     flight, adapting the cap to the round trips sugar answers with.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class HttpTransport {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+    //apache closes idle keep-alive sockets after 5s by default, the keep-alive suggested for the jdk client and
+    //the reuse window of the pool
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 4;
+
+    //sending these twice is harmless, they are the only ones retried after the request may have reached sugar
+    private static final Set<String> READ_METHODS = Collections.unmodifiableSet(new HashSet<>(
+            Arrays.asList("get_entry", "get_entries", "get_entry_list")));
+
+    private static final HttpTransport DEFAULT = new HttpTransport();
+
+    //streamed bodies are consumed with blocking reads, keep those off the client's own executor
+    private static final Executor STREAM_READERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "psugar-stream-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final HttpClient client;
+    private final ConnectionPool pool;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.defaults();
+    private volatile CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private volatile HedgePolicy hedgePolicy;
+    private volatile Duration requestTimeout;
+    private volatile ConcurrencyLimiter readLimiter = new ConcurrencyLimiter("reads", 20, 1, 64, 10000);
+    private volatile ConcurrencyLimiter writeLimiter = new ConcurrencyLimiter("writes", 8, 1, 32, 10000);
+    private volatile Metrics metrics = Metrics.getDefault();
+    private volatile boolean responseCompression = true;
+    private volatile int requestCompressionMinBytes;
+    private volatile boolean singleFlight = true;
+    private final Map<Flight, CompletableFuture<String>> flights = new ConcurrentHashMap<>();
+
+    public static HttpTransport getDefault(){
+        return DEFAULT;
+    }
+
+    public HttpTransport(){
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    public HttpTransport(int maxConnectionsPerHost){
+        this(HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)//sugar's rest endpoint is plain php, lets not try h2 upgrades
+                .connectTimeout(Duration.ofSeconds(30))
+                .build(),
+                new ConnectionPool(maxConnectionsPerHost, DEFAULT_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS));
+    }
+
+    public HttpTransport(HttpClient client, ConnectionPool pool){
+        this.client = client;
+        this.pool = pool;
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    public ConnectionPool.Stats getPoolStats(){
+        return pool.getStats();
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @param retryPolicy {RetryPolicy} the retries of failed exchanges, {@link RetryPolicy#none()} to turn them off
+     */
+    public HttpTransport setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy==null ? RetryPolicy.none() : retryPolicy;
+        return this;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @param circuitBreaker {CircuitBreaker} the breaker of every host, null to always send
+     */
+    public HttpTransport setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * Hedging is off by default, it adds load on the CRM to cut the tail latency of reads
+     * @param hedgePolicy {HedgePolicy} when to send a second copy of a read, null to never send one
+     */
+    public HttpTransport setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+        return this;
+    }
+
+    public Duration getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * @param requestTimeout {Duration} how long an exchange may wait for its answer before it fails
+     *                       (and is retried when it is a read), null to wait as long as it takes
+     */
+    public HttpTransport setRequestTimeout(Duration requestTimeout) {
+        this.requestTimeout = requestTimeout;
+        return this;
+    }
+
+    public ConcurrencyLimiter getReadLimiter() {
+        return readLimiter;
+    }
+
+    /**
+     * @param readLimiter {ConcurrencyLimiter} caps the reads in flight, null for no cap
+     */
+    public HttpTransport setReadLimiter(ConcurrencyLimiter readLimiter) {
+        this.readLimiter = readLimiter;
+        return this;
+    }
+
+    public ConcurrencyLimiter getWriteLimiter() {
+        return writeLimiter;
+    }
+
+    /**
+     * @param writeLimiter {ConcurrencyLimiter} caps the other requests (writes, login...) in flight, null for no cap
+     */
+    public HttpTransport setWriteLimiter(ConcurrencyLimiter writeLimiter) {
+        this.writeLimiter = writeLimiter;
+        return this;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metrics {Metrics} where the exchanges are recorded, {@link Metrics#getDefault()} unless set
+     */
+    public HttpTransport setMetrics(Metrics metrics) {
+        this.metrics = metrics==null ? new Metrics() : metrics;
+        return this;
+    }
+
+    public boolean isResponseCompression() {
+        return responseCompression;
+    }
+
+    /**
+     * @param responseCompression {boolean} true (the default) to ask for gzip or deflate encoded responses
+     */
+    public HttpTransport setResponseCompression(boolean responseCompression) {
+        this.responseCompression = responseCompression;
+        return this;
+    }
+
+    public int getRequestCompression() {
+        return requestCompressionMinBytes;
+    }
+
+    /**
+     * Gzips request bodies from this size on, e.g large set_entries batches. Sugar's php doesn't inflate a request
+     * body itself, the web server in front of it has to (apache: SetInputFilter DEFLATE).
+     * @param minBytes {int} the smallest body sent gzipped, 0 (the default) to never compress requests
+     */
+    public HttpTransport setRequestCompression(int minBytes) {
+        this.requestCompressionMinBytes = Math.max(0, minBytes);
+        return this;
+    }
+
+    public boolean isSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * @param singleFlight {boolean} true to answer a read by an identical one already in flight, the default
+     * @return {HttpTransport} this transport
+     */
+    public HttpTransport setSingleFlight(boolean singleFlight) {
+        this.singleFlight = singleFlight;
+        if(!singleFlight) flights.clear();
+        return this;
+    }
+
+    /**
+     * @return {int} the number of distinct reads in flight that identical ones can join
+     */
+    public int getSharedFlights(){
+        return flights.size();
+    }
+
+    /**
+     * @param method {String} a sugar method, e.g set_entry
+     * @return {boolean} true for the methods that can safely be sent more than once
+     */
+    public static boolean isRead(String method){
+        return method!=null && READ_METHODS.contains(method);
+    }
+
+    /**
+     * Sends an already form-encoded body to the CRM, blocking the calling thread until the response arrives.
+     * @param url {String} The sugarCRM rest endpoint
+     * @param body {String} application/x-www-form-urlencoded post data
+     * @return {String} the raw response body
+     * @throws IOException when the exchange fails or the calling thread is interrupted
+     */
+    public String post(String url, String body) throws IOException{
+        return await(send(url, null, HttpRequest.BodyPublishers.ofString(body)), url);
+    }
+
+    /**
+     * Sends the encoder's buffer as is, without copying it into a String first.
+     * @see #post(String, String)
+     */
+    public String post(String url, FormEncoder body) throws IOException{
+        return post(url, null, body);
+    }
+
+    /**
+     * @param method {String} the sugar method of the body, reads are retried more freely and may be hedged
+     * @see #post(String, String)
+     */
+    public String post(String url, String method, FormEncoder body) throws IOException{
+        return await(send(url, method, body), url);
+    }
+
+    /**
+     * Sends an already form-encoded body to the CRM without blocking the calling thread.
+     * @param url {String} The sugarCRM rest endpoint
+     * @param body {String} application/x-www-form-urlencoded post data
+     * @return {CompletableFuture} completed with the raw response body
+     */
+    public CompletableFuture<String> postAsync(String url, String body){
+        return send(url, null, HttpRequest.BodyPublishers.ofString(body));
+    }
+
+    /**
+     * Sends the encoder's buffer as is, without copying it into a String first.
+     * @see #postAsync(String, String)
+     */
+    public CompletableFuture<String> postAsync(String url, FormEncoder body){
+        return postAsync(url, null, body);
+    }
+
+    /**
+     * @param method {String} the sugar method of the body, reads are retried more freely and may be hedged
+     * @see #postAsync(String, String)
+     */
+    public CompletableFuture<String> postAsync(String url, String method, FormEncoder body){
+        return send(url, method, body);
+    }
+
+    /**
+     * Joins the identical read in flight when there is one, otherwise sends the body and lets others join it
+     */
+    private CompletableFuture<String> send(String url, String method, FormEncoder body){
+        if(!singleFlight || !isRead(method)) return send(url, method, publisherOf(body));
+        Flight key = new Flight(url, method, body.buffer(), body.size());
+        CompletableFuture<String> flight = new CompletableFuture<>();
+        CompletableFuture<String> inFlight = flights.putIfAbsent(key, flight);
+        if(inFlight!=null){
+            metrics.recordShared(method);
+            return follow(inFlight);
+        }
+        try {
+            send(url, method, publisherOf(body)).whenComplete((answer, error) -> {
+                flights.remove(key, flight);
+                if(error!=null) flight.completeExceptionally(unwrap(error));
+                else flight.complete(answer);
+            });
+        }catch (RuntimeException ex){
+            flights.remove(key, flight);
+            flight.completeExceptionally(ex);
+        }
+        return follow(flight);
+    }
+
+    /**
+     * Every caller of a shared read gets a future of its own, so one caller cancelling or completing
+     * it leaves the others alone
+     */
+    private static CompletableFuture<String> follow(CompletableFuture<String> flight){
+        CompletableFuture<String> answer = new CompletableFuture<>();
+        flight.whenComplete((body, error) -> {
+            if(error!=null) answer.completeExceptionally(error);
+            else answer.complete(body);
+        });
+        return answer;
+    }
+
+    private CompletableFuture<String> send(String url, String method, HttpRequest.BodyPublisher body){
+        if(!isRead(method)) flights.clear();//reads made from now on go to sugar, not to a flight sent before
+        URI uri = URI.create(url);
+        String host = hostOf(uri);
+        HttpRequest request = buildRequest(uri, body);
+        boolean read = isRead(method);
+        HedgePolicy hedge = read ? hedgePolicy : null;
+        return withRetries(read, () -> hedge==null ?
+                exchange(host, method, request, HttpResponse.BodyHandlers.ofString()) :
+                hedged(hedge, host, method, request))
+                .thenApply(Exchange::finish);
+    }
+
+    /**
+     * Sends the body and hands the response stream to the reader on the calling thread, so the
+     * response is consumed as it arrives instead of being buffered into a String first.
+     * @param url {String} The sugarCRM rest endpoint
+     * @param body {FormEncoder} the post data
+     * @param reader {BodyReader} consumes the response body
+     * @return whatever the reader returns
+     * @throws IOException when the exchange or the reader fails
+     */
+    public <T> T post(String url, FormEncoder body, BodyReader<T> reader) throws IOException{
+        return post(url, null, body, reader);
+    }
+
+    /**
+     * @param method {String} the sugar method of the body, a read is retried until the reader starts
+     * @see #post(String, FormEncoder, BodyReader)
+     */
+    public <T> T post(String url, String method, FormEncoder body, BodyReader<T> reader) throws IOException{
+        Exchange<InputStream> exchange = await(openStream(url, method, body), url);
+        try (InputStream in = exchange.response.body()){
+            return reader.read(in);
+        }finally {
+            exchange.release();
+        }
+    }
+
+    /**
+     * Non-blocking variant of {@link #post(String, FormEncoder, BodyReader)}, the reader runs on a
+     * stream reader thread once the response headers have arrived.
+     */
+    public <T> CompletableFuture<T> postAsync(String url, FormEncoder body, BodyReader<T> reader){
+        return postAsync(url, null, body, reader);
+    }
+
+    /**
+     * @param method {String} the sugar method of the body, a read is retried until the reader starts
+     * @see #postAsync(String, FormEncoder, BodyReader)
+     */
+    public <T> CompletableFuture<T> postAsync(String url, String method, FormEncoder body, BodyReader<T> reader){
+        return openStream(url, method, body).thenApplyAsync(exchange -> {
+            try (InputStream in = exchange.response.body()){
+                return reader.read(in);
+            }catch (IOException ex){
+                throw new CompletionException(ex);
+            }finally {
+                exchange.release();
+            }
+        }, STREAM_READERS);
+    }
+
+    private CompletableFuture<Exchange<InputStream>> openStream(String url, String method, FormEncoder body){
+        if(!isRead(method)) flights.clear();
+        URI uri = URI.create(url);
+        String host = hostOf(uri);
+        HttpRequest request = buildRequest(uri, publisherOf(body));
+        return withRetries(isRead(method), () ->
+                exchange(host, method, request, HttpResponse.BodyHandlers.ofInputStream()));
+    }
+
+    /**
+     * Consumes a response body as a stream
+     */
+    public interface BodyReader<T> {
+        T read(InputStream in) throws IOException;
+    }
+
+    /**
+     * One exchange: checks the circuit, waits for the limiter and a connection slot and fails on a non 2xx answer.
+     * The permit and the slot are held by the returned exchange until it is released. A request the circuit let
+     * through but that is never sent is handed back to the breaker, a half open circuit would wait for it forever.
+     */
+    private <T> CompletableFuture<Exchange<T>> exchange(String host, String method, HttpRequest request,
+                                                        HttpResponse.BodyHandler<T> handler){
+        CircuitBreaker breaker = circuitBreaker;
+        Metrics metrics = this.metrics;
+        if(breaker!=null && !breaker.allowRequest(host)){
+            CircuitOpenException open = new CircuitOpenException(host);
+            metrics.recordExchange(method, 0, 0, 0, -1, open);
+            return failed(open);
+        }
+        ConcurrencyLimiter limiter = isRead(method) ? readLimiter : writeLimiter;
+        CompletableFuture<ConcurrencyLimiter.Permit> permits = limiter==null ?
+                CompletableFuture.completedFuture(null) : limiter.acquire(method).whenComplete((permit, error) -> {
+                    if(error!=null) metrics.recordExchange(method, 0, 0, 0, -1, unwrap(error));
+                });
+        boolean[] sent = new boolean[1];
+        CompletableFuture<Exchange<T>> exchange = permits.thenCompose(permit -> pool.acquire(host)
+                .thenCompose(lease -> {
+            DecodingHandler<T> decoding = new DecodingHandler<>(handler);
+            CountingHandler<T> counting = metrics.isEnabled() ? new CountingHandler<>(decoding) : null;
+            long start = System.nanoTime();
+            CompletableFuture<HttpResponse<T>> answer;
+            try {
+                answer = client.sendAsync(request, counting!=null ? counting : decoding);
+            }catch (RuntimeException ex){
+                pool.release(lease);
+                if(permit!=null) permit.ignore();
+                throw ex;
+            }
+            sent[0] = true;
+            return answer.handle((response, error) -> {
+                long roundTrip = System.nanoTime() - start;
+                Throwable failure = error!=null ? unwrap(error) : statusFailure(request, response);
+                if(breaker!=null){
+                    if(isServerFault(failure)) breaker.onFailure(host);
+                    else breaker.onSuccess(host);
+                }
+                if(failure!=null){
+                    if(response!=null && response.body() instanceof InputStream)
+                        closeQuietly((InputStream) response.body());
+                    pool.release(lease);
+                    if(permit!=null){
+                        if(isOverload(failure)) permit.dropped();
+                        else permit.ignore();
+                    }
+                    if(counting!=null) metrics.recordExchange(method, response!=null ? response.statusCode() : 0,
+                            bytesSent(request), uncompressedBytesSent(request), counting.received,
+                            decoding.decodedOr(counting.received), roundTrip, failure);
+                    throw new CompletionException(failure);
+                }
+                HedgePolicy hedge = hedgePolicy;
+                if(hedge!=null && isRead(method)) hedge.record(method, roundTrip);
+                return new Exchange<>(response, lease, permit, roundTrip, counting==null ? null : () ->
+                        metrics.recordExchange(method, response.statusCode(), bytesSent(request),
+                                uncompressedBytesSent(request), counting.received,
+                                decoding.decodedOr(counting.received), roundTrip, null));
+            });
+        }));
+        if(breaker==null) return exchange;
+        return exchange.whenComplete((result, error) -> {
+            if(!sent[0]) breaker.onNotSent(host);
+        });
+    }
+
+    /**
+     * Sends the request, and a copy of it once the hedge delay has passed without an answer.
+     * The first answer wins, the exchange fails once every copy sent has failed.
+     */
+    private CompletableFuture<Exchange<String>> hedged(HedgePolicy hedge, String host, String method,
+                                                      HttpRequest request){
+        CompletableFuture<Exchange<String>> result = new CompletableFuture<>();
+        int[] outstanding = {1};
+        boolean[] hedgeAllowed = {true};
+        BiConsumer<Exchange<String>, Throwable> settle = (exchange, error) -> {
+            if(error==null){
+                if(result.complete(exchange)) hedge.answered(exchange.hedge);
+                else exchange.release();//the other copy won
+                return;
+            }
+            synchronized (result){
+                if(--outstanding[0] > 0) return;
+                hedgeAllowed[0] = false;//a failure before the delay is left to the retry policy
+            }
+            result.completeExceptionally(unwrap(error));
+        };
+        exchange(host, method, request, HttpResponse.BodyHandlers.ofString()).whenComplete(settle);
+        CompletableFuture.delayedExecutor(hedge.getHedgeDelayNanos(method), TimeUnit.NANOSECONDS).execute(() -> {
+            synchronized (result){
+                if(result.isDone() || !hedgeAllowed[0]) return;
+                outstanding[0]++;
+            }
+            hedge.sent();
+            exchange(host, method, request, HttpResponse.BodyHandlers.ofString()).thenApply(exchange -> {
+                exchange.hedge = true;
+                return exchange;
+            }).whenComplete(settle);
+        });
+        return result;
+    }
+
+    /**
+     * Runs the attempts until one succeeds, the policy gives up or the failure isn't worth another attempt
+     */
+    private <T> CompletableFuture<T> withRetries(boolean idempotent, Supplier<CompletableFuture<T>> attempt){
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(retryPolicy, idempotent, attempt, 1, result);
+        return result;
+    }
+
+    private static <T> void attempt(RetryPolicy policy, boolean idempotent, Supplier<CompletableFuture<T>> attempt,
+                                    int number, CompletableFuture<T> result){
+        CompletableFuture<T> pending;
+        try {
+            pending = attempt.get();
+        }catch (RuntimeException ex){
+            result.completeExceptionally(ex);
+            return;
+        }
+        pending.whenComplete((value, error) -> {
+            if(error==null){
+                result.complete(value);
+                return;
+            }
+            Throwable failure = unwrap(error);
+            if(number >= policy.getMaxAttempts() || !policy.isRetryable(failure, idempotent)){
+                result.completeExceptionally(failure);
+                return;
+            }
+            CompletableFuture.delayedExecutor(policy.delayNanos(number), TimeUnit.NANOSECONDS)
+                    .execute(() -> attempt(policy, idempotent, attempt, number + 1, result));
+        });
+    }
+
+    private static <T> T await(CompletableFuture<T> future, String url) throws IOException{
+        try {
+            return future.get();
+        }catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + url, ex);
+        }catch (ExecutionException ex){
+            Throwable cause = unwrap(ex.getCause());
+            if(cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static HttpStatusException statusFailure(HttpRequest request, HttpResponse<?> response){
+        int status = response.statusCode();
+        if(status >= 200 && status < 300) return null;
+        String message = "HTTP " + status + " from " + request.uri();
+        if(response.body() instanceof String){
+            String body = (String) response.body();
+            message += ": " + (body.length() > 200 ? body.substring(0, 200) + "..." : body);
+        }
+        return new HttpStatusException(status, message);
+    }
+
+    /**
+     * A 4xx means the host is up and answering, only network failures and 5xx count against its circuit
+     */
+    private static boolean isServerFault(Throwable failure){
+        if(failure==null) return false;
+        if(failure instanceof HttpStatusException) return ((HttpStatusException) failure).getStatusCode() >= 500;
+        return failure instanceof IOException;
+    }
+
+    /**
+     * Answers that say sugar has more work than it can take, the limiter backs off on them
+     */
+    private static boolean isOverload(Throwable failure){
+        if(failure instanceof HttpTimeoutException) return true;
+        if(failure instanceof HttpStatusException){
+            int status = ((HttpStatusException) failure).getStatusCode();
+            return status==429 || status >= 500;
+        }
+        return false;
+    }
+
+    private static Throwable unwrap(Throwable error){
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause()!=null)
+            error = error.getCause();
+        return error;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable failure){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    private static long bytesSent(HttpRequest request){
+        return request.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).orElse(0L);
+    }
+
+    private static long uncompressedBytesSent(HttpRequest request){
+        return request.bodyPublisher().map(body -> body instanceof GzipBody ?
+                ((GzipBody) body).uncompressedSize : body.contentLength()).orElse(0L);
+    }
+
+    private static void closeQuietly(InputStream in){
+        try {
+            in.close();
+        }catch (IOException ignored){
+            //the exchange has already failed
+        }
+    }
+
+    private HttpRequest buildRequest(URI uri, HttpRequest.BodyPublisher body){
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(body);
+        if(responseCompression) builder.header("Accept-Encoding", "gzip, deflate");
+        if(body instanceof GzipBody) builder.header("Content-Encoding", "gzip");
+        Duration timeout = requestTimeout;
+        if(timeout!=null) builder.timeout(timeout);
+        return builder.build();
+    }
+
+    private HttpRequest.BodyPublisher publisherOf(FormEncoder body){
+        int size = body.size();
+        int minBytes = requestCompressionMinBytes;
+        if(minBytes > 0 && size >= minBytes) return new GzipBody(body.buffer(), size);
+        return HttpRequest.BodyPublishers.ofByteArray(body.buffer(), 0, size);
+    }
+
+    private static String hostOf(URI uri){
+        int port = uri.getPort();
+        if(port==-1) port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        return uri.getScheme() + "://" + uri.getHost() + ":" + port;
+    }
+
+    /**
+     * The identity of a read: where it goes and the exact bytes it sends. The encoder's buffer is held as is,
+     * an encoder only ever appends so the first size bytes don't change.
+     */
+    private static final class Flight {
+        private final String url;
+        private final String method;
+        private final byte[] body;
+        private final int size;
+        private final int hash;
+
+        Flight(String url, String method, byte[] body, int size){
+            this.url = url;
+            this.method = method;
+            this.body = body;
+            this.size = size;
+            int hash = 31 * url.hashCode() + method.hashCode();
+            for(int i = 0; i < size; i++) hash = 31 * hash + body[i];
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this==o) return true;
+            if(!(o instanceof Flight)) return false;
+            Flight other = (Flight) o;
+            return hash==other.hash && size==other.size && url.equals(other.url) && method.equals(other.method)
+                    && Arrays.equals(body, 0, size, other.body, 0, other.size);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A response and the connection slot and limiter permit it holds
+     */
+    private final class Exchange<T> {
+        final HttpResponse<T> response;
+        private final ConnectionPool.Lease lease;
+        private final ConcurrencyLimiter.Permit permit;
+        private final long roundTrip;
+        private final Runnable record;
+        private final AtomicBoolean released = new AtomicBoolean();
+        volatile boolean hedge;
+
+        /**
+         * @param record {Runnable} records the exchange once the body has been read, null when metrics are off
+         */
+        Exchange(HttpResponse<T> response, ConnectionPool.Lease lease, ConcurrencyLimiter.Permit permit,
+                 long roundTrip, Runnable record){
+            this.response = response;
+            this.lease = lease;
+            this.permit = permit;
+            this.roundTrip = roundTrip;
+            this.record = record;
+        }
+
+        void release(){
+            if(!released.compareAndSet(false, true)) return;
+            pool.release(lease);
+            if(permit!=null) permit.succeeded(roundTrip);
+            if(record!=null) record.run();
+        }
+
+        T finish(){
+            release();
+            return response.body();
+        }
+    }
+
+    /**
+     * A request body gzipped once up front, retries and hedges send the same bytes
+     */
+    private static final class GzipBody implements HttpRequest.BodyPublisher {
+        private final HttpRequest.BodyPublisher compressed;
+        final long uncompressedSize;
+
+        GzipBody(byte[] buffer, int size){
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, size / 4));
+            try (GZIPOutputStream gzip = new GZIPOutputStream(bytes, 8192)){
+                gzip.write(buffer, 0, size);
+            }catch (IOException ex){
+                throw new UncheckedIOException(ex);//a ByteArrayOutputStream doesn't fail
+            }
+            compressed = HttpRequest.BodyPublishers.ofByteArray(bytes.toByteArray());
+            uncompressedSize = size;
+        }
+
+        @Override
+        public long contentLength() {
+            return compressed.contentLength();
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            compressed.subscribe(subscriber);
+        }
+    }
+
+    /**
+     * Decodes a gzip or deflate response body as its chunks arrive and hands the decoded chunks on, so the
+     * body handler underneath (String or stream) never sees the encoding
+     */
+    private static final class DecodingHandler<T> implements HttpResponse.BodyHandler<T> {
+        private final HttpResponse.BodyHandler<T> handler;
+        volatile long decoded = -1;
+
+        DecodingHandler(HttpResponse.BodyHandler<T> handler){
+            this.handler = handler;
+        }
+
+        /**
+         * @return {long} the bytes of the decoded body, received when the body wasn't encoded
+         */
+        long decodedOr(long received){
+            long bytes = decoded;
+            return bytes < 0 ? received : bytes;
+        }
+
+        @Override
+        public HttpResponse.BodySubscriber<T> apply(HttpResponse.ResponseInfo info) {
+            HttpResponse.BodySubscriber<T> subscriber = handler.apply(info);
+            ContentDecoder decoder;
+            IOException unsupported = null;
+            try {
+                decoder = ContentDecoder.forEncoding(info.headers().firstValue("Content-Encoding").orElse(null));
+            }catch (IOException ex){
+                decoder = null;
+                unsupported = ex;
+            }
+            if(decoder==null && unsupported==null) return subscriber;
+            ContentDecoder contentDecoder = decoder;
+            IOException failure = unsupported;
+            decoded = 0;
+            return new HttpResponse.BodySubscriber<T>() {
+                private Flow.Subscription subscription;
+                private boolean failed;
+
+                @Override
+                public CompletionStage<T> getBody() {
+                    return subscriber.getBody();
+                }
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscriber.onSubscribe(subscription);
+                    if(failure!=null) fail(failure);
+                }
+
+                @Override
+                public void onNext(List<ByteBuffer> item) {
+                    if(failed) return;
+                    List<ByteBuffer> out = new ArrayList<>(item.size() * 4);
+                    try {
+                        for(ByteBuffer buffer : item) contentDecoder.decode(buffer, out);
+                    }catch (IOException ex){
+                        fail(ex);
+                        return;
+                    }
+                    decoded = contentDecoder.getDecodedBytes();//onNext calls are never concurrent
+                    //the item counted against the demand of the subscriber underneath, it has to get one
+                    if(out.isEmpty()) subscription.request(1);
+                    else subscriber.onNext(out);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    if(contentDecoder!=null) contentDecoder.end();
+                    if(!failed) subscriber.onError(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    if(failed) return;
+                    try {
+                        contentDecoder.finish();
+                    }catch (IOException ex){
+                        failed = true;
+                        subscriber.onError(ex);
+                        return;
+                    }
+                    subscriber.onComplete();
+                }
+
+                private void fail(IOException ex){
+                    failed = true;
+                    if(contentDecoder!=null) contentDecoder.end();
+                    subscription.cancel();
+                    subscriber.onError(ex);
+                }
+            };
+        }
+    }
+
+    /**
+     * Counts the bytes of the response body as they come off the socket
+     */
+    private static final class CountingHandler<T> implements HttpResponse.BodyHandler<T> {
+        private final HttpResponse.BodyHandler<T> handler;
+        volatile long received;
+
+        CountingHandler(HttpResponse.BodyHandler<T> handler){
+            this.handler = handler;
+        }
+
+        @Override
+        public HttpResponse.BodySubscriber<T> apply(HttpResponse.ResponseInfo info) {
+            HttpResponse.BodySubscriber<T> subscriber = handler.apply(info);
+            return new HttpResponse.BodySubscriber<T>() {
+                @Override
+                public CompletionStage<T> getBody() {
+                    return subscriber.getBody();
+                }
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscriber.onSubscribe(subscription);
+                }
+
+                @Override
+                public void onNext(List<ByteBuffer> item) {
+                    long bytes = 0;
+                    for(ByteBuffer buffer : item) bytes += buffer.remaining();
+                    received += bytes;//onNext calls are never concurrent
+                    subscriber.onNext(item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    subscriber.onError(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    subscriber.onComplete();
+                }
+            };
+        }
+    }
+}
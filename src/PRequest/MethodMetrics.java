@@ -0,0 +1,245 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package PRequest;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ *     What {@link Metrics} has recorded for one sugar method: the time on the network, spent encoding the post
+ *     data and spent converting the response, the bytes on the wire and before compression, and the answers by
+ *     status code and the failures by type.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class MethodMetrics implements MethodMetricsMBean {
+
+    private final String method;
+    private final LatencyHistogram network = new LatencyHistogram();
+    private final LatencyHistogram build = new LatencyHistogram();
+    private final LatencyHistogram convert = new LatencyHistogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder uncompressedBytesSent = new LongAdder();
+    private final LongAdder uncompressedBytesReceived = new LongAdder();
+    private final LongAdder sharedRequests = new LongAdder();
+    private final Map<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errorTypes = new ConcurrentHashMap<>();
+
+    MethodMetrics(String method){
+        this.method = method;
+    }
+
+    void recordExchange(int statusCode, long sent, long uncompressedSent, long received, long uncompressedReceived,
+                        long networkNanos, Throwable failure){
+        requests.increment();
+        if(sent > 0) bytesSent.add(sent);
+        if(received > 0) bytesReceived.add(received);
+        if(uncompressedSent > 0) uncompressedBytesSent.add(uncompressedSent);
+        if(uncompressedReceived > 0) uncompressedBytesReceived.add(uncompressedReceived);
+        if(networkNanos >= 0) network.record(networkNanos);
+        if(statusCode > 0) statusCodes.computeIfAbsent(statusCode, k -> new LongAdder()).increment();
+        if(failure!=null){
+            errors.increment();
+            errorTypes.computeIfAbsent(failure.getClass().getSimpleName(), k -> new LongAdder()).increment();
+        }
+    }
+
+    void recordShared(){
+        sharedRequests.increment();
+    }
+
+    void recordBuild(long nanos){
+        build.record(nanos);
+    }
+
+    void recordConvert(long nanos){
+        convert.record(nanos);
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    public LatencyHistogram getNetwork() {
+        return network;
+    }
+
+    public LatencyHistogram getBuild() {
+        return build;
+    }
+
+    public LatencyHistogram getConvert() {
+        return convert;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getUncompressedBytesSent() {
+        return uncompressedBytesSent.sum();
+    }
+
+    @Override
+    public long getUncompressedBytesReceived() {
+        return uncompressedBytesReceived.sum();
+    }
+
+    /**
+     * @return {long} the requests that were answered by an identical one already in flight, without being sent
+     */
+    @Override
+    public long getSharedRequests() {
+        return sharedRequests.sum();
+    }
+
+    /**
+     * @return {double} the bytes received over the bytes they decoded to, 1 when nothing was compressed
+     */
+    @Override
+    public double getReceivedCompressionRatio() {
+        long uncompressed = getUncompressedBytesReceived();
+        return uncompressed==0 ? 1 : (double) getBytesReceived() / uncompressed;
+    }
+
+    @Override
+    public double getNetworkP50Millis() {
+        return network.getPercentileMillis(0.5);
+    }
+
+    @Override
+    public double getNetworkP99Millis() {
+        return network.getPercentileMillis(0.99);
+    }
+
+    @Override
+    public double getNetworkP999Millis() {
+        return network.getPercentileMillis(0.999);
+    }
+
+    @Override
+    public double getNetworkMaxMillis() {
+        return network.getMaxMillis();
+    }
+
+    @Override
+    public double getBuildP50Millis() {
+        return build.getPercentileMillis(0.5);
+    }
+
+    @Override
+    public double getBuildP99Millis() {
+        return build.getPercentileMillis(0.99);
+    }
+
+    @Override
+    public double getConvertP50Millis() {
+        return convert.getPercentileMillis(0.5);
+    }
+
+    @Override
+    public double getConvertP99Millis() {
+        return convert.getPercentileMillis(0.99);
+    }
+
+    /**
+     * @return {Map} http status to the number of answers with it
+     */
+    public Map<Integer, Long> getStatusCodeCounts(){
+        Map<Integer, Long> counts = new TreeMap<>();
+        statusCodes.forEach((status, count) -> counts.put(status, count.sum()));
+        return counts;
+    }
+
+    /**
+     * @return {Map} failure class (e.g HttpTimeoutException) to the number of failures of that type
+     */
+    public Map<String, Long> getErrorTypeCounts(){
+        Map<String, Long> counts = new TreeMap<>();
+        errorTypes.forEach((type, count) -> counts.put(type, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public String getStatusCodes() {
+        return getStatusCodeCounts().toString();
+    }
+
+    @Override
+    public String getErrorTypes() {
+        return getErrorTypeCounts().toString();
+    }
+
+    @Override
+    public void reset() {
+        network.reset();
+        build.reset();
+        convert.reset();
+        requests.reset();
+        errors.reset();
+        bytesSent.reset();
+        bytesReceived.reset();
+        uncompressedBytesSent.reset();
+        uncompressedBytesReceived.reset();
+        sharedRequests.reset();
+        statusCodes.clear();
+        errorTypes.clear();
+    }
+
+    private static String uncompressed(long wire, long uncompressed){
+        return wire==uncompressed ? "" : " (" + uncompressed + "B uncompressed)";
+    }
+
+    @Override
+    public String toString() {
+        return method + ": requests=" + getRequests() + ", shared=" + getSharedRequests() +
+                ", errors=" + getErrors() + ", sent=" + getBytesSent() +
+                "B" + uncompressed(getBytesSent(), getUncompressedBytesSent()) + ", received=" + getBytesReceived() +
+                "B" + uncompressed(getBytesReceived(), getUncompressedBytesReceived()) + ", network[" + network +
+                "], build[" + build + "], convert[" + convert + "], status=" + getStatusCodes();
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package PRequest;
+
+/**
+ * <p>
+ *     The JMX view of a {@link MethodMetrics}, registered by {@link Metrics#enableJmx()} as
+ *     PSugar:type=SugarMethod,name=&lt;method&gt;
+ * </p>
+ * Created on 17/10/26.
+ */
+public interface MethodMetricsMBean {
+
+    String getMethod();
+
+    long getRequests();
+
+    long getErrors();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getUncompressedBytesSent();
+
+    long getUncompressedBytesReceived();
+
+    double getReceivedCompressionRatio();
+
+    long getSharedRequests();
+
+    double getNetworkP50Millis();
+
+    double getNetworkP99Millis();
+
+    double getNetworkP999Millis();
+
+    double getNetworkMaxMillis();
+
+    double getBuildP50Millis();
+
+    double getBuildP99Millis();
+
+    double getConvertP50Millis();
+
+    double getConvertP99Millis();
+
+    String getStatusCodes();
+
+    String getErrorTypes();
+
+    void reset();
+}
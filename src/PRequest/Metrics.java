@@ -0,0 +1,195 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package PRequest;
+
+import Interfaces.MetricsListener;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>
+ *     Instrumentation of the client, keyed by sugar method (login, get_entry, get_entry_list, set_entries...):
+ *     latency histograms of the network exchange, of encoding the post data and of converting the response in
+ *     SugarResponse, bytes sent and received, and answers by status code and failures by type.
+ * </p>
+ * <p>
+ *     Disabled by default. While disabled a measuring point costs a volatile read, no clock is read and nothing
+ *     is counted. Once enabled, every measurement goes to the built-in {@link MethodMetrics} and to the
+ *     {@link MetricsListener}s, and {@link #enableJmx()} publishes the MethodMetrics as MBeans.
+ * </p>
+ * e.g.
+ * <pre>
+ *     Metrics.getDefault().setEnabled(true).enableJmx();
+ *     ...
+ *     System.out.println(Metrics.getDefault().getMethodMetrics("get_entry_list"));
+ * </pre>
+ * Created on 17/10/26.
+ */
+public class Metrics {
+
+    private static final Metrics DEFAULT = new Metrics();
+    private static final String UNKNOWN_METHOD = "unknown";
+
+    private final Map<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+    private final List<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean enabled;
+    private volatile boolean jmx;
+
+    public static Metrics getDefault(){
+        return DEFAULT;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Metrics setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public Metrics addListener(MetricsListener listener){
+        listeners.add(listener);
+        return this;
+    }
+
+    public Metrics removeListener(MetricsListener listener){
+        listeners.remove(listener);
+        return this;
+    }
+
+    /**
+     * Registers the metrics of every method, now and as methods are first seen, with the platform MBeanServer
+     * @throws JMException when a bean can't be registered
+     */
+    public synchronized Metrics enableJmx() throws JMException{
+        jmx = true;
+        for(MethodMetrics metrics : methods.values()) register(metrics);
+        return this;
+    }
+
+    /**
+     * @param method {String} a sugar method
+     * @return {MethodMetrics} what was recorded for it, null when nothing was
+     */
+    public MethodMetrics getMethodMetrics(String method){
+        return methods.get(method==null ? UNKNOWN_METHOD : method);
+    }
+
+    /**
+     * @return {Map} method to its metrics, sorted by method
+     */
+    public Map<String, MethodMetrics> getAllMethodMetrics(){
+        return Collections.unmodifiableMap(new TreeMap<>(methods));
+    }
+
+    public void reset(){
+        for(MethodMetrics metrics : methods.values()) metrics.reset();
+    }
+
+    /**
+     * @see MetricsListener#onExchange(String, int, long, long, long, Throwable)
+     */
+    public void recordExchange(String method, int statusCode, long bytesSent, long bytesReceived, long networkNanos,
+                               Throwable failure){
+        recordExchange(method, statusCode, bytesSent, bytesSent, bytesReceived, bytesReceived, networkNanos, failure);
+    }
+
+    /**
+     * An exchange whose bodies may have been compressed, the bytes on the wire and before/after compression
+     * @see MetricsListener#onCompression(String, long, long, long, long)
+     */
+    public void recordExchange(String method, int statusCode, long bytesSent, long uncompressedBytesSent,
+                               long bytesReceived, long uncompressedBytesReceived, long networkNanos,
+                               Throwable failure){
+        if(!enabled) return;
+        metricsOf(method).recordExchange(statusCode, bytesSent, uncompressedBytesSent, bytesReceived,
+                uncompressedBytesReceived, networkNanos, failure);
+        boolean compressed = bytesSent!=uncompressedBytesSent || bytesReceived!=uncompressedBytesReceived;
+        for(MetricsListener listener : listeners){
+            listener.onExchange(method, statusCode, bytesSent, bytesReceived, networkNanos, failure);
+            if(compressed) listener.onCompression(method, bytesSent, uncompressedBytesSent, bytesReceived,
+                    uncompressedBytesReceived);
+        }
+    }
+
+    /**
+     * @see MetricsListener#onShared(String)
+     */
+    public void recordShared(String method){
+        if(!enabled) return;
+        metricsOf(method).recordShared();
+        for(MetricsListener listener : listeners) listener.onShared(method);
+    }
+
+    /**
+     * @see MetricsListener#onBuild(String, long)
+     */
+    public void recordBuild(String method, long nanos){
+        if(!enabled) return;
+        metricsOf(method).recordBuild(nanos);
+        for(MetricsListener listener : listeners) listener.onBuild(method, nanos);
+    }
+
+    /**
+     * @see MetricsListener#onConvert(String, String, long)
+     */
+    public void recordConvert(String method, String conversion, long nanos){
+        if(!enabled) return;
+        metricsOf(method).recordConvert(nanos);
+        for(MetricsListener listener : listeners) listener.onConvert(method, conversion, nanos);
+    }
+
+    private MethodMetrics metricsOf(String method){
+        String key = method==null ? UNKNOWN_METHOD : method;
+        MethodMetrics metrics = methods.get(key);
+        if(metrics!=null) return metrics;
+        synchronized (this){
+            metrics = methods.computeIfAbsent(key, MethodMetrics::new);
+            if(jmx){
+                try {
+                    register(metrics);
+                }catch (JMException ex){
+                    jmx = false;//keep recording, stop trying to publish
+                    ex.printStackTrace();
+                }
+            }
+        }
+        return metrics;
+    }
+
+    private static void register(MethodMetrics metrics) throws JMException{
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("PSugar:type=SugarMethod,name=" + ObjectName.quote(metrics.getMethod()));
+        if(!server.isRegistered(name)) server.registerMBean(metrics, name);
+    }
+}
@@ -27,10 +27,13 @@ import Interfaces.ResponseHandler;
 
 import java.io.*;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * @author Okeke Paul
@@ -44,40 +47,130 @@ public class PRequest {
 
     }
 
+    /**
+     * Posts the data on the calling thread. The connection is returned to the shared
+     * {@link HttpTransport} keep-alive pool once the response has been read.
+     * @param url the sugarCRM rest endpoint
+     * @param postData the post data
+     * @param handler receives the response body, or the failure once the retries are exhausted
+     */
     public static void post(String url, HashMap<String, String> postData, ResponseHandler handler){
-        HttpURLConnection urlConnection = null;
+        String response;
         try {
-            urlConnection = (HttpURLConnection) new URL(url).openConnection();
-            urlConnection.setRequestMethod("POST");
-            urlConnection.setDoOutput(true);
-            OutputStream outputStream = urlConnection.getOutputStream();
-            BufferedWriter bf = new BufferedWriter(new OutputStreamWriter(outputStream));
-            bf.write(buildParams(postData));
-            bf.flush(); bf.close();
-            outputStream.close();
-            outputStream.close();//It is really important we close the output stream and also flush the writer
-            urlConnection.connect();
-            handler.onSuccessful(handleResponse(urlConnection));
+            response = HttpTransport.getDefault().post(url, buildParams(postData));
         }catch (IOException ex){
-            ex.printStackTrace();
-        }finally {
-            if(urlConnection!=null){
-                urlConnection.disconnect();
-            }
+            handler.onFailed(ex.toString());
+            return;
+        }
+        handler.onSuccessful(response);
+    }
+
+    /**
+     * Posts an already encoded body on the calling thread
+     * @param url the sugarCRM rest endpoint
+     * @param body the form encoded post data
+     * @param handler receives the response body, or the failure once the retries are exhausted
+     */
+    public static void post(String url, FormEncoder body, ResponseHandler handler){
+        post(url, null, body, handler);
+    }
+
+    /**
+     * @param method the sugar method of the body, reads are retried more freely and may be hedged
+     * @see #post(String, FormEncoder, ResponseHandler)
+     */
+    public static void post(String url, String method, FormEncoder body, ResponseHandler handler){
+        String response;
+        try {
+            response = HttpTransport.getDefault().post(url, method, body);
+        }catch (IOException ex){
+            handler.onFailed(ex.toString());
+            return;
         }
+        handler.onSuccessful(response);
+    }
+
+    /**
+     * Non-blocking variant of {@link #post(String, FormEncoder, ResponseHandler)}
+     * @return {CompletableFuture} completed with the response body after the handler has been invoked
+     */
+    public static CompletableFuture<String> postAsync(String url, FormEncoder body, ResponseHandler handler){
+        return postAsync(url, null, body, handler);
+    }
+
+    /**
+     * @param method the sugar method of the body, reads are retried more freely and may be hedged
+     * @see #postAsync(String, FormEncoder, ResponseHandler)
+     */
+    public static CompletableFuture<String> postAsync(String url, String method, FormEncoder body,
+                                                      ResponseHandler handler){
+        return notify(HttpTransport.getDefault().postAsync(url, method, body), handler);
+    }
+
+    /**
+     * Posts the body and lets the reader consume the response stream as it arrives
+     * @see HttpTransport#post(String, FormEncoder, HttpTransport.BodyReader)
+     */
+    public static <T> T postForStream(String url, FormEncoder body, HttpTransport.BodyReader<T> reader)
+            throws IOException{
+        return postForStream(url, null, body, reader);
+    }
+
+    /**
+     * @see HttpTransport#post(String, String, FormEncoder, HttpTransport.BodyReader)
+     */
+    public static <T> T postForStream(String url, String method, FormEncoder body, HttpTransport.BodyReader<T> reader)
+            throws IOException{
+        return HttpTransport.getDefault().post(url, method, body, reader);
+    }
+
+    /**
+     * @see HttpTransport#postAsync(String, FormEncoder, HttpTransport.BodyReader)
+     */
+    public static <T> CompletableFuture<T> postForStreamAsync(String url, FormEncoder body,
+                                                              HttpTransport.BodyReader<T> reader){
+        return postForStreamAsync(url, null, body, reader);
+    }
+
+    /**
+     * @see HttpTransport#postAsync(String, String, FormEncoder, HttpTransport.BodyReader)
+     */
+    public static <T> CompletableFuture<T> postForStreamAsync(String url, String method, FormEncoder body,
+                                                              HttpTransport.BodyReader<T> reader){
+        return HttpTransport.getDefault().postAsync(url, method, body, reader);
+    }
+
+    /**
+     * Non-blocking variant of {@link #post(String, HashMap, ResponseHandler)}.
+     * The post data is encoded on the calling thread, the exchange itself runs on the
+     * shared {@link HttpTransport} and the handler is invoked once the response arrives.
+     * @param url the sugarCRM rest endpoint
+     * @param postData the post data
+     * @param handler receives the response body or the failure message
+     * @return {CompletableFuture} completed with the response body after the handler has been invoked
+     */
+    public static CompletableFuture<String> postAsync(String url, HashMap<String, String> postData,
+                                                      ResponseHandler handler){
+        return notify(HttpTransport.getDefault().postAsync(url, buildParams(postData)), handler);
+    }
+
+    private static CompletableFuture<String> notify(CompletableFuture<String> response, ResponseHandler handler){
+        return response.whenComplete((data, error) -> {
+            if(error==null) handler.onSuccessful(data);
+            else handler.onFailed(String.valueOf(error.getCause()!=null ? error.getCause() : error));
+        });
     }
 
     public static String handleResponse(HttpURLConnection urlConnection) throws IOException{
         int status = urlConnection.getResponseCode();
-        if(status!=200){
-            //we should manage the response here.. in the future..
-            //no time :(
+        if(status < 200 || status >= 300){
+            throw new HttpStatusException(status, "HTTP " + status + " from " + urlConnection.getURL());
         }
         return getResponseData(urlConnection);
     }
 
     public static String getResponseData(HttpURLConnection urlConnection) throws IOException{
-        BufferedReader bReader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));
+        BufferedReader bReader = new BufferedReader(new InputStreamReader(decoded(urlConnection)));
         StringBuilder builder = new StringBuilder();
         String newLine = System.getProperty("line.separator");
         String line;
@@ -94,7 +187,7 @@ public class PRequest {
      * @param data the post data
      * @return String
      */
-    private static String buildParams(HashMap<String, String> data){
+    static String buildParams(HashMap<String, String> data){
         StringBuilder builder = new StringBuilder();
         boolean first = true;// use to track when we need to append the &
         for(Map.Entry<String, String> entry : data.entrySet()){
@@ -111,4 +204,35 @@ public class PRequest {
 //        System.err.println(builder.toString());
         return builder.toString();
     }
+
+    /**
+     * HttpURLConnection hands a gzip or deflate body over as it came, encoded. Deflate is taken as zlib wrapped
+     * or raw from its first two bytes, the same way {@link ContentDecoder} does
+     */
+    private static InputStream decoded(HttpURLConnection urlConnection) throws IOException{
+        String encoding = urlConnection.getContentEncoding();
+        InputStream in = urlConnection.getInputStream();
+        if("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding)) return new GZIPInputStream(in);
+        if("deflate".equalsIgnoreCase(encoding)) return inflated(in);
+        return in;
+    }
+
+    static InputStream inflated(InputStream in) throws IOException{
+        PushbackInputStream peek = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int read = 0;
+        for(int n; read < 2 && (n = peek.read(header, read, 2 - read)) >= 0; ) read += n;
+        peek.unread(header, 0, read);
+        Inflater inflater = new Inflater(read==2 && !ContentDecoder.isZlibHeader(header[0] & 0xff, header[1] & 0xff));
+        return new InflaterInputStream(peek, inflater){
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }finally {
+                    inflater.end();//an inflater handed in isn't ended by the stream
+                }
+            }
+        };
+    }
 }
@@ -0,0 +1,110 @@
+/**
+ * The MIT License (MIT)
+ * Copyright (c) 2016 Paulex Open Source Project
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies
+ * or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package PRequest;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     How the {@link HttpTransport} retries a failed exchange: up to <b>maxAttempts</b> attempts, waiting a random
+ *     time between 0 and baseDelay * 2^(attempt - 1) (capped at maxDelay) before each retry, so callers that
+ *     failed together don't all come back at the same moment.
+ * </p>
+ * <p>
+ *     Reads (get_entry, get_entries, get_entry_list) are retried after any network failure and after 408, 429,
+ *     500, 502, 503 and 504. Anything else, e.g. a set_entries, is only retried when it can't have reached sugar:
+ *     the connection couldn't be opened, or the server answered 429 or 503.
+ * </p>
+ * Created on 17/10/26.
+ */
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+
+    /**
+     * @param maxAttempts {int} the most attempts made, the first one included
+     * @param baseDelay {long} the longest wait before the first retry
+     * @param maxDelay {long} the cap of the wait before any retry
+     * @param unit {TimeUnit} the unit of the delays
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, TimeUnit unit){
+        if(maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be at least 1");
+        this.maxAttempts = maxAttempts;
+        this.baseDelayNanos = unit.toNanos(baseDelay);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+    }
+
+    /**
+     * @return {RetryPolicy} 3 attempts, retries after up to 100ms then 200ms
+     */
+    public static RetryPolicy defaults(){
+        return new RetryPolicy(3, 100, 2000, TimeUnit.MILLISECONDS);
+    }
+
+    public static RetryPolicy none(){
+        return new RetryPolicy(1, 0, 0, TimeUnit.MILLISECONDS);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param attempt {int} the attempt that just failed, 1 for the first
+     * @return {long} the jittered wait before the next attempt, in nanoseconds
+     */
+    public long delayNanos(int attempt){
+        long ceiling = baseDelayNanos << Math.min(attempt - 1, 30);
+        if(ceiling <= 0 || ceiling > maxDelayNanos) ceiling = maxDelayNanos;
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * @param failure {Throwable} why the attempt failed
+     * @param idempotent {boolean} whether sending the request twice is harmless
+     * @return {boolean} true when the request should be sent again
+     */
+    public boolean isRetryable(Throwable failure, boolean idempotent){
+        //the transport chose not to send, sending again right away would defeat it
+        if(failure instanceof CircuitOpenException || failure instanceof LimitExceededException) return false;
+        if(failure instanceof HttpStatusException){
+            int status = ((HttpStatusException) failure).getStatusCode();
+            if(status==429 || status==503) return true;
+            return idempotent && (status==408 || status==500 || status==502 || status==504);
+        }
+        if(failure instanceof ConnectException || failure instanceof HttpConnectTimeoutException) return true;
+        return idempotent && failure instanceof IOException;
+    }
+
+    @Override
+    public String toString() {
+        return "maxAttempts=" + maxAttempts + ", baseDelay=" + TimeUnit.NANOSECONDS.toMillis(baseDelayNanos) +
+                "ms, maxDelay=" + TimeUnit.NANOSECONDS.toMillis(maxDelayNanos) + "ms";
+    }
+}
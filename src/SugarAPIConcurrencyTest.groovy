@@ -0,0 +1,103 @@
+import Impl.SugarAPI
+import Impl.SugarResponse
+import Interfaces.SugarRequestInterface
+import com.sun.net.httpserver.HttpServer
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Hammers one shared SugarAPI instance from many threads against a local server that echoes
+ * rest_data back, so every response must carry exactly the module and id its caller sent.
+ * Created on 17/10/26.
+ */
+class SugarAPIConcurrencyTest extends GroovyTestCase {
+
+    static final int THREADS = 16
+    static final int CALLS_PER_THREAD = 100
+
+    HttpServer server
+    SugarRequestInterface api
+
+    void setUp() {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+        server.executor = Executors.newFixedThreadPool(32)
+        server.createContext("/service/v4_1/rest.php") { exchange ->
+            def form = exchange.requestBody.getText("UTF-8").split("&").collectEntries {
+                def pair = it.split("=", 2)
+                [(URLDecoder.decode(pair[0], "UTF-8")): URLDecoder.decode(pair[1], "UTF-8")]
+            }
+            byte[] body = form["rest_data"].getBytes("UTF-8")
+            exchange.sendResponseHeaders(200, body.length)
+            exchange.responseBody.write(body)
+            exchange.close()
+        }
+        server.start()
+        api = SugarAPI.getSugarAPIInstance("http://localhost:${server.address.port}/service/v4_1/rest.php")
+    }
+
+    void tearDown() {
+        server.stop(0)
+        server.executor.shutdownNow()
+    }
+
+    void testSharedInstanceNeverMixesRequests() {
+        def pool = Executors.newFixedThreadPool(THREADS)
+        def start = new CountDownLatch(1)
+        def failures = Collections.synchronizedList([])
+        def workers = (0..<THREADS).collect { t ->
+            pool.submit {
+                start.await()
+                CALLS_PER_THREAD.times { i ->
+                    String module = "Module$t"
+                    String id = "id-$t-$i"
+                    String session = "s$t"
+                    def callback = new SugarResponse()
+                    if (i % 2 == 0) {
+                        api.getRecord(module, [id: id, session: session] as HashMap, callback)
+                    } else {
+                        api.getRecordAsync(module, [id: id, session: session] as HashMap, callback).join()
+                    }
+                    def echoed = callback.jsonResponseData
+                    if (echoed.get("module_name").asString != module || echoed.get("id").asString != id
+                            || echoed.get("session").asString != session) {
+                        failures << "$module/$id got $echoed"
+                    }
+                }
+            }
+        }
+        start.countDown()
+        pool.shutdown()
+        workers.each { it.get(60, TimeUnit.SECONDS) }//rethrows what a worker threw
+        assertEquals([], failures)
+    }
+
+    void testListDefaultsDoNotLeakIntoCallerData() {
+        def data = [fields: "", max: "5"] as HashMap
+        def calls = (0..<50).collect {
+            api.getRecordsAsync("Accounts", data, new SugarResponse())
+        }
+        CompletableFuture.allOf(calls as CompletableFuture[]).join()
+        calls.each { call ->
+            def echoed = call.join().jsonResponseData
+            assertEquals("0", echoed.get("offset").asString)
+            assertEquals("5", echoed.get("max_results").asString)
+        }
+        assertEquals([fields: "", max: "5"], data)
+    }
+
+    void testParamsAreSnapshotWhenBuilt() {
+        def data = [id: "1", fields: "[\"name\"]"] as HashMap
+        def insert = [name: "before"] as HashMap
+        def getEntry = api.buildSugarParams(SugarAPI.GET_ENTRY, "Accounts", data, null)
+        def setEntries = api.buildSugarParams(SugarAPI.SET_ENTRIES, "Accounts", data, [insert] as HashMap[])
+        String getBody = api.buildSugarData("get_entry", getEntry, "s").toString()
+        String setBody = api.buildSugarData("set_entries", setEntries, "s").toString()
+        data.put("id", "2")
+        insert.put("name", "after")
+        assertEquals(getBody, api.buildSugarData("get_entry", getEntry, "s").toString())
+        assertEquals(setBody, api.buildSugarData("set_entries", setEntries, "s").toString())
+    }
+}